@@ -0,0 +1,210 @@
+package devliving.online.securedpreferencestore;
+
+import com.google.gson.GsonBuilder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ru.eftr.RNSecurity.BuildConfig;
+
+/**
+ * Minimal JMH-style harness for the JVM benchmarks, JMH itself doesn't run under Robolectric.
+ *
+ * {@link #measure} runs an operation in a loop for timed iterations after warm-up iterations, each
+ * iteration gives one time per operation sample. {@link #measureSingleShot} times single calls with
+ * a setup before each, for operations that are expensive or only meaningful once, like opening a store.
+ * The score is the mean of the samples, its error the half-width of the 99.9% confidence interval.
+ *
+ * Results are written in the JSON format of JMH (-rf json), so the usual JMH tools can compare the
+ * results of two releases.
+ */
+public final class BenchmarkRunner {
+    private final static String ENABLED_PROPERTY = "sps.benchmark";
+    private final static String RESULTS_PROPERTY = "sps.benchmark.results";
+    private final static String DEFAULT_RESULTS_DIRECTORY = "build/benchmark-results";
+
+    private final static int WARMUP_ITERATIONS = 3;
+    private final static int MEASUREMENT_ITERATIONS = 5;
+    private final static long ITERATION_NANOS = 500L * 1000 * 1000;
+    private final static double Z_999 = 3.291;
+
+    public interface Operation {
+        void run() throws Exception;
+    }
+
+    private final String mSuite;
+    private final List<Map<String, Object>> mResults = new ArrayList<>();
+
+    /**
+     * @param suite name of the benchmark class, also the name of the results file
+     */
+    public BenchmarkRunner(String suite) {
+        mSuite = suite;
+    }
+
+    /**
+     * Benchmarks are skipped by the regular unit test run, {@code ./gradlew benchmark} enables them
+     */
+    public static boolean isEnabled() {
+        return Boolean.getBoolean(ENABLED_PROPERTY);
+    }
+
+    /**
+     * Average time mode
+     * @param name benchmark name
+     * @param params parameters of this run, e.g. the value size
+     * @param operation operation to measure
+     * @return mean time per operation in nanoseconds
+     */
+    public double measure(String name, Map<String, String> params, Operation operation) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            runIteration(operation);
+        }
+
+        double[] samples = new double[MEASUREMENT_ITERATIONS];
+        for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+            samples[i] = runIteration(operation);
+        }
+
+        return record(name, "avgt", "ns/op", params, WARMUP_ITERATIONS, samples, null);
+    }
+
+    /**
+     * Single shot mode, each call is timed separately
+     * @param name benchmark name
+     * @param params parameters of this run
+     * @param warmups calls before the measured ones
+     * @param runs measured calls
+     * @param setup called before every call, not timed, can be null
+     * @param operation operation to measure
+     * @param bytes bytes processed by a call, adds a MB/s secondary metric if positive
+     * @return mean time per call in milliseconds
+     */
+    public double measureSingleShot(String name, Map<String, String> params, int warmups, int runs,
+                                    Operation setup, Operation operation, long bytes) throws Exception {
+        for (int i = 0; i < warmups; i++) {
+            if (setup != null) setup.run();
+            operation.run();
+        }
+
+        double[] samples = new double[runs];
+        double[] throughput = new double[runs];
+        for (int i = 0; i < runs; i++) {
+            if (setup != null) setup.run();
+
+            long start = System.nanoTime();
+            operation.run();
+            long elapsed = System.nanoTime() - start;
+
+            samples[i] = elapsed / 1e6;
+            throughput[i] = bytes > 0 ? (bytes / (1024.0 * 1024.0)) / (elapsed / 1e9) : 0;
+        }
+
+        Map<String, Object> secondary = null;
+        if (bytes > 0) {
+            secondary = new LinkedHashMap<>();
+            secondary.put("throughput", metric(throughput, "MB/s"));
+        }
+
+        return record(name, "ss", "ms/op", params, warmups, samples, secondary);
+    }
+
+    /**
+     * Writes the results to {@code <results directory>/<suite>.json}
+     * @return the results file
+     */
+    public File write() throws IOException {
+        File directory = new File(System.getProperty(RESULTS_PROPERTY, DEFAULT_RESULTS_DIRECTORY));
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+
+        File file = new File(directory, mSuite + ".json");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            new GsonBuilder().setPrettyPrinting().serializeSpecialFloatingPointValues().create().toJson(mResults, writer);
+        } finally {
+            writer.close();
+        }
+
+        System.out.println("Benchmark results: " + file.getAbsolutePath());
+        return file;
+    }
+
+    private static double runIteration(Operation operation) throws Exception {
+        long operations = 0;
+        long start = System.nanoTime();
+        long elapsed;
+
+        do {
+            operation.run();
+            operations++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < ITERATION_NANOS);
+
+        return (double) elapsed / operations;
+    }
+
+    private double record(String name, String mode, String unit, Map<String, String> params, int warmups,
+                          double[] samples, Map<String, Object> secondaryMetrics) {
+        Map<String, Object> primary = metric(samples, unit);
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("benchmark", getClass().getPackage().getName() + "." + mSuite + "." + name);
+        result.put("mode", mode);
+        result.put("threads", 1);
+        result.put("forks", 0);
+        result.put("jvm", System.getProperty("java.home"));
+        result.put("jdkVersion", System.getProperty("java.version"));
+        result.put("vmName", System.getProperty("java.vm.name"));
+        result.put("libraryVersion", BuildConfig.VERSION_NAME);
+        result.put("warmupIterations", warmups);
+        result.put("measurementIterations", samples.length);
+        result.put("params", params != null ? new LinkedHashMap<>(params) : new LinkedHashMap<String, String>());
+        result.put("primaryMetric", primary);
+        result.put("secondaryMetrics", secondaryMetrics != null ? secondaryMetrics : new LinkedHashMap<String, Object>());
+        mResults.add(result);
+
+        double score = (Double) primary.get("score");
+        System.out.println(String.format("%s.%s %s: %.3f +- %.3f %s", mSuite, name, params, score, primary.get("scoreError"), unit));
+        return score;
+    }
+
+    private static Map<String, Object> metric(double[] samples, String unit) {
+        double mean = 0;
+        for (double sample : samples) mean += sample;
+        mean /= samples.length;
+
+        double variance = 0;
+        for (double sample : samples) variance += (sample - mean) * (sample - mean);
+        double error = samples.length > 1 ? Z_999 * Math.sqrt(variance / (samples.length - 1)) / Math.sqrt(samples.length) : Double.NaN;
+
+        double[] sorted = samples.clone();
+        Arrays.sort(sorted);
+        Map<String, Object> percentiles = new LinkedHashMap<>();
+        for (double percentile : new double[]{0.0, 50.0, 90.0, 99.0, 100.0}) {
+            int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+            percentiles.put(String.valueOf(percentile), sorted[Math.max(0, Math.min(sorted.length - 1, index))]);
+        }
+
+        List<Double> raw = new ArrayList<>(samples.length);
+        for (double sample : samples) raw.add(sample);
+
+        Map<String, Object> metric = new LinkedHashMap<>();
+        metric.put("score", mean);
+        metric.put("scoreError", error);
+        metric.put("scoreConfidence", Arrays.asList(mean - error, mean + error));
+        metric.put("scorePercentiles", percentiles);
+        metric.put("scoreUnit", unit);
+        metric.put("rawData", Arrays.asList(raw));
+        return metric;
+    }
+}
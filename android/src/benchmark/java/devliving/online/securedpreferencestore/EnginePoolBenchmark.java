@@ -0,0 +1,94 @@
+package devliving.online.securedpreferencestore;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.security.KeyStore;
+import java.util.Collections;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Per-call cost of getting a cipher or mac engine from {@link CryptoEnginePool} against creating one
+ * with {@code getInstance} on every call as before the pool, see {@link BenchmarkRunner}
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class EnginePoolBenchmark {
+    private final static String AES_CIPHER = "AES/GCM/NoPadding";
+    private final static String MAC_ALGORITHM = "HmacSHA256";
+    private final static Map<String, String> POOLED = Collections.singletonMap("pool", "true");
+    private final static Map<String, String> NOT_POOLED = Collections.singletonMap("pool", "false");
+
+    private static BenchmarkRunner sRunner;
+    private static EncryptionManager sManager;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        assumeTrue(BenchmarkRunner.isEnabled());
+        EncryptionManager.setKeyStoreProvider(StoreBenchmark.KEY_STORE);
+        sRunner = new BenchmarkRunner(EnginePoolBenchmark.class.getSimpleName());
+        sManager = StoreBenchmark.openStore("enginePool").getEncryptionManager();
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+        if (sRunner != null) sRunner.write();
+    }
+
+    @Test
+    public void getCipherAES() throws Exception {
+        KeyStore keyStore = StoreBenchmark.KEY_STORE.getKeyStore();
+        keyStore.load(null);
+        final SecretKey key = (SecretKey) keyStore.getKey(sManager.AES_KEY_ALIAS, null);
+
+        sRunner.measure("getCipherAES", POOLED, new BenchmarkRunner.Operation() {
+            @Override
+            public void run() throws Exception {
+                sManager.getCipherAES(null, true);
+            }
+        });
+
+        sRunner.measure("getCipherAES", NOT_POOLED, new BenchmarkRunner.Operation() {
+            @Override
+            public void run() throws Exception {
+                Cipher cipher = Cipher.getInstance(AES_CIPHER);
+                cipher.init(Cipher.ENCRYPT_MODE, key);
+            }
+        });
+    }
+
+    @Test
+    public void computeMac() throws Exception {
+        final SecretKey key = KeyGenerator.getInstance(MAC_ALGORITHM).generateKey();
+        final CryptoEnginePool pool = new CryptoEnginePool();
+        //about the size of an encrypted value with its IV
+        final byte[] data = new byte[64];
+
+        sRunner.measure("computeMac", POOLED, new BenchmarkRunner.Operation() {
+            @Override
+            public void run() throws Exception {
+                pool.mac("benchmark", MAC_ALGORITHM, key).doFinal(data);
+            }
+        });
+
+        sRunner.measure("computeMac", NOT_POOLED, new BenchmarkRunner.Operation() {
+            @Override
+            public void run() throws Exception {
+                Mac mac = Mac.getInstance(MAC_ALGORITHM);
+                mac.init(key);
+                mac.doFinal(data);
+            }
+        });
+    }
+}
@@ -0,0 +1,181 @@
+package devliving.online.securedpreferencestore;
+
+import android.util.Base64;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Value envelope encoding and decoding of {@link EnvelopeCodec} against the String.format and split
+ * code it replaced, and of the compact envelope, see {@link BenchmarkRunner}.
+ * Both legacy implementations encode with android.util.Base64.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class EnvelopeCodecBenchmark {
+    private final static int[] VALUE_SIZES = {16, 256, 4 * 1024};
+    private final static int IV_LENGTH = 12;
+    private final static int GCM_TAG_LENGTH = 16;
+    private final static String DELIMITER = "]";
+
+    private static BenchmarkRunner sRunner;
+
+    @BeforeClass
+    public static void setUpClass() {
+        assumeTrue(BenchmarkRunner.isEnabled());
+        sRunner = new BenchmarkRunner(EnvelopeCodecBenchmark.class.getSimpleName());
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+        if (sRunner != null) sRunner.write();
+    }
+
+    private static Map<String, String> params(int size, String implementation) {
+        Map<String, String> params = new LinkedHashMap<>();
+        params.put("size", String.valueOf(size));
+        params.put("implementation", implementation);
+        return params;
+    }
+
+    private static EncryptionManager.EncryptedData randomData(Random random, int size) {
+        byte[] iv = new byte[IV_LENGTH];
+        byte[] encrypted = new byte[size + GCM_TAG_LENGTH];
+        random.nextBytes(iv);
+        random.nextBytes(encrypted);
+        return new EncryptionManager.EncryptedData(iv, encrypted, null);
+    }
+
+    //region legacy implementation
+    private static String legacyToHex(byte[] data) {
+        StringBuilder sb = new StringBuilder();
+
+        for (byte b : data) {
+            sb.append(String.format("%02X", b));
+        }
+
+        return sb.toString();
+    }
+
+    private static String legacyEncode(EncryptionManager.EncryptedData data) {
+        if (data.mac != null) {
+            return Base64.encodeToString(data.IV, Base64.NO_WRAP) + DELIMITER + Base64.encodeToString(data.encryptedData, Base64.NO_WRAP)
+                    + DELIMITER + Base64.encodeToString(data.mac, Base64.NO_WRAP);
+        } else {
+            return Base64.encodeToString(data.IV, Base64.NO_WRAP) + DELIMITER + Base64.encodeToString(data.encryptedData, Base64.NO_WRAP);
+        }
+    }
+
+    private static EncryptionManager.EncryptedData legacyDecode(String text) {
+        EncryptionManager.EncryptedData result = new EncryptionManager.EncryptedData();
+        String[] parts = text.split(DELIMITER);
+        result.IV = Base64.decode(parts[0], Base64.NO_WRAP);
+        result.encryptedData = Base64.decode(parts[1], Base64.NO_WRAP);
+
+        if (parts.length > 2) {
+            result.mac = Base64.decode(parts[2], Base64.NO_WRAP);
+        }
+
+        return result;
+    }
+    //endregion
+
+    @Test
+    public void encode() throws Exception {
+        Random random = new Random(1);
+
+        for (int size : VALUE_SIZES) {
+            final EncryptionManager.EncryptedData data = randomData(random, size);
+            assertEquals(legacyEncode(data), EnvelopeCodec.encode(data));
+
+            sRunner.measure("encode", params(size, "legacy"), new BenchmarkRunner.Operation() {
+                @Override
+                public void run() {
+                    legacyEncode(data);
+                }
+            });
+
+            sRunner.measure("encode", params(size, "codec"), new BenchmarkRunner.Operation() {
+                @Override
+                public void run() {
+                    EnvelopeCodec.encode(data);
+                }
+            });
+
+            sRunner.measure("encode", params(size, "compact"), new BenchmarkRunner.Operation() {
+                @Override
+                public void run() {
+                    EnvelopeCodec.encodeCompact(data, EnvelopeCodec.ALGORITHM_AES_GCM);
+                }
+            });
+        }
+    }
+
+    @Test
+    public void decode() throws Exception {
+        Random random = new Random(2);
+
+        for (int size : VALUE_SIZES) {
+            EncryptionManager.EncryptedData data = randomData(random, size);
+            final String text = EnvelopeCodec.encode(data);
+            final String compact = EnvelopeCodec.encodeCompact(data, EnvelopeCodec.ALGORITHM_AES_GCM);
+            assertArrayEquals(legacyDecode(text).encryptedData, EnvelopeCodec.decode(text).encryptedData);
+            assertArrayEquals(data.encryptedData, EnvelopeCodec.decodeCompact(compact).encryptedData);
+
+            sRunner.measure("decode", params(size, "legacy"), new BenchmarkRunner.Operation() {
+                @Override
+                public void run() {
+                    legacyDecode(text);
+                }
+            });
+
+            sRunner.measure("decode", params(size, "codec"), new BenchmarkRunner.Operation() {
+                @Override
+                public void run() {
+                    EnvelopeCodec.decode(text);
+                }
+            });
+
+            sRunner.measure("decode", params(size, "compact"), new BenchmarkRunner.Operation() {
+                @Override
+                public void run() {
+                    EnvelopeCodec.decodeCompact(compact);
+                }
+            });
+        }
+    }
+
+    @Test
+    public void toHex() throws Exception {
+        //a SHA-256 digest, as hashed by getHashed
+        final byte[] digest = new byte[32];
+        new Random(3).nextBytes(digest);
+        assertEquals(legacyToHex(digest), EnvelopeCodec.toHex(digest));
+
+        sRunner.measure("toHex", params(digest.length, "legacy"), new BenchmarkRunner.Operation() {
+            @Override
+            public void run() {
+                legacyToHex(digest);
+            }
+        });
+
+        sRunner.measure("toHex", params(digest.length, "codec"), new BenchmarkRunner.Operation() {
+            @Override
+            public void run() {
+                EnvelopeCodec.toHex(digest);
+            }
+        });
+    }
+}
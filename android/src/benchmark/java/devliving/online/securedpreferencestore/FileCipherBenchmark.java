@@ -0,0 +1,167 @@
+package devliving.online.securedpreferencestore;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * File encryption throughput of the stream and the segmented formats, see {@link BenchmarkRunner}.
+ * File sizes in MB are set with the {@code sps.benchmark.fileSizes} property, e.g. 1,16,256,1024.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class FileCipherBenchmark {
+    private final static String FILE_SIZES_PROPERTY = "sps.benchmark.fileSizes";
+    private final static String DEFAULT_FILE_SIZES = "1,16,256";
+    private final static int MB = 1024 * 1024;
+    private final static int WARMUPS = 1;
+    private final static int RUNS = 3;
+
+    private static BenchmarkRunner sRunner;
+    private static EncryptionManager sManager;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        assumeTrue(BenchmarkRunner.isEnabled());
+        EncryptionManager.setKeyStoreProvider(StoreBenchmark.KEY_STORE);
+        sRunner = new BenchmarkRunner(FileCipherBenchmark.class.getSimpleName());
+        sManager = StoreBenchmark.openStore("files").getEncryptionManager();
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+        if (sRunner != null) sRunner.write();
+    }
+
+    private static int[] fileSizes() {
+        String[] sizes = System.getProperty(FILE_SIZES_PROPERTY, DEFAULT_FILE_SIZES).split(",");
+        int[] result = new int[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            result[i] = Integer.parseInt(sizes[i].trim());
+        }
+        return result;
+    }
+
+    private static File createPlainFile(int sizeMb) throws IOException {
+        File file = File.createTempFile("sps-plain", ".bin");
+        file.deleteOnExit();
+
+        Random random = new Random(sizeMb);
+        byte[] chunk = new byte[MB];
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            for (int i = 0; i < sizeMb; i++) {
+                random.nextBytes(chunk);
+                out.write(chunk);
+            }
+        } finally {
+            out.close();
+        }
+
+        return file;
+    }
+
+    private static File tempFile(String prefix) throws IOException {
+        File file = File.createTempFile(prefix, ".bin");
+        file.deleteOnExit();
+        return file;
+    }
+
+    @Test
+    public void streams() throws Exception {
+        for (int sizeMb : fileSizes()) {
+            final File plain = createPlainFile(sizeMb);
+            final File encrypted = tempFile("sps-encrypted");
+            final File decrypted = tempFile("sps-decrypted");
+
+            try {
+                sRunner.measureSingleShot("encryptStream", Collections.singletonMap("sizeMb", String.valueOf(sizeMb)), WARMUPS, RUNS, null, new BenchmarkRunner.Operation() {
+                    @Override
+                    public void run() throws Exception {
+                        BufferedInputStream in = new BufferedInputStream(new FileInputStream(plain));
+                        BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(encrypted));
+                        sManager.tryEncrypt(in, out);
+                    }
+                }, (long) sizeMb * MB);
+
+                sRunner.measureSingleShot("decryptStream", Collections.singletonMap("sizeMb", String.valueOf(sizeMb)), WARMUPS, RUNS, null, new BenchmarkRunner.Operation() {
+                    @Override
+                    public void run() throws Exception {
+                        BufferedInputStream in = new BufferedInputStream(new FileInputStream(encrypted));
+                        BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(decrypted));
+                        sManager.tryDecrypt(in, out);
+                    }
+                }, (long) sizeMb * MB);
+
+                assertEquals(plain.length(), decrypted.length());
+            } finally {
+                plain.delete();
+                encrypted.delete();
+                decrypted.delete();
+            }
+        }
+    }
+
+    @Test
+    public void segmented() throws Exception {
+        for (int sizeMb : fileSizes()) {
+            final File plain = createPlainFile(sizeMb);
+            final File encrypted = tempFile("sps-segmented");
+            final File decrypted = tempFile("sps-decrypted");
+
+            try {
+                sRunner.measureSingleShot("encryptSegmented", Collections.singletonMap("sizeMb", String.valueOf(sizeMb)), WARMUPS, RUNS, null, new BenchmarkRunner.Operation() {
+                    @Override
+                    public void run() throws Exception {
+                        transform(plain, encrypted, true);
+                    }
+                }, (long) sizeMb * MB);
+
+                sRunner.measureSingleShot("decryptSegmented", Collections.singletonMap("sizeMb", String.valueOf(sizeMb)), WARMUPS, RUNS, null, new BenchmarkRunner.Operation() {
+                    @Override
+                    public void run() throws Exception {
+                        transform(encrypted, decrypted, false);
+                    }
+                }, (long) sizeMb * MB);
+
+                assertEquals(plain.length(), decrypted.length());
+            } finally {
+                plain.delete();
+                encrypted.delete();
+                decrypted.delete();
+            }
+        }
+    }
+
+    private static void transform(File source, File target, boolean encrypt) throws Exception {
+        RandomAccessFile in = new RandomAccessFile(source, "r");
+        RandomAccessFile out = new RandomAccessFile(target, "rw");
+        try {
+            out.setLength(0);
+            FileChannel inChannel = in.getChannel();
+            FileChannel outChannel = out.getChannel();
+            if (encrypt) sManager.encryptSegmented(inChannel, outChannel);
+            else sManager.decryptSegmented(inChannel, outChannel);
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+}
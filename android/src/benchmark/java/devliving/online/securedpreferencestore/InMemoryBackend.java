@@ -0,0 +1,107 @@
+package devliving.online.securedpreferencestore;
+
+import android.content.Context;
+import androidx.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Backend that keeps the values in memory only, so benchmarks measure the encryption and the store
+ * without disk I/O. Backends stay open for the lifetime of the process, reopening a name returns the
+ * same values.
+ */
+public class InMemoryBackend implements StorageBackend {
+    private final static Map<String, InMemoryBackend> sOpened = new HashMap<>();
+
+    public final static Factory FACTORY = new Factory() {
+        @Override
+        public StorageBackend open(Context context, String name) {
+            synchronized (sOpened) {
+                InMemoryBackend backend = sOpened.get(name);
+                if (backend == null) {
+                    backend = new InMemoryBackend();
+                    sOpened.put(name, backend);
+                }
+                return backend;
+            }
+        }
+
+        @Override
+        public boolean delete(Context context, String name) {
+            synchronized (sOpened) {
+                sOpened.remove(name);
+            }
+            return true;
+        }
+    };
+
+    private final Map<String, Object> mValues = new HashMap<>();
+
+    @Nullable
+    @Override
+    public synchronized Object get(String key) {
+        return mValues.get(key);
+    }
+
+    @Override
+    public synchronized boolean contains(String key) {
+        return mValues.containsKey(key);
+    }
+
+    @Override
+    public synchronized Map<String, ?> getAll() {
+        return new HashMap<>(mValues);
+    }
+
+    @Override
+    public Transaction beginTransaction() {
+        return new Transaction() {
+            private final Map<String, Object> mChanges = new LinkedHashMap<>();
+            private boolean mClear = false;
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public Transaction put(String key, @Nullable Object value) {
+                if (value instanceof Set) {
+                    value = Collections.unmodifiableSet(new HashSet<>((Set<String>) value));
+                }
+                mChanges.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Transaction remove(String key) {
+                return put(key, null);
+            }
+
+            @Override
+            public Transaction clear() {
+                mClear = true;
+                return this;
+            }
+
+            @Override
+            public boolean commit() {
+                synchronized (InMemoryBackend.this) {
+                    if (mClear) mValues.clear();
+
+                    for (Map.Entry<String, Object> change : mChanges.entrySet()) {
+                        if (change.getValue() != null) mValues.put(change.getKey(), change.getValue());
+                        else mValues.remove(change.getKey());
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public void apply() {
+                commit();
+            }
+        };
+    }
+}
@@ -0,0 +1,353 @@
+package devliving.online.securedpreferencestore;
+
+import android.os.Build;
+import android.security.KeyPairGeneratorSpec;
+import android.security.keystore.KeyGenParameterSpec;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.Key;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.KeyStoreSpi;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.SignatureException;
+import java.security.cert.Certificate;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.KeyGeneratorSpi;
+import javax.crypto.SecretKey;
+
+/**
+ * Keys generated with the regular JCE providers and kept in memory, for running and load testing the
+ * encryption, the recovery handling and the biometric key flows on a JVM. Keys aren't protected in any
+ * way and are lost with the provider instance, it is part of the test sources only.
+ *
+ * Keystore instances of a provider share its keys. Key restrictions of the specs, like user
+ * authentication, aren't enforced. Cipher providers stay the same, so compat mode still needs the
+ * Android providers for its RSA and AES ciphers.
+ */
+public class InMemoryKeyStoreProvider implements KeyStoreProvider {
+    private final static String TYPE = "InMemory";
+    private final static int DEFAULT_AES_KEY_SIZE = 256;
+    private final static int DEFAULT_RSA_KEY_SIZE = 2048;
+
+    private final static Provider PROVIDER = new Provider("InMemoryKeyStore", 1.0, "Software keys kept in memory") {
+    };
+
+    private final Map<String, Entry> mEntries = new ConcurrentHashMap<>();
+
+    @Override
+    public KeyStore getKeyStore() {
+        return new KeyStore(new InMemoryKeyStore(), PROVIDER, TYPE) {
+        };
+    }
+
+    @Override
+    public KeyGenerator getKeyGenerator(String algorithm) throws NoSuchAlgorithmException {
+        //fails early for algorithms the JCE can't generate
+        KeyGenerator.getInstance(algorithm);
+
+        return new KeyGenerator(new InMemoryKeyGenerator(algorithm), PROVIDER, algorithm) {
+        };
+    }
+
+    @Override
+    public KeyPairGenerator getKeyPairGenerator(String algorithm) throws NoSuchAlgorithmException {
+        KeyPairGenerator.getInstance(algorithm);
+
+        return new InMemoryKeyPairGenerator(algorithm);
+    }
+
+    /**
+     * Deletes all the keys, e.g. to simulate a keystore reset before recovery
+     */
+    public void clear() {
+        mEntries.clear();
+    }
+
+    private static String aliasOf(AlgorithmParameterSpec params) throws InvalidAlgorithmParameterException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && params instanceof KeyGenParameterSpec) {
+            return ((KeyGenParameterSpec) params).getKeystoreAlias();
+        }
+        if (params instanceof KeyPairGeneratorSpec) {
+            return ((KeyPairGeneratorSpec) params).getKeystoreAlias();
+        }
+
+        throw new InvalidAlgorithmParameterException("A KeyGenParameterSpec or KeyPairGeneratorSpec is required");
+    }
+
+    private static int keySizeOf(AlgorithmParameterSpec params, int defaultSize) {
+        int size = -1;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && params instanceof KeyGenParameterSpec) {
+            size = ((KeyGenParameterSpec) params).getKeySize();
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && params instanceof KeyPairGeneratorSpec) {
+            size = ((KeyPairGeneratorSpec) params).getKeySize();
+        }
+
+        return size > 0 ? size : defaultSize;
+    }
+
+    private final static class Entry {
+        final KeyStore.Entry entry;
+        final Date created = new Date();
+
+        Entry(KeyStore.Entry entry) {
+            this.entry = entry;
+        }
+    }
+
+    private class InMemoryKeyStore extends KeyStoreSpi {
+        @Override
+        public Key engineGetKey(String alias, char[] password) {
+            Entry entry = mEntries.get(alias);
+            if (entry == null) return null;
+
+            if (entry.entry instanceof KeyStore.SecretKeyEntry) {
+                return ((KeyStore.SecretKeyEntry) entry.entry).getSecretKey();
+            }
+            return ((KeyStore.PrivateKeyEntry) entry.entry).getPrivateKey();
+        }
+
+        @Override
+        public KeyStore.Entry engineGetEntry(String alias, KeyStore.ProtectionParameter protParam) {
+            Entry entry = mEntries.get(alias);
+            return entry != null ? entry.entry : null;
+        }
+
+        @Override
+        public boolean engineEntryInstanceOf(String alias, Class<? extends KeyStore.Entry> entryClass) {
+            Entry entry = mEntries.get(alias);
+            return entry != null && entryClass.isInstance(entry.entry);
+        }
+
+        @Override
+        public Certificate[] engineGetCertificateChain(String alias) {
+            Entry entry = mEntries.get(alias);
+            if (entry == null || !(entry.entry instanceof KeyStore.PrivateKeyEntry)) return null;
+
+            return ((KeyStore.PrivateKeyEntry) entry.entry).getCertificateChain();
+        }
+
+        @Override
+        public Certificate engineGetCertificate(String alias) {
+            Certificate[] chain = engineGetCertificateChain(alias);
+            return chain != null ? chain[0] : null;
+        }
+
+        @Override
+        public Date engineGetCreationDate(String alias) {
+            Entry entry = mEntries.get(alias);
+            return entry != null ? entry.created : null;
+        }
+
+        @Override
+        public void engineSetKeyEntry(String alias, Key key, char[] password, Certificate[] chain) {
+            if (key instanceof SecretKey) {
+                mEntries.put(alias, new Entry(new KeyStore.SecretKeyEntry((SecretKey) key)));
+            } else if (key instanceof PrivateKey) {
+                mEntries.put(alias, new Entry(new KeyStore.PrivateKeyEntry((PrivateKey) key, chain)));
+            } else {
+                throw new UnsupportedOperationException("Unsupported key type: " + key.getClass());
+            }
+        }
+
+        @Override
+        public void engineSetKeyEntry(String alias, byte[] key, Certificate[] chain) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void engineSetCertificateEntry(String alias, Certificate cert) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void engineDeleteEntry(String alias) {
+            mEntries.remove(alias);
+        }
+
+        @Override
+        public Enumeration<String> engineAliases() {
+            return Collections.enumeration(mEntries.keySet());
+        }
+
+        @Override
+        public boolean engineContainsAlias(String alias) {
+            return mEntries.containsKey(alias);
+        }
+
+        @Override
+        public int engineSize() {
+            return mEntries.size();
+        }
+
+        @Override
+        public boolean engineIsKeyEntry(String alias) {
+            return mEntries.containsKey(alias);
+        }
+
+        @Override
+        public boolean engineIsCertificateEntry(String alias) {
+            return false;
+        }
+
+        @Override
+        public String engineGetCertificateAlias(Certificate cert) {
+            for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+                if (entry.getValue().entry instanceof KeyStore.PrivateKeyEntry
+                        && cert.equals(((KeyStore.PrivateKeyEntry) entry.getValue().entry).getCertificate())) {
+                    return entry.getKey();
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public void engineStore(OutputStream stream, char[] password) {
+            throw new UnsupportedOperationException("Keys are kept in memory only");
+        }
+
+        @Override
+        public void engineLoad(InputStream stream, char[] password) {
+            //keys are kept by the provider
+        }
+    }
+
+    private class InMemoryKeyGenerator extends KeyGeneratorSpi {
+        private final String mAlgorithm;
+        private String mAlias;
+        private int mKeySize;
+        private SecureRandom mRandom;
+
+        InMemoryKeyGenerator(String algorithm) {
+            mAlgorithm = algorithm;
+        }
+
+        @Override
+        protected void engineInit(SecureRandom random) {
+            throw new UnsupportedOperationException("A KeyGenParameterSpec is required");
+        }
+
+        @Override
+        protected void engineInit(AlgorithmParameterSpec params, SecureRandom random) throws InvalidAlgorithmParameterException {
+            mAlias = aliasOf(params);
+            mKeySize = keySizeOf(params, DEFAULT_AES_KEY_SIZE);
+            mRandom = random != null ? random : new SecureRandom();
+        }
+
+        @Override
+        protected void engineInit(int keySize, SecureRandom random) {
+            throw new UnsupportedOperationException("A KeyGenParameterSpec is required");
+        }
+
+        @Override
+        protected SecretKey engineGenerateKey() {
+            if (mAlias == null) {
+                throw new IllegalStateException("Not initialized");
+            }
+
+            try {
+                KeyGenerator generator = KeyGenerator.getInstance(mAlgorithm);
+                generator.init(mKeySize, mRandom);
+                SecretKey key = generator.generateKey();
+
+                mEntries.put(mAlias, new Entry(new KeyStore.SecretKeyEntry(key)));
+                return key;
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private class InMemoryKeyPairGenerator extends KeyPairGenerator {
+        private String mAlias;
+        private int mKeySize;
+        private SecureRandom mRandom;
+
+        InMemoryKeyPairGenerator(String algorithm) {
+            super(algorithm);
+        }
+
+        @Override
+        public void initialize(int keysize, SecureRandom random) {
+            throw new UnsupportedOperationException("A KeyPairGeneratorSpec or KeyGenParameterSpec is required");
+        }
+
+        @Override
+        public void initialize(AlgorithmParameterSpec params, SecureRandom random) throws InvalidAlgorithmParameterException {
+            mAlias = aliasOf(params);
+            mKeySize = keySizeOf(params, DEFAULT_RSA_KEY_SIZE);
+            mRandom = random != null ? random : new SecureRandom();
+        }
+
+        @Override
+        public KeyPair generateKeyPair() {
+            if (mAlias == null) {
+                throw new IllegalStateException("Not initialized");
+            }
+
+            try {
+                KeyPairGenerator generator = KeyPairGenerator.getInstance(getAlgorithm());
+                generator.initialize(mKeySize, mRandom);
+                KeyPair pair = generator.generateKeyPair();
+
+                Certificate[] chain = {new PublicKeyCertificate(pair.getPublic())};
+                mEntries.put(mAlias, new Entry(new KeyStore.PrivateKeyEntry(pair.getPrivate(), chain)));
+                return pair;
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Holds the public key of a pair like the self-signed certificate of the AndroidKeyStore, without
+     * a signature
+     */
+    private final static class PublicKeyCertificate extends Certificate {
+        private final PublicKey mPublicKey;
+
+        PublicKeyCertificate(PublicKey publicKey) {
+            super("X.509");
+            mPublicKey = publicKey;
+        }
+
+        @Override
+        public byte[] getEncoded() {
+            return mPublicKey.getEncoded();
+        }
+
+        @Override
+        public void verify(PublicKey key) throws SignatureException {
+            throw new SignatureException("In-memory certificates aren't signed");
+        }
+
+        @Override
+        public void verify(PublicKey key, String sigProvider) throws SignatureException {
+            throw new SignatureException("In-memory certificates aren't signed");
+        }
+
+        @Override
+        public String toString() {
+            return "In-memory certificate of " + mPublicKey.getAlgorithm() + " public key";
+        }
+
+        @Override
+        public PublicKey getPublicKey() {
+            return mPublicKey;
+        }
+    }
+}
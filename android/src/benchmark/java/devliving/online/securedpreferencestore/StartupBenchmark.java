@@ -0,0 +1,95 @@
+package devliving.online.securedpreferencestore;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Startup latency: opening a store with new and existing keys, and the first read after opening with
+ * and without {@link SecuredPreferenceStore#prewarm()}. Stores use the data key like SecurityV2Module.
+ * See {@link BenchmarkRunner}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class StartupBenchmark {
+    private final static String STORE_NAME = "startup";
+    private final static int WARMUPS = 5;
+    private final static int RUNS = 20;
+
+    private static BenchmarkRunner sRunner;
+
+    private SecuredPreferenceStore mStore;
+
+    @BeforeClass
+    public static void setUpClass() {
+        assumeTrue(BenchmarkRunner.isEnabled());
+        EncryptionManager.setKeyStoreProvider(StoreBenchmark.KEY_STORE);
+        sRunner = new BenchmarkRunner(StartupBenchmark.class.getSimpleName());
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+        if (sRunner != null) sRunner.write();
+    }
+
+    private static SecuredPreferenceStore openStore() throws Exception {
+        SecuredPreferenceStore store = StoreBenchmark.openStore(STORE_NAME);
+        store.getEncryptionManager().setDataKeyEnabled(true);
+        return store;
+    }
+
+    @Test
+    public void open() throws Exception {
+        Map<String, String> newKeys = Collections.singletonMap("keys", "new");
+        sRunner.measureSingleShot("open", newKeys, WARMUPS, RUNS, new BenchmarkRunner.Operation() {
+            @Override
+            public void run() {
+                StoreBenchmark.KEY_STORE.clear();
+                InMemoryBackend.FACTORY.delete(RuntimeEnvironment.application, STORE_NAME);
+            }
+        }, new BenchmarkRunner.Operation() {
+            @Override
+            public void run() throws Exception {
+                openStore();
+            }
+        }, 0);
+
+        openStore();
+        sRunner.measureSingleShot("open", Collections.singletonMap("keys", "existing"), WARMUPS, RUNS, null, new BenchmarkRunner.Operation() {
+            @Override
+            public void run() throws Exception {
+                openStore();
+            }
+        }, 0);
+    }
+
+    @Test
+    public void firstRead() throws Exception {
+        openStore().edit().putString("key", "value").commit();
+
+        for (final boolean prewarm : new boolean[]{false, true}) {
+            sRunner.measureSingleShot("firstRead", Collections.singletonMap("prewarm", String.valueOf(prewarm)), WARMUPS, RUNS, new BenchmarkRunner.Operation() {
+                @Override
+                public void run() throws Exception {
+                    mStore = openStore();
+                    if (prewarm) mStore.prewarm();
+                }
+            }, new BenchmarkRunner.Operation() {
+                @Override
+                public void run() {
+                    assertEquals("value", mStore.getString("key", null));
+                }
+            }, 0);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package devliving.online.securedpreferencestore;
+
+import android.content.SharedPreferences;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Value reads and writes of a store over an in-memory backend, see {@link BenchmarkRunner}
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class StoreBenchmark {
+    private final static int[] VALUE_SIZES = {16, 256, 4 * 1024, 64 * 1024};
+    private final static int[] KEY_COUNTS = {10, 100, 1000, 10000};
+
+    /**
+     * Software keys shared by the benchmarks, keystore operations are much faster than on a device so
+     * the benchmarks measure the cost of the store around them
+     */
+    final static InMemoryKeyStoreProvider KEY_STORE = new InMemoryKeyStoreProvider();
+
+    private static BenchmarkRunner sRunner;
+
+    @BeforeClass
+    public static void setUpClass() {
+        assumeTrue(BenchmarkRunner.isEnabled());
+        EncryptionManager.setKeyStoreProvider(KEY_STORE);
+        sRunner = new BenchmarkRunner(StoreBenchmark.class.getSimpleName());
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+        if (sRunner != null) sRunner.write();
+    }
+
+    static SecuredPreferenceStore openStore(String name) throws Exception {
+        return SecuredPreferenceStore.open(RuntimeEnvironment.application, name, "benchmark", "benchmark.seed".getBytes(),
+                new DefaultRecoveryHandler(), InMemoryBackend.FACTORY);
+    }
+
+    static String randomString(Random random, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(chars);
+    }
+
+    @Test
+    public void putString() throws Exception {
+        final SecuredPreferenceStore store = openStore("putString");
+        Random random = new Random(1);
+
+        for (int size : VALUE_SIZES) {
+            final String value = randomString(random, size);
+            sRunner.measure("putString", Collections.singletonMap("size", String.valueOf(size)), new BenchmarkRunner.Operation() {
+                @Override
+                public void run() {
+                    store.edit().putString("key", value).commit();
+                }
+            });
+        }
+    }
+
+    @Test
+    public void getString() throws Exception {
+        final SecuredPreferenceStore store = openStore("getString");
+        Random random = new Random(2);
+
+        for (int size : VALUE_SIZES) {
+            final String value = randomString(random, size);
+            store.edit().putString("key", value).commit();
+            assertEquals(value, store.getString("key", null));
+
+            sRunner.measure("getString", Collections.singletonMap("size", String.valueOf(size)), new BenchmarkRunner.Operation() {
+                @Override
+                public void run() {
+                    store.getString("key", null);
+                }
+            });
+        }
+    }
+
+    @Test
+    public void getAll() throws Exception {
+        Random random = new Random(3);
+
+        for (int count : KEY_COUNTS) {
+            final SecuredPreferenceStore store = openStore("getAll" + count);
+            SharedPreferences.Editor editor = store.edit();
+            for (int i = 0; i < count; i++) {
+                editor.putString("key" + i, randomString(random, 64));
+            }
+            editor.commit();
+
+            sRunner.measure("getAll", Collections.singletonMap("keys", String.valueOf(count)), new BenchmarkRunner.Operation() {
+                @Override
+                public void run() {
+                    Map<String, ?> all = store.getAll();
+                    if (all.isEmpty()) throw new AssertionError();
+                }
+            });
+        }
+    }
+
+    @Test
+    public void getStrings() throws Exception {
+        Random random = new Random(4);
+
+        for (int count : KEY_COUNTS) {
+            final SecuredPreferenceStore store = openStore("getStrings" + count);
+            final List<String> keys = new ArrayList<>(count);
+            SharedPreferences.Editor editor = store.edit();
+            for (int i = 0; i < count; i++) {
+                keys.add("key" + i);
+                editor.putString("key" + i, randomString(random, 64));
+            }
+            editor.commit();
+
+            //same keys read one by one, the baseline of the batch
+            sRunner.measure("getStringsLoop", Collections.singletonMap("keys", String.valueOf(count)), new BenchmarkRunner.Operation() {
+                @Override
+                public void run() {
+                    for (String key : keys) {
+                        if (store.getString(key, null) == null) throw new AssertionError();
+                    }
+                }
+            });
+
+            sRunner.measure("getStrings", Collections.singletonMap("keys", String.valueOf(count)), new BenchmarkRunner.Operation() {
+                @Override
+                public void run() {
+                    if (store.getStrings(keys).getValues().size() != keys.size()) throw new AssertionError();
+                }
+            });
+        }
+    }
+
+    @Test
+    public void getHashed() throws Exception {
+        sRunner.measure("getHashed", Collections.singletonMap("key", "repeated"), new BenchmarkRunner.Operation() {
+            @Override
+            public void run() throws Exception {
+                EncryptionManager.getHashed("benchmark_key");
+            }
+        });
+
+        //new keys miss the index of hashed keys
+        sRunner.measure("getHashed", Collections.singletonMap("key", "unique"), new BenchmarkRunner.Operation() {
+            private long mCounter = 0;
+
+            @Override
+            public void run() throws Exception {
+                EncryptionManager.getHashed("benchmark_key_" + mCounter++);
+            }
+        });
+    }
+}
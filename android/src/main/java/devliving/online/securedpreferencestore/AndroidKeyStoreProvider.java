@@ -0,0 +1,34 @@
+package devliving.online.securedpreferencestore;
+
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+
+import javax.crypto.KeyGenerator;
+
+/**
+ * Keys kept in the AndroidKeyStore, see {@link KeyStoreProvider#ANDROID}
+ */
+public final class AndroidKeyStoreProvider implements KeyStoreProvider {
+    public final static String PROVIDER = "AndroidKeyStore";
+
+    AndroidKeyStoreProvider() {
+    }
+
+    @Override
+    public KeyStore getKeyStore() throws KeyStoreException {
+        return KeyStore.getInstance(PROVIDER);
+    }
+
+    @Override
+    public KeyGenerator getKeyGenerator(String algorithm) throws NoSuchAlgorithmException, NoSuchProviderException {
+        return KeyGenerator.getInstance(algorithm, PROVIDER);
+    }
+
+    @Override
+    public KeyPairGenerator getKeyPairGenerator(String algorithm) throws NoSuchAlgorithmException, NoSuchProviderException {
+        return KeyPairGenerator.getInstance(algorithm, PROVIDER);
+    }
+}
@@ -0,0 +1,453 @@
+package devliving.online.securedpreferencestore;
+
+import android.content.Context;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Backend that appends every transaction to a log file instead of rewriting the whole file, so the
+ * cost of a write depends on the size of the changed values only. All the entries are kept in memory.
+ *
+ * Each record holds one transaction, framed as its length, the payload and a CRC32 of the payload.
+ * A record that is truncated or fails the checksum, e.g. after a crash in the middle of a write, is
+ * dropped with everything after it when the log is loaded. A transaction that doesn't fit a record is
+ * rejected. Once the log grows past twice the size of the live entries it is compacted: the entries are
+ * written to a new file that replaces the log, split into as many records as needed.
+ */
+public class AppendOnlyLogBackend implements StorageBackend {
+    private final static String DIRECTORY_NAME = "sps_log";
+    private final static String FILE_SUFFIX = ".log";
+    private final static String TEMP_SUFFIX = ".tmp";
+
+    private final static int MAGIC = 0x5350534C; //"SPSL"
+    private final static int VERSION = 1;
+    private final static int HEADER_LENGTH = 5;
+    private final static int RECORD_OVERHEAD = 8;
+    private final static int MAX_RECORD_LENGTH = 64 * 1024 * 1024;
+    //estimated entry bytes per compacted record, leaves room for entries that aren't ASCII
+    private final static long COMPACTION_RECORD_SIZE = MAX_RECORD_LENGTH / 4;
+    private final static long MIN_COMPACTION_SIZE = 16 * 1024;
+
+    private final static byte FLAG_CLEAR = 1;
+
+    private final static Map<String, AppendOnlyLogBackend> sOpened = new HashMap<>();
+
+    public final static Factory FACTORY = new Factory() {
+        @Override
+        public StorageBackend open(Context context, String name) throws IOException {
+            return AppendOnlyLogBackend.open(fileOf(context, name));
+        }
+
+        @Override
+        public boolean delete(Context context, String name) {
+            File file = fileOf(context, name);
+
+            synchronized (sOpened) {
+                AppendOnlyLogBackend backend = sOpened.remove(file.getAbsolutePath());
+                if (backend != null) backend.close();
+            }
+
+            return !file.exists() || file.delete();
+        }
+    };
+
+    private final File mFile;
+    private final Object mLock = new Object();
+    private final Map<String, Object> mValues = new HashMap<>();
+
+    private FileOutputStream mOut;
+    private long mLogSize;
+    private long mLiveSize;
+
+    private AppendOnlyLogBackend(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Opens the log at the given path, the same instance is returned while the log is open
+     * @param file log file, created on the first write
+     * @return the backend
+     * @throws IOException if the log can't be read
+     */
+    public static AppendOnlyLogBackend open(File file) throws IOException {
+        String path = file.getAbsolutePath();
+
+        synchronized (sOpened) {
+            AppendOnlyLogBackend backend = sOpened.get(path);
+            if (backend == null) {
+                backend = new AppendOnlyLogBackend(file);
+                backend.load();
+                sOpened.put(path, backend);
+            }
+            return backend;
+        }
+    }
+
+    private static File fileOf(Context context, String name) {
+        return new File(new File(context.getFilesDir(), DIRECTORY_NAME), name + FILE_SUFFIX);
+    }
+
+    @Nullable
+    @Override
+    public Object get(String key) {
+        synchronized (mLock) {
+            return mValues.get(key);
+        }
+    }
+
+    @Override
+    public boolean contains(String key) {
+        synchronized (mLock) {
+            return mValues.containsKey(key);
+        }
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        synchronized (mLock) {
+            return new HashMap<>(mValues);
+        }
+    }
+
+    @Override
+    public Transaction beginTransaction() {
+        return new LogTransaction();
+    }
+
+    private void load() throws IOException {
+        if (!mFile.exists()) return;
+
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            long length = file.length();
+            if (length < HEADER_LENGTH) {
+                Logger.w("Discarding an incomplete log " + mFile);
+                file.setLength(0);
+                return;
+            }
+
+            if (file.readInt() != MAGIC) {
+                throw new IOException("Not a store log: " + mFile);
+            }
+            int version = file.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported log version " + version);
+            }
+
+            long position = HEADER_LENGTH;
+            CRC32 crc = new CRC32();
+
+            while (position + RECORD_OVERHEAD <= length) {
+                int recordLength = file.readInt();
+                if (recordLength < 0 || recordLength > MAX_RECORD_LENGTH || position + RECORD_OVERHEAD + recordLength > length) break;
+
+                byte[] payload = new byte[recordLength];
+                file.readFully(payload);
+
+                crc.reset();
+                crc.update(payload, 0, payload.length);
+                if ((int) crc.getValue() != file.readInt()) break;
+
+                try {
+                    applyRecord(payload);
+                } catch (IOException e) {
+                    Logger.e(e);
+                    break;
+                }
+
+                position += RECORD_OVERHEAD + recordLength;
+            }
+
+            if (position < length) {
+                Logger.w("Truncating the log " + mFile + " to the last valid record at " + position);
+                file.setLength(position);
+            }
+
+            mLogSize = position;
+        } finally {
+            file.close();
+        }
+    }
+
+    private void applyRecord(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        Map<String, Object> changes = new LinkedHashMap<>();
+
+        boolean clear = (in.readByte() & FLAG_CLEAR) != 0;
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            byte type = in.readByte();
+            String key = LogRecordCodec.readString(in);
+            changes.put(key, LogRecordCodec.readValue(in, type));
+        }
+
+        apply(clear, changes);
+    }
+
+    /**
+     * Applies changes to the in-memory entries, null values remove the keys
+     */
+    private void apply(boolean clear, Map<String, Object> changes) {
+        if (clear) {
+            mValues.clear();
+            mLiveSize = 0;
+        }
+
+        for (Map.Entry<String, Object> change : changes.entrySet()) {
+            Object previous = change.getValue() != null
+                    ? mValues.put(change.getKey(), change.getValue())
+                    : mValues.remove(change.getKey());
+
+            if (previous != null) mLiveSize -= LogRecordCodec.entrySize(change.getKey(), previous);
+            if (change.getValue() != null) mLiveSize += LogRecordCodec.entrySize(change.getKey(), change.getValue());
+        }
+    }
+
+    private boolean write(boolean clear, Map<String, Object> changes, boolean sync) {
+        synchronized (mLock) {
+            try {
+                byte[] record = encodeRecord(clear, changes);
+                if (record.length - RECORD_OVERHEAD > MAX_RECORD_LENGTH) {
+                    //it would be dropped as corrupt when the log is loaded
+                    Logger.e("Transaction of " + record.length + " bytes is too large for the log " + mFile);
+                    return false;
+                }
+
+                FileOutputStream out = output();
+                out.write(record);
+                if (sync) out.getFD().sync();
+                mLogSize += record.length;
+
+                apply(clear, changes);
+            } catch (IOException e) {
+                Logger.e(e);
+                truncateTo(mLogSize);
+                closeOutput();
+                return false;
+            }
+
+            if (mLogSize > MIN_COMPACTION_SIZE && mLogSize > 2 * (HEADER_LENGTH + RECORD_OVERHEAD + mLiveSize)) {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    //the log is still valid, compaction is retried on the next write
+                    Logger.e("Log compaction failed", e);
+                }
+            }
+
+            return true;
+        }
+    }
+
+    private void compact() throws IOException {
+        File temp = new File(mFile.getPath() + TEMP_SUFFIX);
+
+        FileOutputStream out = new FileOutputStream(temp);
+        long size;
+        try {
+            byte[] header = header();
+            out.write(header);
+            size = header.length;
+
+            //the first record clears the entries, the following ones add to it
+            Map<String, Object> entries = new LinkedHashMap<>();
+            long entriesSize = 0;
+            boolean first = true;
+            for (Map.Entry<String, Object> entry : mValues.entrySet()) {
+                long entrySize = LogRecordCodec.entrySize(entry.getKey(), entry.getValue());
+                if (!entries.isEmpty() && entriesSize + entrySize > COMPACTION_RECORD_SIZE) {
+                    size += writeCompactedRecord(out, first, entries);
+                    first = false;
+                    entries.clear();
+                    entriesSize = 0;
+                }
+
+                entries.put(entry.getKey(), entry.getValue());
+                entriesSize += entrySize;
+            }
+            if (first || !entries.isEmpty()) {
+                size += writeCompactedRecord(out, first, entries);
+            }
+
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        closeOutput();
+        if (!temp.renameTo(mFile)) {
+            temp.delete();
+            throw new IOException("Unable to replace the log " + mFile);
+        }
+
+        mLogSize = size;
+        Logger.d("Compacted the log " + mFile + " to " + size + " bytes");
+    }
+
+    private int writeCompactedRecord(FileOutputStream out, boolean clear, Map<String, Object> entries) throws IOException {
+        byte[] record = encodeRecord(clear, entries);
+        if (record.length - RECORD_OVERHEAD > MAX_RECORD_LENGTH) {
+            throw new IOException("Compacted record of " + record.length + " bytes is too large");
+        }
+
+        out.write(record);
+        return record.length;
+    }
+
+    private FileOutputStream output() throws IOException {
+        if (mOut == null) {
+            File directory = mFile.getParentFile();
+            if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Unable to create the log directory " + directory);
+            }
+
+            boolean empty = mLogSize == 0;
+            mOut = new FileOutputStream(mFile, !empty);
+            if (empty) {
+                mOut.write(header());
+                mLogSize = HEADER_LENGTH;
+            } else if (mOut.getChannel().size() > mLogSize) {
+                //a torn record the failed write couldn't truncate
+                mOut.getChannel().truncate(mLogSize);
+            }
+        }
+
+        return mOut;
+    }
+
+    /**
+     * Drops the bytes of a record that was written partly, so the following records are appended
+     * right after the last complete one
+     */
+    private void truncateTo(long size) {
+        if (mOut == null) return;
+
+        try {
+            mOut.getChannel().truncate(size);
+        } catch (IOException e) {
+            //retried when the output is opened again
+            Logger.e(e);
+        }
+    }
+
+    private void closeOutput() {
+        if (mOut != null) {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                Logger.e(e);
+            }
+            mOut = null;
+        }
+    }
+
+    /**
+     * Closes the log, the next {@link #open(File)} of its file loads it again
+     */
+    void close() {
+        synchronized (sOpened) {
+            String path = mFile.getAbsolutePath();
+            if (sOpened.get(path) == this) sOpened.remove(path);
+        }
+
+        synchronized (mLock) {
+            closeOutput();
+            mValues.clear();
+            mLogSize = mLiveSize = 0;
+        }
+    }
+
+    private static byte[] header() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_LENGTH);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encodeRecord(boolean clear, Map<String, Object> changes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeInt(0); //length, filled in below
+        out.writeByte(clear ? FLAG_CLEAR : 0);
+        out.writeInt(changes.size());
+        for (Map.Entry<String, Object> change : changes.entrySet()) {
+            LogRecordCodec.writeEntry(out, change.getKey(), change.getValue());
+        }
+        out.writeInt(0); //checksum, filled in below
+
+        byte[] record = bytes.toByteArray();
+        int length = record.length - RECORD_OVERHEAD;
+
+        CRC32 crc = new CRC32();
+        crc.update(record, 4, length);
+        putInt(record, 0, length);
+        putInt(record, record.length - 4, (int) crc.getValue());
+
+        return record;
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private class LogTransaction implements Transaction {
+        private final Map<String, Object> mChanges = new LinkedHashMap<>();
+        private boolean mClear = false;
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Transaction put(String key, @Nullable Object value) {
+            if (value instanceof Set) {
+                value = Collections.unmodifiableSet(new HashSet<>((Set<String>) value));
+            }
+            synchronized (this) {
+                mChanges.put(key, value);
+            }
+            return this;
+        }
+
+        @Override
+        public Transaction remove(String key) {
+            return put(key, null);
+        }
+
+        @Override
+        public synchronized Transaction clear() {
+            mClear = true;
+            return this;
+        }
+
+        @Override
+        public synchronized boolean commit() {
+            return write(mClear, mChanges, true);
+        }
+
+        /**
+         * Same as {@link #commit()} without waiting for the data to reach the disk
+         */
+        @Override
+        public synchronized void apply() {
+            write(mClear, mChanges, false);
+        }
+    }
+}
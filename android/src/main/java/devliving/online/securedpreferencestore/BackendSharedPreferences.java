@@ -0,0 +1,189 @@
+package devliving.online.securedpreferencestore;
+
+import android.content.SharedPreferences;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * SharedPreferences view of a {@link StorageBackend}, so the encryption layer, recovery handlers and
+ * migrations work the same over any backend. Change listeners are weakly referenced like with regular
+ * preferences, but they are called on the thread that committed the change.
+ */
+class BackendSharedPreferences implements SharedPreferences {
+    private final StorageBackend mBackend;
+    private final Map<OnSharedPreferenceChangeListener, Object> mListeners = new WeakHashMap<>();
+
+    private BackendSharedPreferences(StorageBackend backend) {
+        mBackend = backend;
+    }
+
+    /**
+     * @return the preference file itself for the default backend, a view of the backend otherwise
+     */
+    static SharedPreferences wrap(StorageBackend backend) {
+        if (backend instanceof SharedPreferencesBackend) {
+            return ((SharedPreferencesBackend) backend).getSharedPreferences();
+        }
+
+        return new BackendSharedPreferences(backend);
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        return mBackend.getAll();
+    }
+
+    @Nullable
+    @Override
+    public String getString(String key, @Nullable String defValue) {
+        String value = (String) mBackend.get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Nullable
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<String> getStringSet(String key, @Nullable Set<String> defValues) {
+        Set<String> values = (Set<String>) mBackend.get(key);
+        return values != null ? values : defValues;
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        Integer value = (Integer) mBackend.get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        Long value = (Long) mBackend.get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        Float value = (Float) mBackend.get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        Boolean value = (Boolean) mBackend.get(key);
+        return value != null ? value : defValue;
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return mBackend.contains(key);
+    }
+
+    @Override
+    public SharedPreferences.Editor edit() {
+        return new Editor(mBackend.beginTransaction());
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        synchronized (mListeners) {
+            mListeners.put(listener, Boolean.TRUE);
+        }
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        synchronized (mListeners) {
+            mListeners.remove(listener);
+        }
+    }
+
+    private void notifyListeners(Set<String> keys) {
+        List<OnSharedPreferenceChangeListener> listeners;
+        synchronized (mListeners) {
+            if (mListeners.isEmpty()) return;
+            listeners = new ArrayList<>(mListeners.keySet());
+        }
+
+        for (String key : keys) {
+            for (OnSharedPreferenceChangeListener listener : listeners) {
+                if (listener != null) listener.onSharedPreferenceChanged(this, key);
+            }
+        }
+    }
+
+    private class Editor implements SharedPreferences.Editor {
+        private final StorageBackend.Transaction mTransaction;
+        private final Set<String> mChangedKeys = new HashSet<>();
+
+        Editor(StorageBackend.Transaction transaction) {
+            mTransaction = transaction;
+        }
+
+        private Editor put(String key, @Nullable Object value) {
+            mTransaction.put(key, value);
+            mChangedKeys.add(key);
+            return this;
+        }
+
+        @Override
+        public SharedPreferences.Editor putString(String key, @Nullable String value) {
+            return put(key, value);
+        }
+
+        @Override
+        public SharedPreferences.Editor putStringSet(String key, @Nullable Set<String> values) {
+            return put(key, values != null ? new HashSet<>(values) : null);
+        }
+
+        @Override
+        public SharedPreferences.Editor putInt(String key, int value) {
+            return put(key, value);
+        }
+
+        @Override
+        public SharedPreferences.Editor putLong(String key, long value) {
+            return put(key, value);
+        }
+
+        @Override
+        public SharedPreferences.Editor putFloat(String key, float value) {
+            return put(key, value);
+        }
+
+        @Override
+        public SharedPreferences.Editor putBoolean(String key, boolean value) {
+            return put(key, value);
+        }
+
+        @Override
+        public SharedPreferences.Editor remove(String key) {
+            mTransaction.remove(key);
+            mChangedKeys.add(key);
+            return this;
+        }
+
+        @Override
+        public SharedPreferences.Editor clear() {
+            mTransaction.clear();
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            boolean result = mTransaction.commit();
+            if (result) notifyListeners(mChangedKeys);
+            return result;
+        }
+
+        @Override
+        public void apply() {
+            mTransaction.apply();
+            notifyListeners(mChangedKeys);
+        }
+    }
+}
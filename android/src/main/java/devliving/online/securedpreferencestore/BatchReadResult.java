@@ -0,0 +1,57 @@
+package devliving.online.securedpreferencestore;
+
+import androidx.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Result of {@link SecuredPreferenceStore#getStrings(java.util.Collection)}, holds the decrypted values
+ * and the errors per key. Keys without a stored value are in neither of them.
+ */
+public class BatchReadResult {
+    private final Map<String, String> mValues;
+    private final Map<String, Exception> mErrors;
+
+    BatchReadResult(int expectedSize) {
+        mValues = new HashMap<>(expectedSize);
+        mErrors = new HashMap<>(0);
+    }
+
+    void putValue(String key, String value) {
+        mValues.put(key, value);
+    }
+
+    void putError(String key, Exception error) {
+        mErrors.put(key, error);
+    }
+
+    /**
+     * @return decrypted values by key
+     */
+    public Map<String, String> getValues() {
+        return Collections.unmodifiableMap(mValues);
+    }
+
+    /**
+     * @return errors by key
+     */
+    public Map<String, Exception> getErrors() {
+        return Collections.unmodifiableMap(mErrors);
+    }
+
+    @Nullable
+    public String getValue(String key) {
+        return mValues.get(key);
+    }
+
+    @Nullable
+    public Exception getError(String key) {
+        return mErrors.get(key);
+    }
+
+    public boolean hasErrors() {
+        return !mErrors.isEmpty();
+    }
+}
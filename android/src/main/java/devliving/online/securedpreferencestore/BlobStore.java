@@ -0,0 +1,162 @@
+package devliving.online.securedpreferencestore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Spill-over storage for large binary values of a {@link SecuredPreferenceStore}.
+ *
+ * A large value is written to its own file in the segmented encrypted format and the preference only
+ * holds a short pointer {@code @blob/<random id>}, so the preference file stays small and loads fast
+ * however much binary data is stored. Blobs are read only when their value is requested.
+ *
+ * Pointers are stored as they are, they can't be confused with encrypted values: the legacy envelope
+ * is Base64 and never contains '@', the compact envelope always starts with '!' as its first byte is
+ * the version.
+ */
+class BlobStore {
+    final static String POINTER_PREFIX = "@blob/";
+
+    private final static String FILE_SUFFIX = ".blob";
+    private final static String TEMP_SUFFIX = ".tmp";
+    private final static int ID_LENGTH = 16;
+    private final static int BUFFER_SIZE = 16 * 1024;
+
+    private final File mDirectory;
+    private final EncryptionManager mEncryptionManager;
+    private final SecureRandom mRandom = new SecureRandom();
+
+    BlobStore(File directory, EncryptionManager encryptionManager) {
+        mDirectory = directory;
+        mEncryptionManager = encryptionManager;
+    }
+
+    static boolean isPointer(Object value) {
+        return value instanceof String && ((String) value).startsWith(POINTER_PREFIX);
+    }
+
+    /**
+     * Encrypts the value into a new blob file
+     * @param data plain value
+     * @return pointer to store in the preferences
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    String write(byte[] data) throws IOException, GeneralSecurityException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Unable to create the blob directory " + mDirectory);
+        }
+
+        byte[] idBytes = new byte[ID_LENGTH];
+        mRandom.nextBytes(idBytes);
+        String id = EnvelopeCodec.toHex(idBytes);
+
+        File file = fileOf(id);
+        File temp = new File(mDirectory, id + TEMP_SUFFIX);
+
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(temp), BUFFER_SIZE);
+        boolean written = false;
+        try {
+            mEncryptionManager.encryptSegmented(new ByteArrayInputStream(data), out);
+            written = true;
+        } finally {
+            out.close();
+            if (!written) temp.delete();
+        }
+
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Unable to store blob " + id);
+        }
+
+        return POINTER_PREFIX + id;
+    }
+
+    /**
+     * @param pointer pointer returned by {@link #write(byte[])}
+     * @return the plain value
+     * @throws java.io.FileNotFoundException if the blob doesn't exist
+     * @throws CorruptedFileException if the blob was modified
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    byte[] read(String pointer) throws IOException, GeneralSecurityException {
+        File file = fileOf(idOf(pointer));
+
+        InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(file.length(), Integer.MAX_VALUE));
+            mEncryptionManager.decryptSegmented(in, out);
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    void delete(String pointer) {
+        File file = fileOf(idOf(pointer));
+        if (file.exists() && !file.delete()) {
+            Logger.w("Unable to delete blob " + file);
+        }
+    }
+
+    /**
+     * Deletes every blob that isn't referenced, e.g. after the store was cleared or blobs were left
+     * behind by a write that never got committed
+     * @param pointers pointers that are still referenced
+     * @param minAgeMillis files modified more recently are kept
+     * @return number of deleted files
+     */
+    int deleteUnreferenced(Collection<String> pointers, long minAgeMillis) {
+        File[] files = mDirectory.listFiles();
+        if (files == null) return 0;
+
+        Set<String> referenced = new HashSet<>(pointers.size());
+        for (String pointer : pointers) {
+            referenced.add(idOf(pointer) + FILE_SUFFIX);
+        }
+
+        long modifiedBefore = System.currentTimeMillis() - minAgeMillis;
+        int count = 0;
+        for (File file : files) {
+            if (referenced.contains(file.getName()) || file.lastModified() > modifiedBefore) continue;
+
+            if (file.delete()) count++;
+            else Logger.w("Unable to delete blob " + file);
+        }
+
+        return count;
+    }
+
+    private File fileOf(String id) {
+        return new File(mDirectory, id + FILE_SUFFIX);
+    }
+
+    private static String idOf(String pointer) {
+        String id = pointer.substring(POINTER_PREFIX.length());
+        if (id.length() != ID_LENGTH * 2) {
+            throw new IllegalArgumentException("Invalid blob pointer");
+        }
+        //the id ends up in a file name, only hex is accepted
+        for (int i = 0; i < id.length(); i++) {
+            char c = id.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'A' || c > 'F')) {
+                throw new IllegalArgumentException("Invalid blob pointer");
+            }
+        }
+        return id;
+    }
+}
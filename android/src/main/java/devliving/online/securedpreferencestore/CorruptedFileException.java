@@ -0,0 +1,17 @@
+package devliving.online.securedpreferencestore;
+
+import java.io.IOException;
+
+/**
+ * Thrown when an encrypted file fails authentication, e.g. a chunk was modified, reordered or the
+ * file was truncated
+ */
+public class CorruptedFileException extends IOException {
+    public CorruptedFileException(String message) {
+        super(message);
+    }
+
+    public CorruptedFileException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,121 @@
+package devliving.online.securedpreferencestore;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+
+/**
+ * Thread-confined pool of {@link Cipher} and {@link Mac} engines.
+ *
+ * {@code Cipher.getInstance} and {@code Mac.getInstance} resolve the provider on every call, the pool
+ * keeps one engine per thread for each slot (transformation, key alias and mode) so that the per-value
+ * path only pays for {@code init}. Ciphers still have to be initialized by the caller with a fresh IV on
+ * every use. Macs are initialized once with their key and reused, {@code doFinal} resets them.
+ *
+ * Call {@link #invalidate()} whenever the keys are reloaded, every thread drops its engines on next use.
+ */
+class CryptoEnginePool {
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    private final ThreadLocal<Engines> mEngines = new ThreadLocal<Engines>() {
+        @Override
+        protected Engines initialValue() {
+            return new Engines();
+        }
+    };
+
+    /**
+     * @param slot unique name of the engine slot, e.g. transformation + key alias + mode
+     * @param transformation cipher transformation
+     * @return a cipher from the default provider, owned by the calling thread
+     * @throws NoSuchPaddingException
+     * @throws NoSuchAlgorithmException
+     */
+    Cipher cipher(String slot, String transformation) throws NoSuchPaddingException, NoSuchAlgorithmException {
+        Engines engines = engines();
+        Cipher cipher = engines.ciphers.get(slot);
+
+        if (cipher == null) {
+            cipher = Cipher.getInstance(transformation);
+            engines.ciphers.put(slot, cipher);
+        }
+
+        return cipher;
+    }
+
+    /**
+     * @param slot unique name of the engine slot, e.g. transformation + key alias + mode
+     * @param transformation cipher transformation
+     * @param provider provider name
+     * @return a cipher owned by the calling thread
+     * @throws NoSuchPaddingException
+     * @throws NoSuchAlgorithmException
+     * @throws NoSuchProviderException
+     */
+    Cipher cipher(String slot, String transformation, String provider) throws NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException {
+        Engines engines = engines();
+        Cipher cipher = engines.ciphers.get(slot);
+
+        if (cipher == null) {
+            cipher = Cipher.getInstance(transformation, provider);
+            engines.ciphers.put(slot, cipher);
+        }
+
+        return cipher;
+    }
+
+    /**
+     * @param slot unique name of the engine slot, e.g. algorithm + key alias
+     * @param algorithm mac algorithm
+     * @param key key to initialize a newly created mac with
+     * @return an initialized mac owned by the calling thread
+     * @throws NoSuchAlgorithmException
+     * @throws InvalidKeyException
+     */
+    Mac mac(String slot, String algorithm, SecretKey key) throws NoSuchAlgorithmException, InvalidKeyException {
+        Engines engines = engines();
+        Mac mac = engines.macs.get(slot);
+
+        if (mac == null) {
+            mac = Mac.getInstance(algorithm);
+            mac.init(key);
+            engines.macs.put(slot, mac);
+        }
+
+        return mac;
+    }
+
+    /**
+     * Drops the engines of every thread, should be called after the keys have changed
+     */
+    void invalidate() {
+        mGeneration.incrementAndGet();
+    }
+
+    private Engines engines() {
+        Engines engines = mEngines.get();
+        int generation = mGeneration.get();
+
+        if (engines.generation != generation) {
+            engines.ciphers.clear();
+            engines.macs.clear();
+            engines.generation = generation;
+        }
+
+        return engines;
+    }
+
+    private static class Engines {
+        final Map<String, Cipher> ciphers = new HashMap<>();
+        final Map<String, Mac> macs = new HashMap<>();
+        int generation;
+    }
+}
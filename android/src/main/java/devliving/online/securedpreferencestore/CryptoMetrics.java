@@ -0,0 +1,227 @@
+package devliving.online.securedpreferencestore;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process-wide counters and latency histograms of the crypto and storage operations, disabled by default.
+ *
+ * Operations are timed with a start / record pair that doesn't allocate:
+ * <pre>
+ *     long start = CryptoMetrics.start();
+ *     boolean success = false;
+ *     try {
+ *         ...
+ *         success = true;
+ *     } finally {
+ *         CryptoMetrics.record(CryptoMetrics.Operation.ENCRYPT, start, success);
+ *     }
+ * </pre>
+ * While disabled {@link #start()} is a volatile read and {@link #record} returns right away.
+ *
+ * Latencies are counted in histograms with power of 2 buckets in microseconds, bucket i holds the
+ * latencies below 2^i us and the last one everything above. Percentiles of a {@link Snapshot} are
+ * upper bounds of the bucket they fall in.
+ */
+public final class CryptoMetrics {
+    public enum Operation {
+        KEYSTORE_LOAD("keystoreLoad"),
+        KEY_FETCH("keyFetch"),
+        ENCRYPT("encrypt"),
+        DECRYPT("decrypt"),
+        HASH("hash"),
+        COMMIT("commit"),
+        RECOVERY("recovery"),
+        BIOMETRIC_PROMPT("biometricPrompt");
+
+        private final String mName;
+
+        Operation(String name) {
+            mName = name;
+        }
+
+        /**
+         * @return camel case name, used as the key of the operation in exported snapshots
+         */
+        public String metricName() {
+            return mName;
+        }
+    }
+
+    public final static int BUCKET_COUNT = 24;
+
+    private final static long NOT_STARTED = Long.MIN_VALUE;
+    private final static Operation[] OPERATIONS = Operation.values();
+
+    private static volatile boolean sEnabled = false;
+
+    private final static AtomicLongArray sCounts = new AtomicLongArray(OPERATIONS.length);
+    private final static AtomicLongArray sErrors = new AtomicLongArray(OPERATIONS.length);
+    private final static AtomicLongArray sTotalNanos = new AtomicLongArray(OPERATIONS.length);
+    private final static AtomicLongArray sMaxNanos = new AtomicLongArray(OPERATIONS.length);
+    private final static AtomicLongArray sBuckets = new AtomicLongArray(OPERATIONS.length * BUCKET_COUNT);
+
+    private CryptoMetrics() {
+    }
+
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * @return start time to pass to {@link #record}, a marker ignored by it while metrics are disabled
+     */
+    public static long start() {
+        return sEnabled ? System.nanoTime() : NOT_STARTED;
+    }
+
+    /**
+     * Counts an operation and its latency
+     * @param operation operation that completed
+     * @param start value of {@link #start()} before the operation
+     * @param success false to count the operation as an error too
+     */
+    public static void record(Operation operation, long start, boolean success) {
+        if (start == NOT_STARTED) return;
+
+        long elapsed = Math.max(0, System.nanoTime() - start);
+        int index = operation.ordinal();
+
+        sCounts.incrementAndGet(index);
+        if (!success) sErrors.incrementAndGet(index);
+        sTotalNanos.addAndGet(index, elapsed);
+        sBuckets.incrementAndGet(index * BUCKET_COUNT + bucketOf(elapsed));
+
+        long max;
+        do {
+            max = sMaxNanos.get(index);
+        } while (elapsed > max && !sMaxNanos.compareAndSet(index, max, elapsed));
+    }
+
+    static int bucketOf(long nanos) {
+        long micros = nanos / 1000;
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+
+    /**
+     * @return copy of the current values, operations recorded meanwhile may be partly included
+     */
+    public static Snapshot snapshot() {
+        OperationSnapshot[] operations = new OperationSnapshot[OPERATIONS.length];
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            long[] buckets = new long[BUCKET_COUNT];
+            for (int b = 0; b < BUCKET_COUNT; b++) {
+                buckets[b] = sBuckets.get(i * BUCKET_COUNT + b);
+            }
+
+            operations[i] = new OperationSnapshot(OPERATIONS[i], sCounts.get(i), sErrors.get(i),
+                    sTotalNanos.get(i), sMaxNanos.get(i), buckets);
+        }
+
+        return new Snapshot(operations);
+    }
+
+    /**
+     * Clears all the values, e.g. after a snapshot was shipped
+     */
+    public static void reset() {
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            sCounts.set(i, 0);
+            sErrors.set(i, 0);
+            sTotalNanos.set(i, 0);
+            sMaxNanos.set(i, 0);
+        }
+        for (int i = 0; i < sBuckets.length(); i++) {
+            sBuckets.set(i, 0);
+        }
+    }
+
+    public final static class Snapshot {
+        private final OperationSnapshot[] mOperations;
+
+        Snapshot(OperationSnapshot[] operations) {
+            mOperations = operations;
+        }
+
+        public OperationSnapshot get(Operation operation) {
+            return mOperations[operation.ordinal()];
+        }
+
+        public OperationSnapshot[] getOperations() {
+            return mOperations.clone();
+        }
+    }
+
+    public final static class OperationSnapshot {
+        private final Operation mOperation;
+        private final long mCount;
+        private final long mErrors;
+        private final long mTotalNanos;
+        private final long mMaxNanos;
+        private final long[] mBuckets;
+
+        OperationSnapshot(Operation operation, long count, long errors, long totalNanos, long maxNanos, long[] buckets) {
+            mOperation = operation;
+            mCount = count;
+            mErrors = errors;
+            mTotalNanos = totalNanos;
+            mMaxNanos = maxNanos;
+            mBuckets = buckets;
+        }
+
+        public Operation getOperation() {
+            return mOperation;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getErrors() {
+            return mErrors;
+        }
+
+        public long getTotalNanos() {
+            return mTotalNanos;
+        }
+
+        public long getMaxNanos() {
+            return mMaxNanos;
+        }
+
+        public double getMeanNanos() {
+            return mCount > 0 ? (double) mTotalNanos / mCount : 0;
+        }
+
+        /**
+         * @return operations per bucket, see {@link CryptoMetrics}
+         */
+        public long[] getBuckets() {
+            return mBuckets.clone();
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return upper bound of the bucket of the percentile in microseconds, 0 if nothing was recorded
+         */
+        public long getPercentileMicros(double percentile) {
+            long total = 0;
+            for (long count : mBuckets) total += count;
+            if (total == 0) return 0;
+
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+            long seen = 0;
+            for (int i = 0; i < mBuckets.length; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank) {
+                    return i < mBuckets.length - 1 ? 1L << i : mMaxNanos / 1000;
+                }
+            }
+            return mMaxNanos / 1000;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package devliving.online.securedpreferencestore;
+
+import android.os.SystemClock;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Holds a data key that is decrypted with a keystore key, so the keystore is used once per unlock
+ * instead of once per value.
+ *
+ * The key is decrypted on first use and wiped after it hasn't been used for the idle timeout or when
+ * {@link #wipe()} is called, the next use decrypts it again. The raw key only exists in this holder:
+ * {@link SecretKey#getEncoded()} of the held key returns a copy and the array is zeroed on wipe.
+ * A key in use, between {@link #acquire()} and {@link #release()}, is wiped once it's released.
+ */
+class DataKeyHolder {
+    interface Loader {
+        /**
+         * @return the raw key, owned by the holder afterwards
+         */
+        @Nullable
+        byte[] load() throws GeneralSecurityException, IOException;
+    }
+
+    private final static ScheduledThreadPoolExecutor sTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "SPS-key-timeout");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final String mAlgorithm;
+    private final Loader mLoader;
+    @Nullable
+    private final Runnable mOnWipe;
+
+    private byte[] mKeyBytes;
+    private HeldKey mKey;
+    private long mTimeoutMillis;
+    private long mLastUse;
+    private int mUsers = 0;
+    private boolean mWipePending = false;
+    private ScheduledFuture<?> mExpiry;
+
+    private final Runnable mExpire = new Runnable() {
+        @Override
+        public void run() {
+            expire();
+        }
+    };
+
+    /**
+     * @param algorithm algorithm of the key
+     * @param loader decrypts the key
+     * @param timeoutMillis idle timeout, 0 keeps the key until it's wiped
+     * @param onWipe called after the key has been wiped, e.g. to drop engines initialized with it
+     */
+    DataKeyHolder(String algorithm, Loader loader, long timeoutMillis, @Nullable Runnable onWipe) {
+        mAlgorithm = algorithm;
+        mLoader = loader;
+        mTimeoutMillis = timeoutMillis;
+        mOnWipe = onWipe;
+    }
+
+    /**
+     * Decrypts the key if it isn't held, every call must be followed by {@link #release()}
+     * @return the key
+     * @throws InvalidKeyException if the loader found no key
+     */
+    synchronized SecretKey acquire() throws GeneralSecurityException, IOException {
+        if (mKey == null) {
+            long start = CryptoMetrics.start();
+            byte[] keyBytes = null;
+            try {
+                keyBytes = mLoader.load();
+            } finally {
+                CryptoMetrics.record(CryptoMetrics.Operation.KEY_FETCH, start, keyBytes != null);
+            }
+            if (keyBytes == null) {
+                throw new InvalidKeyException("No " + mAlgorithm + " key to load");
+            }
+
+            mKeyBytes = keyBytes;
+            mKey = new HeldKey();
+            scheduleExpiry(mTimeoutMillis);
+        }
+
+        mUsers++;
+        mLastUse = SystemClock.elapsedRealtime();
+        return mKey;
+    }
+
+    synchronized void release() {
+        mUsers--;
+        if (mUsers == 0 && mWipePending) {
+            wipeNow();
+        }
+    }
+
+    /**
+     * Zeroes the key, right away or once it's no longer in use
+     */
+    synchronized void wipe() {
+        if (mUsers > 0) {
+            mWipePending = true;
+        } else {
+            wipeNow();
+        }
+    }
+
+    synchronized void setTimeout(long timeoutMillis) {
+        mTimeoutMillis = timeoutMillis;
+        if (mKey != null) scheduleExpiry(timeoutMillis);
+    }
+
+    synchronized boolean isLoaded() {
+        return mKey != null;
+    }
+
+    private void wipeNow() {
+        mWipePending = false;
+        if (mExpiry != null) {
+            mExpiry.cancel(false);
+            mExpiry = null;
+        }
+
+        if (mKey == null) return;
+
+        Arrays.fill(mKeyBytes, (byte) 0);
+        mKeyBytes = null;
+        mKey = null;
+
+        if (mOnWipe != null) mOnWipe.run();
+    }
+
+    private synchronized void expire() {
+        mExpiry = null;
+        if (mKey == null || mTimeoutMillis <= 0) return;
+
+        long idle = SystemClock.elapsedRealtime() - mLastUse;
+        if (idle >= mTimeoutMillis) {
+            Logger.d("Wiping an idle " + mAlgorithm + " key");
+            wipe();
+        } else {
+            scheduleExpiry(mTimeoutMillis - idle);
+        }
+    }
+
+    private void scheduleExpiry(long delayMillis) {
+        if (mExpiry != null) {
+            mExpiry.cancel(false);
+            mExpiry = null;
+        }
+
+        if (delayMillis > 0) {
+            mExpiry = sTimer.schedule(mExpire, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * View of the held key, a wiped key has no encoding
+     */
+    private class HeldKey implements SecretKey {
+        @Override
+        public String getAlgorithm() {
+            return mAlgorithm;
+        }
+
+        @Override
+        public String getFormat() {
+            return "RAW";
+        }
+
+        @Override
+        public byte[] getEncoded() {
+            synchronized (DataKeyHolder.this) {
+                return mKey == this ? mKeyBytes.clone() : null;
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package devliving.online.securedpreferencestore;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of decrypted values, keyed by the hashed preference key.
+ *
+ * Every entry remembers the encrypted text it was produced from, a lookup only hits if the stored
+ * encrypted text is still the same, so a value changed behind the cache's back is never served.
+ * Plain values are kept as the decrypted UTF-8 bytes, which are zeroed when an entry is evicted,
+ * invalidated, replaced or wiped. A hit returns a new String, the copies the callers hold are theirs.
+ */
+class DecryptedValueCache {
+    private final static String DEFAULT_CHARSET = "UTF-8";
+
+    private final int mMaxEntries;
+    private final LinkedHashMap<String, CachedValue> mEntries;
+
+    DecryptedValueCache(int maxEntries) {
+        mMaxEntries = maxEntries;
+        mEntries = new LinkedHashMap<String, CachedValue>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedValue> eldest) {
+                if (size() > mMaxEntries) {
+                    eldest.getValue().wipe();
+                    return true;
+                }
+
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @param hashedKey hashed preference key
+     * @param encryptedText encrypted text currently stored for the key
+     * @return the cached plain value or null if there is no valid entry
+     */
+    synchronized String get(String hashedKey, String encryptedText) throws UnsupportedEncodingException {
+        CachedValue entry = mEntries.get(hashedKey);
+
+        if (entry != null) {
+            if (entry.encryptedText.equals(encryptedText)) {
+                return new String(entry.value, DEFAULT_CHARSET);
+            }
+
+            invalidate(hashedKey);
+        }
+
+        return null;
+    }
+
+    /**
+     * @param value decrypted UTF-8 bytes, owned by the cache from now on and zeroed when the entry is dropped
+     */
+    synchronized void put(String hashedKey, String encryptedText, byte[] value) {
+        CachedValue previous = mEntries.put(hashedKey, new CachedValue(encryptedText, value));
+        if (previous != null && previous.value != value) previous.wipe();
+    }
+
+    synchronized void invalidate(String hashedKey) {
+        CachedValue entry = mEntries.remove(hashedKey);
+        if (entry != null) entry.wipe();
+    }
+
+    /**
+     * Zeroes and drops all the entries
+     */
+    synchronized void wipe() {
+        Iterator<CachedValue> iterator = mEntries.values().iterator();
+
+        while (iterator.hasNext()) {
+            iterator.next().wipe();
+            iterator.remove();
+        }
+    }
+
+    private static class CachedValue {
+        final String encryptedText;
+        final byte[] value;
+
+        CachedValue(String encryptedText, byte[] value) {
+            this.encryptedText = encryptedText;
+            this.value = value;
+        }
+
+        void wipe() {
+            Arrays.fill(value, (byte) 0);
+        }
+    }
+}
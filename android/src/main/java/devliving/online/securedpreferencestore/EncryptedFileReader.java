@@ -0,0 +1,151 @@
+package devliving.online.securedpreferencestore;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import devliving.online.securedpreferencestore.SegmentedFileCipher.ChunkSealer;
+import devliving.online.securedpreferencestore.SegmentedFileCipher.Header;
+
+/**
+ * Random-access reader of a file written by {@link EncryptionManager#encryptSegmented}.
+ *
+ * Reads decrypt only the chunks that cover the requested range, chunks are fetched with positional
+ * {@link FileChannel} reads so the reader doesn't depend on the position of the channel. The last chunk
+ * is verified when the reader is opened, which authenticates the plaintext size and detects truncation.
+ * The most recently decrypted chunk is kept, so sequential small reads decrypt every chunk once.
+ *
+ * Instances are thread-safe. Closing the reader closes the channel.
+ */
+public class EncryptedFileReader implements Closeable {
+    private final FileChannel mChannel;
+    private final Header mHeader;
+    private final ChunkSealer mSealer;
+
+    private final long mChunkCount;
+    private final long mSize;
+    private final int mSealedChunkSize;
+
+    private final byte[] mSealed;
+    private final byte[] mPlain;
+    private long mCachedChunk = -1;
+    private int mCachedLength;
+    private boolean mClosed = false;
+
+    EncryptedFileReader(SegmentedFileCipher cipher, FileChannel channel) throws IOException, GeneralSecurityException {
+        mChannel = channel;
+        mHeader = Header.read(channel);
+
+        mSealedChunkSize = mHeader.chunkSize + SegmentedFileCipher.TAG_LENGTH;
+        long body = channel.size() - mHeader.length;
+        if (body < SegmentedFileCipher.TAG_LENGTH) {
+            throw new CorruptedFileException("Truncated file");
+        }
+
+        mChunkCount = (body + mSealedChunkSize - 1) / mSealedChunkSize;
+        long lastSealed = body - (mChunkCount - 1) * mSealedChunkSize;
+        if (lastSealed < SegmentedFileCipher.TAG_LENGTH) {
+            throw new CorruptedFileException("Truncated chunk " + (mChunkCount - 1));
+        }
+        mSize = body - mChunkCount * SegmentedFileCipher.TAG_LENGTH;
+
+        mSealer = new ChunkSealer(mHeader, cipher.unwrapKey(mHeader));
+        mSealed = new byte[mSealedChunkSize];
+        mPlain = new byte[mHeader.chunkSize];
+
+        loadChunk(mChunkCount - 1);
+    }
+
+    /**
+     * @return plaintext size in bytes
+     */
+    public long size() {
+        return mSize;
+    }
+
+    /**
+     * Reads plaintext bytes starting at the given position
+     * @param position plaintext offset
+     * @param buffer destination
+     * @param offset offset in the destination
+     * @param length maximum number of bytes to read
+     * @return number of bytes read, -1 if the position is at or after the end of the file
+     * @throws CorruptedFileException if a chunk covering the range fails authentication
+     * @throws IOException
+     */
+    public synchronized int read(long position, byte[] buffer, int offset, int length) throws IOException {
+        if (position < 0 || offset < 0 || length < 0 || offset + length > buffer.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (mClosed) {
+            throw new IOException("Reader is closed");
+        }
+        if (position >= mSize) return -1;
+
+        int total = 0;
+        int wanted = (int) Math.min(length, mSize - position);
+
+        while (total < wanted) {
+            long chunk = (position + total) / mHeader.chunkSize;
+            int inChunk = (int) ((position + total) % mHeader.chunkSize);
+
+            loadChunk(chunk);
+
+            int count = Math.min(wanted - total, mCachedLength - inChunk);
+            System.arraycopy(mPlain, inChunk, buffer, offset + total, count);
+            total += count;
+        }
+
+        return total;
+    }
+
+    /**
+     * Reads exactly the given range
+     * @param position plaintext offset
+     * @param length number of bytes
+     * @return the plaintext of the range
+     * @throws EOFException if the range ends after the end of the file
+     * @throws CorruptedFileException if a chunk covering the range fails authentication
+     * @throws IOException
+     */
+    public byte[] readRange(long position, int length) throws IOException {
+        if (position < 0 || length < 0 || position + length > mSize) {
+            throw new EOFException("Range " + position + "+" + length + " is outside of the file");
+        }
+
+        byte[] result = new byte[length];
+        int read = length > 0 ? read(position, result, 0, length) : 0;
+        if (read != length) {
+            throw new EOFException();
+        }
+
+        return result;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        Arrays.fill(mPlain, (byte) 0);
+        mCachedChunk = -1;
+        mClosed = true;
+        mChannel.close();
+    }
+
+    private void loadChunk(long chunk) throws IOException {
+        if (chunk == mCachedChunk) return;
+
+        long position = mHeader.length + chunk * mSealedChunkSize;
+        int read = SegmentedFileCipher.readFully(mChannel, position, mSealed, 0, mSealedChunkSize);
+
+        boolean last = chunk == mChunkCount - 1;
+        if (!last && read != mSealedChunkSize) {
+            throw new CorruptedFileException("Truncated chunk " + chunk);
+        }
+
+        mCachedChunk = -1;
+        mCachedLength = mSealer.open(chunk, last, mSealed, read, mPlain);
+        mCachedChunk = chunk;
+    }
+}
@@ -0,0 +1,797 @@
+package devliving.online.securedpreferencestore;
+
+import android.content.Context;
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Backend storing the entries in an encrypted append-only journal.
+ *
+ * Every entry of a transaction is appended as its own record followed by a commit record, so a write
+ * costs the size of the changed entries only. Only the offsets of the live records are kept in memory,
+ * values are read and decrypted from the journal when they are requested.
+ *
+ * Records are sealed with AES-GCM under a random data key, which is stored in the journal header wrapped
+ * with the master key of the factory. The length and the sequence number of a record are authenticated
+ * too and sequence numbers must grow, so records can't be modified, reordered or moved between journals.
+ * When the journal is opened, records after the last valid commit are dropped, e.g. the ones torn by a
+ * crash in the middle of a write.
+ *
+ * Once the share of dead records passes the compaction ratio, the live records are copied into a new
+ * journal on a background thread. Records are copied as they are, without decrypting them, and writes
+ * are only blocked while the records appended in the meantime are copied and the files are swapped.
+ */
+public class EncryptedJournalBackend implements StorageBackend {
+    private final static String DIRECTORY_NAME = "sps_journal";
+    private final static String FILE_SUFFIX = ".journal";
+    private final static String TEMP_SUFFIX = ".tmp";
+
+    private final static int MAGIC = 0x5350534A; //"SPSJ"
+    private final static int VERSION = 1;
+
+    private final static String RECORD_CIPHER = "AES/GCM/NoPadding";
+    private final static int DATA_KEY_LENGTH = 32;
+    private final static int IV_LENGTH = 12;
+    private final static int TAG_LENGTH = 16;
+    //sealed length and sequence number, authenticated as associated data
+    private final static int AAD_LENGTH = 12;
+    private final static int RECORD_HEADER_LENGTH = AAD_LENGTH + IV_LENGTH;
+    private final static int MAX_SEALED_LENGTH = 64 * 1024 * 1024;
+
+    private final static byte TYPE_CLEAR = 16;
+    private final static byte TYPE_COMMIT = 17;
+
+    private final static float DEFAULT_COMPACTION_RATIO = 0.5f;
+    private final static long MIN_COMPACTION_SIZE = 64 * 1024;
+    private final static int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final static Map<String, EncryptedJournalBackend> sOpened = new HashMap<>();
+
+    private final static ThreadPoolExecutor sCompactor = new ThreadPoolExecutor(0, 1, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "SPS-journal-compaction");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
+    private static class Slot {
+        final long offset;
+        final int length;
+
+        Slot(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final File mFile;
+    private final SecretKey mMasterKey;
+    private final Object mLock = new Object();
+    private final SecureRandom mRandom = new SecureRandom();
+    private volatile float mCompactionRatio;
+
+    private SecretKey mDataKey;
+    private byte[] mHeader;
+    private Cipher mCipher;
+    private FileChannel mChannel;
+
+    private final Map<String, Slot> mIndex = new HashMap<>();
+    private long mFileSize;
+    private long mLiveSize;
+    private long mNextSequence = 1;
+    private boolean mCompacting = false;
+
+    private EncryptedJournalBackend(File file, SecretKey masterKey, float compactionRatio) {
+        mFile = file;
+        mMasterKey = masterKey;
+        mCompactionRatio = compactionRatio;
+    }
+
+    /**
+     * @param masterKey AES key wrapping the data keys of the journals
+     * @param compactionRatio share of dead records at which a journal is compacted, between 0 and 1
+     * @return factory opening journals in the app files directory
+     */
+    public static StorageBackend.Factory factory(final SecretKey masterKey, final float compactionRatio) {
+        if (compactionRatio <= 0 || compactionRatio >= 1) {
+            throw new IllegalArgumentException("Compaction ratio must be between 0 and 1: " + compactionRatio);
+        }
+
+        return new StorageBackend.Factory() {
+            @Override
+            public StorageBackend open(Context context, String name) throws IOException {
+                return EncryptedJournalBackend.open(fileOf(context, name), masterKey, compactionRatio);
+            }
+
+            @Override
+            public boolean delete(Context context, String name) {
+                File file = fileOf(context, name);
+
+                synchronized (sOpened) {
+                    EncryptedJournalBackend backend = sOpened.remove(file.getAbsolutePath());
+                    if (backend != null) backend.close();
+                }
+
+                return !file.exists() || file.delete();
+            }
+        };
+    }
+
+    public static StorageBackend.Factory factory(SecretKey masterKey) {
+        return factory(masterKey, DEFAULT_COMPACTION_RATIO);
+    }
+
+    /**
+     * Factory with a master key kept in the keystore of {@link EncryptionManager#getKeyStoreProvider()},
+     * the key is generated on first use
+     * @param keyAlias alias of the master key
+     * @param compactionRatio share of dead records at which a journal is compacted, between 0 and 1
+     * @throws GeneralSecurityException if the key can't be loaded or generated
+     * @throws IOException if the keystore can't be loaded
+     */
+    @RequiresApi(Build.VERSION_CODES.M)
+    public static StorageBackend.Factory keyStoreFactory(String keyAlias, float compactionRatio) throws GeneralSecurityException, IOException {
+        KeyStoreProvider provider = EncryptionManager.getKeyStoreProvider();
+        KeyStore keyStore = provider.getKeyStore();
+        keyStore.load(null);
+
+        if (!keyStore.containsAlias(keyAlias)) {
+            KeyGenerator keyGen = provider.getKeyGenerator(KeyProperties.KEY_ALGORITHM_AES);
+            keyGen.init(new KeyGenParameterSpec.Builder(keyAlias, KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                    .setKeySize(256)
+                    .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                    .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                    .setRandomizedEncryptionRequired(true)
+                    .build());
+            keyGen.generateKey();
+        }
+
+        return factory((SecretKey) keyStore.getKey(keyAlias, null), compactionRatio);
+    }
+
+    /**
+     * Opens the journal at the given path, the same instance is returned while the journal is open
+     * @param file journal file, created on the first write
+     * @param masterKey AES key wrapping the data key of the journal
+     * @param compactionRatio share of dead records at which the journal is compacted, between 0 and 1
+     * @return the backend
+     * @throws IOException if the journal can't be read or its key can't be unwrapped
+     */
+    public static EncryptedJournalBackend open(File file, SecretKey masterKey, float compactionRatio) throws IOException {
+        String path = file.getAbsolutePath();
+
+        synchronized (sOpened) {
+            EncryptedJournalBackend backend = sOpened.get(path);
+            if (backend == null) {
+                backend = new EncryptedJournalBackend(file, masterKey, compactionRatio);
+                try {
+                    backend.load();
+                } catch (GeneralSecurityException e) {
+                    backend.close();
+                    throw new IOException("Unable to open the journal " + file, e);
+                } catch (IOException e) {
+                    backend.close();
+                    throw e;
+                }
+                sOpened.put(path, backend);
+            }
+            return backend;
+        }
+    }
+
+    private static File fileOf(Context context, String name) {
+        return new File(new File(context.getFilesDir(), DIRECTORY_NAME), name + FILE_SUFFIX);
+    }
+
+    /**
+     * @param ratio share of dead records at which the journal is compacted, between 0 and 1
+     */
+    public void setCompactionRatio(float ratio) {
+        if (ratio <= 0 || ratio >= 1) {
+            throw new IllegalArgumentException("Compaction ratio must be between 0 and 1: " + ratio);
+        }
+        mCompactionRatio = ratio;
+    }
+
+    @Nullable
+    @Override
+    public Object get(String key) {
+        synchronized (mLock) {
+            Slot slot = mIndex.get(key);
+            if (slot == null) return null;
+
+            try {
+                return readValue(key, slot);
+            } catch (IOException | GeneralSecurityException e) {
+                Logger.e(e);
+                return null;
+            }
+        }
+    }
+
+    @Override
+    public boolean contains(String key) {
+        synchronized (mLock) {
+            return mIndex.containsKey(key);
+        }
+    }
+
+    /**
+     * Reads and decrypts every live record, unreadable records are left out
+     */
+    @Override
+    public Map<String, ?> getAll() {
+        synchronized (mLock) {
+            Map<String, Object> all = new HashMap<>(mIndex.size());
+
+            for (Map.Entry<String, Slot> entry : mIndex.entrySet()) {
+                try {
+                    all.put(entry.getKey(), readValue(entry.getKey(), entry.getValue()));
+                } catch (IOException | GeneralSecurityException e) {
+                    Logger.e(e);
+                }
+            }
+
+            return all;
+        }
+    }
+
+    @Override
+    public Transaction beginTransaction() {
+        return new JournalTransaction();
+    }
+
+    //region Loading
+    private void load() throws IOException, GeneralSecurityException {
+        mCipher = Cipher.getInstance(RECORD_CIPHER);
+
+        if (!mFile.exists() || mFile.length() == 0) {
+            newDataKey();
+            return;
+        }
+
+        mChannel = new RandomAccessFile(mFile, "rw").getChannel();
+        if (!readHeader()) {
+            //the first write never completed, so nothing was committed
+            Logger.w("Discarding a journal with an incomplete header " + mFile);
+            mChannel.truncate(0);
+            newDataKey();
+            return;
+        }
+
+        long size = mChannel.size();
+        long position = mHeader.length;
+        long committedEnd = position;
+        long lastSequence = 0;
+        long committedSequence = 0;
+
+        Map<String, Slot> pending = new LinkedHashMap<>();
+        boolean pendingClear = false;
+
+        ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+
+        while (position + RECORD_HEADER_LENGTH + TAG_LENGTH <= size) {
+            recordHeader.clear();
+            if (readFully(mChannel, recordHeader, position) < RECORD_HEADER_LENGTH) break;
+
+            int sealedLength = recordHeader.getInt(0);
+            long sequence = recordHeader.getLong(4);
+            if (sealedLength < TAG_LENGTH || sealedLength > MAX_SEALED_LENGTH
+                    || position + RECORD_HEADER_LENGTH + sealedLength > size || sequence <= lastSequence) break;
+
+            int recordLength = RECORD_HEADER_LENGTH + sealedLength;
+            DataInputStream record;
+            try {
+                record = openRecord(position, recordLength);
+            } catch (GeneralSecurityException e) {
+                Logger.w("Journal record at " + position + " failed authentication");
+                break;
+            }
+
+            byte type = record.readByte();
+            if (type == TYPE_COMMIT) {
+                if (pendingClear) mIndex.clear();
+                for (Map.Entry<String, Slot> change : pending.entrySet()) {
+                    if (change.getValue() != null) mIndex.put(change.getKey(), change.getValue());
+                    else mIndex.remove(change.getKey());
+                }
+                pending.clear();
+                pendingClear = false;
+
+                committedEnd = position + recordLength;
+                committedSequence = sequence;
+            } else if (type == TYPE_CLEAR) {
+                pending.clear();
+                pendingClear = true;
+            } else {
+                String key = LogRecordCodec.readString(record);
+                pending.put(key, type == LogRecordCodec.TYPE_REMOVE ? null : new Slot(position, recordLength));
+            }
+
+            lastSequence = sequence;
+            position += recordLength;
+        }
+
+        if (committedEnd < size) {
+            Logger.w("Truncating the journal " + mFile + " to the last commit at " + committedEnd);
+            mChannel.truncate(committedEnd);
+        }
+
+        mFileSize = committedEnd;
+        mNextSequence = committedSequence + 1;
+        mLiveSize = 0;
+        for (Slot slot : mIndex.values()) {
+            mLiveSize += slot.length;
+        }
+    }
+
+    private void newDataKey() throws GeneralSecurityException, IOException {
+        byte[] keyBytes = new byte[DATA_KEY_LENGTH];
+        mRandom.nextBytes(keyBytes);
+        mDataKey = new SecretKeySpec(keyBytes, "AES");
+
+        Cipher cipher = Cipher.getInstance(RECORD_CIPHER);
+        cipher.init(Cipher.ENCRYPT_MODE, mMasterKey);
+        byte[] iv = cipher.getIV();
+        byte[] wrapped = cipher.doFinal(keyBytes);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(iv.length);
+        out.write(iv);
+        out.writeShort(wrapped.length);
+        out.write(wrapped);
+        mHeader = bytes.toByteArray();
+    }
+
+    /**
+     * @return false if the header is incomplete
+     */
+    private boolean readHeader() throws IOException, GeneralSecurityException {
+        ByteBuffer fixed = ByteBuffer.allocate(6);
+        if (readFully(mChannel, fixed, 0) < fixed.capacity()) return false;
+        if (fixed.getInt(0) != MAGIC) {
+            throw new CorruptedFileException("Not a store journal: " + mFile);
+        }
+        if (fixed.get(4) != VERSION) {
+            throw new CorruptedFileException("Unsupported journal version " + fixed.get(4));
+        }
+
+        int ivLength = fixed.get(5) & 0xFF;
+        ByteBuffer iv = ByteBuffer.allocate(ivLength + 2);
+        if (readFully(mChannel, iv, fixed.capacity()) < iv.capacity()) return false;
+
+        int wrappedLength = iv.getShort(ivLength) & 0xFFFF;
+        ByteBuffer wrapped = ByteBuffer.allocate(wrappedLength);
+        if (readFully(mChannel, wrapped, fixed.capacity() + iv.capacity()) < wrappedLength) return false;
+
+        Cipher cipher = Cipher.getInstance(RECORD_CIPHER);
+        cipher.init(Cipher.DECRYPT_MODE, mMasterKey, parameters(iv.array(), ivLength));
+        byte[] keyBytes = cipher.doFinal(wrapped.array());
+        mDataKey = new SecretKeySpec(keyBytes, "AES");
+
+        mHeader = new byte[fixed.capacity() + iv.capacity() + wrappedLength];
+        fixed.rewind();
+        fixed.get(mHeader, 0, fixed.capacity());
+        System.arraycopy(iv.array(), 0, mHeader, fixed.capacity(), iv.capacity());
+        System.arraycopy(wrapped.array(), 0, mHeader, fixed.capacity() + iv.capacity(), wrappedLength);
+        return true;
+    }
+    //endregion
+
+    //region Records
+    private byte[] sealRecord(Cipher cipher, long sequence, byte[] plain) throws GeneralSecurityException {
+        byte[] record = new byte[RECORD_HEADER_LENGTH + plain.length + TAG_LENGTH];
+        ByteBuffer header = ByteBuffer.wrap(record);
+        header.putInt(plain.length + TAG_LENGTH);
+        header.putLong(sequence);
+
+        byte[] iv = new byte[IV_LENGTH];
+        mRandom.nextBytes(iv);
+        header.put(iv);
+
+        cipher.init(Cipher.ENCRYPT_MODE, mDataKey, parameters(iv, IV_LENGTH));
+        cipher.updateAAD(record, 0, AAD_LENGTH);
+        cipher.doFinal(plain, 0, plain.length, record, RECORD_HEADER_LENGTH);
+
+        return record;
+    }
+
+    private DataInputStream openRecord(long offset, int length) throws IOException, GeneralSecurityException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        if (readFully(mChannel, buffer, offset) < length) {
+            throw new CorruptedFileException("Truncated journal record at " + offset);
+        }
+
+        byte[] record = buffer.array();
+        byte[] iv = new byte[IV_LENGTH];
+        System.arraycopy(record, AAD_LENGTH, iv, 0, IV_LENGTH);
+
+        mCipher.init(Cipher.DECRYPT_MODE, mDataKey, parameters(iv, IV_LENGTH));
+        mCipher.updateAAD(record, 0, AAD_LENGTH);
+        byte[] plain = mCipher.doFinal(record, RECORD_HEADER_LENGTH, length - RECORD_HEADER_LENGTH);
+
+        return new DataInputStream(new ByteArrayInputStream(plain));
+    }
+
+    @Nullable
+    private Object readValue(String key, Slot slot) throws IOException, GeneralSecurityException {
+        DataInputStream record = openRecord(slot.offset, slot.length);
+
+        byte type = record.readByte();
+        if (type == TYPE_CLEAR || type == TYPE_COMMIT || !key.equals(LogRecordCodec.readString(record))) {
+            throw new CorruptedFileException("Journal record at " + slot.offset + " doesn't hold " + key);
+        }
+
+        return LogRecordCodec.readValue(record, type);
+    }
+
+    private static byte[] encodeEntry(String key, @Nullable Object value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        LogRecordCodec.writeEntry(new DataOutputStream(bytes), key, value);
+        return bytes.toByteArray();
+    }
+
+    private static AlgorithmParameterSpec parameters(byte[] iv, int length) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return new GCMParameterSpec(TAG_LENGTH * 8, iv, 0, length);
+        }
+        //GCMParameterSpec is API 19, older providers take the IV and use a 128 bit tag
+        return new IvParameterSpec(iv, 0, length);
+    }
+
+    private static int readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + total);
+            if (read < 0) break;
+            total += read;
+        }
+        return total;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+    //endregion
+
+    //region Writing
+    private boolean write(boolean clear, Map<String, Object> changes, boolean sync) {
+        synchronized (mLock) {
+            if (mCipher == null) {
+                Logger.e("Journal " + mFile + " is closed");
+                return false;
+            }
+
+            long start = mFileSize;
+            try {
+                if (mChannel == null) {
+                    File directory = mFile.getParentFile();
+                    if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+                        throw new IOException("Unable to create the journal directory " + directory);
+                    }
+                    mChannel = new RandomAccessFile(mFile, "rw").getChannel();
+                }
+                if (start == 0) {
+                    writeFully(mChannel, ByteBuffer.wrap(mHeader), 0);
+                    start = mHeader.length;
+                }
+
+                ByteArrayOutputStream batch = new ByteArrayOutputStream();
+                Map<String, Slot> slots = new HashMap<>(changes.size());
+
+                if (clear) {
+                    batch.write(sealRecord(mCipher, mNextSequence++, new byte[]{TYPE_CLEAR}));
+                }
+                for (Map.Entry<String, Object> change : changes.entrySet()) {
+                    byte[] record = sealRecord(mCipher, mNextSequence++, encodeEntry(change.getKey(), change.getValue()));
+                    if (change.getValue() != null) slots.put(change.getKey(), new Slot(start + batch.size(), record.length));
+                    batch.write(record);
+                }
+                batch.write(sealRecord(mCipher, mNextSequence++, new byte[]{TYPE_COMMIT}));
+
+                writeFully(mChannel, ByteBuffer.wrap(batch.toByteArray()), start);
+                if (sync) mChannel.force(false);
+
+                if (clear) {
+                    mIndex.clear();
+                    mLiveSize = 0;
+                }
+                for (String key : changes.keySet()) {
+                    Slot previous = mIndex.remove(key);
+                    if (previous != null) mLiveSize -= previous.length;
+
+                    Slot slot = slots.get(key);
+                    if (slot != null) {
+                        mIndex.put(key, slot);
+                        mLiveSize += slot.length;
+                    }
+                }
+                mFileSize = start + batch.size();
+            } catch (IOException | GeneralSecurityException e) {
+                Logger.e(e);
+                truncateTo(mFileSize);
+                return false;
+            }
+
+            scheduleCompaction();
+            return true;
+        }
+    }
+
+    private void truncateTo(long size) {
+        if (mChannel == null) return;
+
+        try {
+            mChannel.truncate(size);
+        } catch (IOException e) {
+            //records after the last commit are dropped on the next load
+            Logger.e(e);
+        }
+    }
+
+    /**
+     * Closes the journal, the next {@link #open(File, SecretKey, float)} of its file loads it again
+     */
+    void close() {
+        synchronized (sOpened) {
+            String path = mFile.getAbsolutePath();
+            if (sOpened.get(path) == this) sOpened.remove(path);
+        }
+
+        synchronized (mLock) {
+            if (mChannel != null) {
+                try {
+                    mChannel.close();
+                } catch (IOException e) {
+                    Logger.e(e);
+                }
+                mChannel = null;
+            }
+            mCipher = null;
+            mIndex.clear();
+        }
+    }
+    //endregion
+
+    //region Compaction
+    private void scheduleCompaction() {
+        long records = mFileSize - mHeader.length;
+        if (mCompacting || mFileSize < MIN_COMPACTION_SIZE || records - mLiveSize < mCompactionRatio * records) return;
+
+        mCompacting = true;
+        sCompactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } catch (IOException | GeneralSecurityException e) {
+                    //the journal is still valid, compaction is retried after the next write
+                    Logger.e("Journal compaction failed", e);
+                } finally {
+                    synchronized (mLock) {
+                        mCompacting = false;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Compacts the journal on the calling thread whatever its size and share of dead records
+     * @return false if a compaction was already running
+     */
+    boolean compactNow() throws IOException, GeneralSecurityException {
+        synchronized (mLock) {
+            if (mCompacting) return false;
+            mCompacting = true;
+        }
+
+        try {
+            compact();
+            return true;
+        } finally {
+            synchronized (mLock) {
+                mCompacting = false;
+            }
+        }
+    }
+
+    private void compact() throws IOException, GeneralSecurityException {
+        List<Map.Entry<String, Slot>> live;
+        FileChannel source;
+        long snapshotEnd;
+        long commitSequence;
+
+        synchronized (mLock) {
+            if (mChannel == null) return;
+
+            live = new ArrayList<>(mIndex.size());
+            for (Map.Entry<String, Slot> entry : mIndex.entrySet()) {
+                live.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue()));
+            }
+            source = mChannel;
+            snapshotEnd = mFileSize;
+            //reserved now, so the copied records are committed before anything written in the meantime
+            commitSequence = mNextSequence++;
+        }
+
+        Collections.sort(live, new Comparator<Map.Entry<String, Slot>>() {
+            @Override
+            public int compare(Map.Entry<String, Slot> a, Map.Entry<String, Slot> b) {
+                return a.getValue().offset < b.getValue().offset ? -1 : (a.getValue().offset == b.getValue().offset ? 0 : 1);
+            }
+        });
+
+        File temp = new File(mFile.getPath() + TEMP_SUFFIX);
+        RandomAccessFile target = new RandomAccessFile(temp, "rw");
+        boolean swapped = false;
+
+        try {
+            FileChannel channel = target.getChannel();
+            channel.truncate(0);
+
+            long position = mHeader.length;
+            writeFully(channel, ByteBuffer.wrap(mHeader), 0);
+
+            Map<String, Slot> copied = new HashMap<>(live.size());
+            ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+            for (Map.Entry<String, Slot> entry : live) {
+                Slot slot = entry.getValue();
+                copy(source, slot.offset, slot.length, channel, position, buffer);
+                copied.put(entry.getKey(), new Slot(position, slot.length));
+                position += slot.length;
+            }
+
+            byte[] commit = sealRecord(Cipher.getInstance(RECORD_CIPHER), commitSequence, new byte[]{TYPE_COMMIT});
+            writeFully(channel, ByteBuffer.wrap(commit), position);
+            position += commit.length;
+
+            synchronized (mLock) {
+                if (mChannel != source) return;
+
+                //records committed since the snapshot are appended as they are
+                long tailLength = mFileSize - snapshotEnd;
+                copy(source, snapshotEnd, tailLength, channel, position, buffer);
+                long shift = position - snapshotEnd;
+                channel.force(false);
+
+                if (!temp.renameTo(mFile)) {
+                    throw new IOException("Unable to replace the journal " + mFile);
+                }
+
+                Map<String, Slot> index = new HashMap<>(mIndex.size());
+                long liveSize = 0;
+                for (Map.Entry<String, Slot> entry : mIndex.entrySet()) {
+                    Slot slot = entry.getValue();
+                    Slot moved = slot.offset < snapshotEnd ? copied.get(entry.getKey()) : new Slot(slot.offset + shift, slot.length);
+                    index.put(entry.getKey(), moved);
+                    liveSize += moved.length;
+                }
+
+                mIndex.clear();
+                mIndex.putAll(index);
+                mLiveSize = liveSize;
+                mFileSize = position + tailLength;
+                mChannel = channel;
+                swapped = true;
+
+                try {
+                    source.close();
+                } catch (IOException e) {
+                    Logger.e(e);
+                }
+            }
+
+            Logger.d("Compacted the journal " + mFile + " to " + position + " bytes");
+        } finally {
+            if (!swapped) {
+                target.close();
+                temp.delete();
+            }
+        }
+    }
+
+    private static void copy(FileChannel source, long offset, long length, FileChannel target, long position, ByteBuffer buffer) throws IOException {
+        long copied = 0;
+        while (copied < length) {
+            buffer.clear();
+            if (length - copied < buffer.capacity()) buffer.limit((int) (length - copied));
+
+            int read = readFully(source, buffer, offset + copied);
+            if (read < buffer.limit()) {
+                throw new CorruptedFileException("Truncated journal while compacting");
+            }
+
+            buffer.flip();
+            writeFully(target, buffer, position + copied);
+            copied += read;
+        }
+    }
+    //endregion
+
+    private class JournalTransaction implements Transaction {
+        private final Map<String, Object> mChanges = new LinkedHashMap<>();
+        private boolean mClear = false;
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public synchronized Transaction put(String key, @Nullable Object value) {
+            if (value instanceof Set) {
+                value = Collections.unmodifiableSet(new HashSet<>((Set<String>) value));
+            }
+            mChanges.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Transaction remove(String key) {
+            return put(key, null);
+        }
+
+        @Override
+        public synchronized Transaction clear() {
+            mClear = true;
+            return this;
+        }
+
+        @Override
+        public synchronized boolean commit() {
+            return write(mClear, mChanges, true);
+        }
+
+        /**
+         * Same as {@link #commit()} without waiting for the records to reach the disk
+         */
+        @Override
+        public synchronized void apply() {
+            write(mClear, mChanges, false);
+        }
+    }
+}
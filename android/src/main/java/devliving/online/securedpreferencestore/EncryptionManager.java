@@ -4,12 +4,13 @@ import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.Build;
+import android.os.SystemClock;
 import android.security.KeyPairGeneratorSpec;
 import android.security.keystore.KeyGenParameterSpec;
 import android.security.keystore.KeyProperties;
+import android.util.Base64;
 import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
-import android.util.Base64;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
@@ -17,7 +18,10 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.channels.FileChannel;
 import java.math.BigInteger;
 import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
@@ -36,7 +40,9 @@ import java.security.interfaces.RSAPublicKey;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -68,7 +74,17 @@ public class EncryptionManager {
 
     private final static String DEFAULT_CHARSET = "UTF-8";
 
-    private final String KEYSTORE_PROVIDER = "AndroidKeyStore";
+    private final static int HASHED_KEY_INDEX_LIMIT = 1024;
+    //least recently used keys are dropped, guarded by itself
+    private final static LinkedHashMap<String, String> HASHED_KEY_INDEX = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > HASHED_KEY_INDEX_LIMIT;
+        }
+    };
+
+    private static volatile KeyStoreProvider sKeyStoreProvider = KeyStoreProvider.ANDROID;
+
     private final String SSL_PROVIDER = "AndroidOpenSSL";
     private final String BOUNCY_CASTLE_PROVIDER = "BC";
 
@@ -77,16 +93,20 @@ public class EncryptionManager {
     private final String RSA_KEY_ALIAS;
     protected final String AES_KEY_ALIAS;
     protected final String MAC_KEY_ALIAS;
+    protected final String DATA_KEY_ALIAS;
 
     private final static String RSA_KEY_ALIAS_NAME = "rsa_key";
     private final static String AES_KEY_ALIAS_NAME = "aes_key";
     private final static String MAC_KEY_ALIAS_NAME = "mac_key";
+    private final static String DATA_KEY_ALIAS_NAME = "data_key";
+
+    private final static int DATA_KEY_LENGTH = 32;
+    private final static long DEFAULT_DATA_KEY_TIMEOUT_MILLIS = 5 * 60 * 1000;
+    private final static String PREWARM_PROBE = "prewarm";
 
     protected static final String OVERRIDING_KEY_ALIAS_PREFIX_NAME = "OverridingAlias";
     protected final static String DEFAULT_KEY_ALIAS_PREFIX = "sps";
 
-    private final String DELIMITER = "]";
-
     private static final String KEY_ALGORITHM_AES = "AES";
     private static final String KEY_ALGORITHM_RSA = "RSA";
 
@@ -114,9 +134,31 @@ public class EncryptionManager {
     protected final String IS_COMPAT_MODE_KEY_ALIAS;
     private final static String IS_COMPAT_MODE_KEY_ALIAS_NAME = "data_in_compat";
 
+    private final String AES_ENCRYPT_ENGINE;
+    private final String AES_DECRYPT_ENGINE;
+    private final String AES_COMPAT_ENCRYPT_ENGINE;
+    private final String AES_COMPAT_DECRYPT_ENGINE;
+    private final String RSA_ENCRYPT_ENGINE;
+    private final String RSA_DECRYPT_ENGINE;
+    private final String MAC_ENGINE;
+    private final String DATA_KEY_ENCRYPT_ENGINE;
+    private final String DATA_KEY_DECRYPT_ENGINE;
+
+    private final CryptoEnginePool mEnginePool = new CryptoEnginePool();
+
+    private final KeyStoreProvider mKeyStoreProvider = sKeyStoreProvider;
     private KeyStore mStore;
+    //keystore key, null in compat mode
     private SecretKey aesKey;
-    private SecretKey macKey;
+
+    //compat mode keys, decrypted with the RSA key on first use after setup or a wipe
+    private final DataKeyHolder mCompatAesKey;
+    private final DataKeyHolder mCompatMacKey;
+    //software key of the values written with ALGORITHM_AES_GCM_DATA_KEY, decrypted with the keystore key
+    private final DataKeyHolder mDataKey;
+    private volatile boolean mDataKeyEnabled = false;
+    //data keys of the segmented files, shared by the file jobs
+    private final FileKeyCache mFileKeys = new FileKeyCache(DEFAULT_DATA_KEY_TIMEOUT_MILLIS);
 
     private RSAPublicKey publicKey;
     private RSAPrivateKey privateKey;
@@ -124,6 +166,7 @@ public class EncryptionManager {
     private String mKeyAliasPrefix;
 
     private boolean isCompatMode = false;
+    private volatile boolean mCompactEnvelope = false;
 
     private Context mContext;
     SharedPreferences mPrefs;
@@ -186,6 +229,43 @@ public class EncryptionManager {
         RSA_KEY_ALIAS = String.format("%s_%s", mKeyAliasPrefix, RSA_KEY_ALIAS_NAME);
         AES_KEY_ALIAS = String.format("%s_%s", mKeyAliasPrefix, AES_KEY_ALIAS_NAME);
         MAC_KEY_ALIAS = String.format("%s_%s", mKeyAliasPrefix, MAC_KEY_ALIAS_NAME);
+        DATA_KEY_ALIAS = String.format("%s_%s", mKeyAliasPrefix, DATA_KEY_ALIAS_NAME);
+
+        AES_ENCRYPT_ENGINE = String.format("%s#%s#encrypt", AES_CIPHER, AES_KEY_ALIAS);
+        AES_DECRYPT_ENGINE = String.format("%s#%s#decrypt", AES_CIPHER, AES_KEY_ALIAS);
+        AES_COMPAT_ENCRYPT_ENGINE = String.format("%s#%s#encrypt", AES_CIPHER_COMPAT, AES_KEY_ALIAS);
+        AES_COMPAT_DECRYPT_ENGINE = String.format("%s#%s#decrypt", AES_CIPHER_COMPAT, AES_KEY_ALIAS);
+        RSA_ENCRYPT_ENGINE = String.format("%s#%s#encrypt", RSA_CIPHER, RSA_KEY_ALIAS);
+        RSA_DECRYPT_ENGINE = String.format("%s#%s#decrypt", RSA_CIPHER, RSA_KEY_ALIAS);
+        MAC_ENGINE = String.format("%s#%s", MAC_CIPHER, MAC_KEY_ALIAS);
+        DATA_KEY_ENCRYPT_ENGINE = String.format("%s#%s#encrypt", AES_CIPHER, DATA_KEY_ALIAS);
+        DATA_KEY_DECRYPT_ENGINE = String.format("%s#%s#decrypt", AES_CIPHER, DATA_KEY_ALIAS);
+
+        //engines initialized with a wiped key must not be reused
+        Runnable invalidateEngines = new Runnable() {
+            @Override
+            public void run() {
+                mEnginePool.invalidate();
+            }
+        };
+        mCompatAesKey = new DataKeyHolder(KEY_ALGORITHM_AES, new DataKeyHolder.Loader() {
+            @Override
+            public byte[] load() throws GeneralSecurityException, IOException {
+                return unwrapFallbackAESKey(mPrefs);
+            }
+        }, DEFAULT_DATA_KEY_TIMEOUT_MILLIS, invalidateEngines);
+        mCompatMacKey = new DataKeyHolder(MAC_CIPHER, new DataKeyHolder.Loader() {
+            @Override
+            public byte[] load() throws GeneralSecurityException, IOException {
+                return unwrapMacKey(mPrefs);
+            }
+        }, DEFAULT_DATA_KEY_TIMEOUT_MILLIS, invalidateEngines);
+        mDataKey = new DataKeyHolder(KEY_ALGORITHM_AES, new DataKeyHolder.Loader() {
+            @Override
+            public byte[] load() throws GeneralSecurityException, IOException {
+                return loadDataKey();
+            }
+        }, DEFAULT_DATA_KEY_TIMEOUT_MILLIS, invalidateEngines);
 
         String isCompatKey = getHashed(IS_COMPAT_MODE_KEY_ALIAS);
         isCompatMode = prefStore.getBoolean(isCompatKey, Build.VERSION.SDK_INT < Build.VERSION_CODES.M);
@@ -230,7 +310,14 @@ public class EncryptionManager {
     }
 
     <T extends Exception> boolean tryRecovery(T e){
-        return mRecoveryHandler != null && mRecoveryHandler.onRecoveryRequired(e, mStore, keyAliases());
+        long start = CryptoMetrics.start();
+        boolean recovered = false;
+        try {
+            recovered = mRecoveryHandler != null && mRecoveryHandler.onRecoveryRequired(e, mStore, keyAliases());
+            return recovered;
+        } finally {
+            CryptoMetrics.record(CryptoMetrics.Operation.RECOVERY, start, recovered);
+        }
     }
 
     List<String> keyAliases(){
@@ -377,10 +464,22 @@ public class EncryptionManager {
      */
     public EncryptedData encrypt(byte[] bytes) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException, IOException, BadPaddingException, NoSuchProviderException, IllegalBlockSizeException, InvalidAlgorithmParameterException {
         if (bytes != null && bytes.length > 0) {
-            byte[] IV = getIV();
-            if (isCompatMode)
-                return encryptAESCompat(bytes, IV);
-            else return encryptAES(bytes, IV);
+            long start = CryptoMetrics.start();
+            boolean success = false;
+            try {
+                byte[] IV = getIV();
+                EncryptedData result;
+                if (isCompatMode)
+                    result = encryptAESCompat(bytes, IV);
+                else if (mDataKeyEnabled)
+                    result = encryptWithDataKey(bytes, IV);
+                else result = encryptAES(bytes, IV);
+
+                success = true;
+                return result;
+            } finally {
+                CryptoMetrics.record(CryptoMetrics.Operation.ENCRYPT, start, success);
+            }
         }
 
         return null;
@@ -402,9 +501,25 @@ public class EncryptionManager {
      */
     public byte[] decrypt(EncryptedData data) throws IOException, NoSuchPaddingException, InvalidAlgorithmParameterException, NoSuchAlgorithmException, IllegalBlockSizeException, BadPaddingException, InvalidMacException, NoSuchProviderException, InvalidKeyException {
         if (data != null && data.encryptedData != null) {
-            if (isCompatMode)
-                return decryptAESCompat(data);
-            else return decryptAES(data);
+            long start = CryptoMetrics.start();
+            boolean success = false;
+            try {
+                byte[] result;
+                if (data.algorithm == EnvelopeCodec.ALGORITHM_AES_GCM_DATA_KEY && !isCompatMode) {
+                    result = decryptWithDataKey(data);
+                } else if (data.algorithm != EnvelopeCodec.ALGORITHM_UNKNOWN && data.algorithm != keyStoreAlgorithm()) {
+                    throw new InvalidAlgorithmParameterException("Data was encrypted with an unsupported algorithm: " + data.algorithm);
+                } else if (isCompatMode) {
+                    result = decryptAESCompat(data);
+                } else {
+                    result = decryptAES(data);
+                }
+
+                success = true;
+                return result;
+            } finally {
+                CryptoMetrics.record(CryptoMetrics.Operation.DECRYPT, start, success);
+            }
         }
 
         return null;
@@ -446,16 +561,128 @@ public class EncryptionManager {
      * @throws BadPaddingException
      */
     String decrypt(String text) throws IOException, NoSuchPaddingException, InvalidKeyException, NoSuchAlgorithmException, IllegalBlockSizeException, BadPaddingException, InvalidMacException, NoSuchProviderException, InvalidAlgorithmParameterException, KeyStoreException, UnrecoverableEntryException {
-        if (text != null && text.length() > 0) {
-            EncryptedData encryptedData = decodeEncryptedText(text);
-            byte[] decrypted = tryDecrypt(encryptedData);
+        byte[] decrypted = decryptToBytes(text);
 
-            return new String(decrypted, 0, decrypted.length, DEFAULT_CHARSET);
+        if (decrypted != null) {
+            try {
+                return new String(decrypted, 0, decrypted.length, DEFAULT_CHARSET);
+            } finally {
+                Arrays.fill(decrypted, (byte) 0);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @param text stored envelope
+     * @return the decrypted UTF-8 bytes, which the caller should zero once done, or null for an empty text
+     */
+    @Nullable
+    byte[] decryptToBytes(String text) throws IOException, NoSuchPaddingException, InvalidKeyException, NoSuchAlgorithmException, IllegalBlockSizeException, BadPaddingException, InvalidMacException, NoSuchProviderException, InvalidAlgorithmParameterException, KeyStoreException, UnrecoverableEntryException {
+        if (text != null && text.length() > 0) {
+            return tryDecrypt(decodeEncryptedText(text));
         }
 
         return null;
     }
 
+    /**
+     * @return decryptor of several values on the calling thread, must be closed once done
+     */
+    BatchDecryptor newBatchDecryptor() {
+        return new BatchDecryptor();
+    }
+
+    /**
+     * Decrypts several values with the engines and keys fetched once for the whole batch instead of once
+     * per value, only the cipher init with the IV of each value is left. Values that fail with a
+     * recoverable error go through {@link #tryDecrypt(EncryptedData)}, the engines are fetched again after it.
+     * Confined to the thread that created it.
+     */
+    final class BatchDecryptor {
+        private Cipher mCipher;
+        private Cipher mDataKeyCipher;
+        private SecretKey mBatchCompatKey;
+        private SecretKey mBatchDataKey;
+
+        private BatchDecryptor() {
+        }
+
+        /**
+         * @param text stored envelope
+         * @return the decrypted UTF-8 bytes, which the caller should zero once done, or null for an empty text
+         */
+        @Nullable
+        byte[] decrypt(String text) throws GeneralSecurityException, IOException {
+            if (text == null || text.length() == 0) return null;
+
+            EncryptedData data = decodeEncryptedText(text);
+            if (data.encryptedData == null) return null;
+
+            long start = CryptoMetrics.start();
+            boolean success = false;
+            try {
+                byte[] result = decryptData(data);
+                success = true;
+                return result;
+            } catch (Exception ex) {
+                if (!isRecoverableError(ex)) throw ex;
+            } finally {
+                CryptoMetrics.record(CryptoMetrics.Operation.DECRYPT, start, success);
+            }
+
+            //the recovery reloads the keys
+            close();
+            return tryDecrypt(data);
+        }
+
+        private byte[] decryptData(EncryptedData data) throws GeneralSecurityException, IOException {
+            if (data.algorithm == EnvelopeCodec.ALGORITHM_AES_GCM_DATA_KEY && !isCompatMode) {
+                if (mBatchDataKey == null) mBatchDataKey = acquire(mDataKey);
+                if (mDataKeyCipher == null) mDataKeyCipher = mEnginePool.cipher(DATA_KEY_DECRYPT_ENGINE, AES_CIPHER);
+
+                mDataKeyCipher.init(Cipher.DECRYPT_MODE, mBatchDataKey, new GCMParameterSpec(GCM_TAG_LENGTH, data.IV));
+                return mDataKeyCipher.doFinal(data.encryptedData);
+            }
+
+            if (data.algorithm != EnvelopeCodec.ALGORITHM_UNKNOWN && data.algorithm != keyStoreAlgorithm()) {
+                throw new InvalidAlgorithmParameterException("Data was encrypted with an unsupported algorithm: " + data.algorithm);
+            }
+
+            if (isCompatMode) {
+                if (!verifyMac(data.mac, data.getDataForMacComputation())) throw new InvalidMacException();
+
+                if (mBatchCompatKey == null) mBatchCompatKey = acquire(mCompatAesKey);
+                if (mCipher == null) mCipher = mEnginePool.cipher(AES_COMPAT_DECRYPT_ENGINE, AES_CIPHER_COMPAT, BOUNCY_CASTLE_PROVIDER);
+
+                mCipher.init(Cipher.DECRYPT_MODE, mBatchCompatKey, new IvParameterSpec(data.IV));
+            } else {
+                if (mCipher == null) mCipher = mEnginePool.cipher(AES_DECRYPT_ENGINE, AES_CIPHER);
+
+                mCipher.init(Cipher.DECRYPT_MODE, aesKey, new GCMParameterSpec(GCM_TAG_LENGTH, data.IV));
+            }
+
+            return mCipher.doFinal(data.encryptedData);
+        }
+
+        /**
+         * Releases the data keys held for the batch
+         */
+        void close() {
+            if (mBatchDataKey != null) {
+                mDataKey.release();
+                mBatchDataKey = null;
+            }
+            if (mBatchCompatKey != null) {
+                mCompatAesKey.release();
+                mBatchCompatKey = null;
+            }
+            mCipher = null;
+            mDataKeyCipher = null;
+        }
+    }
+
     /**
      *
      * @param fileIn file to encrypt
@@ -472,8 +699,8 @@ public class EncryptionManager {
         Cipher cipher = isCompatMode ? getCipherAESCompat(IV, true) : getCipherAES(IV, true);
         CipherOutputStream cipherOut = new CipherOutputStream(fileOut, cipher);
 
-        //store IV
-        fileOut.write(IV);
+        //store IV, the keystore generates its own for GCM
+        fileOut.write(cipher.getIV());
 
         byte[] buffer = new byte[4096];
         int read;
@@ -525,22 +752,163 @@ public class EncryptionManager {
         cipherIn.close();
     }
 
-    public static String getHashed(String text) throws NoSuchAlgorithmException, UnsupportedEncodingException {
-        final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+    /**
+     * Encrypts a stream into the segmented format, see {@link #encryptSegmented(InputStream, OutputStream, int)}
+     * @param fileIn plaintext
+     * @param fileOut destination of the encrypted file
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    public void encryptSegmented(InputStream fileIn, OutputStream fileOut) throws IOException, GeneralSecurityException {
+        encryptSegmented(fileIn, fileOut, SegmentedFileCipher.DEFAULT_CHUNK_SIZE);
+    }
 
-        byte[] result = digest.digest(text.getBytes(DEFAULT_CHARSET));
+    /**
+     * Encrypts a stream in fixed-size chunks, each authenticated on its own, memory use doesn't depend
+     * on the file size. The file gets a random data key which is stored in its header, encrypted
+     * with the store key. Doesn't close the streams.
+     * @param fileIn plaintext
+     * @param fileOut destination of the encrypted file
+     * @param chunkSize plaintext bytes per chunk
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    public void encryptSegmented(InputStream fileIn, OutputStream fileOut, int chunkSize) throws IOException, GeneralSecurityException {
+        new SegmentedFileCipher(this).encrypt(fileIn, fileOut, chunkSize);
+    }
 
-        return toHex(result);
+    /**
+     * Decrypts a file written by {@link #encryptSegmented(InputStream, OutputStream, int)}, every chunk
+     * is verified before its plaintext is written. Doesn't close the streams.
+     * @param fileIn encrypted file
+     * @param fileOut destination of the plaintext
+     * @throws CorruptedFileException if a chunk was modified or the file was truncated
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    public void decryptSegmented(InputStream fileIn, OutputStream fileOut) throws IOException, GeneralSecurityException {
+        new SegmentedFileCipher(this).decrypt(fileIn, fileOut);
     }
 
-    static String toHex(byte[] data) {
-        StringBuilder sb = new StringBuilder();
+    /**
+     * Channel variant of {@link #encryptSegmented(InputStream, OutputStream, int)}, produces the same format.
+     * Encrypts the input from its position to its end, chunks go through direct buffers so large files
+     * aren't copied through the Java heap. Doesn't close the channels.
+     * @param fileIn plaintext
+     * @param fileOut destination of the encrypted file, written at its position
+     * @param chunkSize plaintext bytes per chunk
+     * @param mapInput true to memory-map the input in windows instead of reading it
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    public void encryptSegmented(FileChannel fileIn, FileChannel fileOut, int chunkSize, boolean mapInput) throws IOException, GeneralSecurityException {
+        new SegmentedFileCipher(this).encrypt(fileIn, fileOut, chunkSize, mapInput);
+    }
 
-        for (byte b : data) {
-            sb.append(String.format("%02X", b));
+    /**
+     * @see #encryptSegmented(FileChannel, FileChannel, int, boolean)
+     */
+    public void encryptSegmented(FileChannel fileIn, FileChannel fileOut) throws IOException, GeneralSecurityException {
+        encryptSegmented(fileIn, fileOut, SegmentedFileCipher.DEFAULT_CHUNK_SIZE, false);
+    }
+
+    /**
+     * Channel variant of {@link #decryptSegmented(InputStream, OutputStream)}, the encrypted file must start
+     * at offset 0 of the input. Doesn't close the channels.
+     * @param fileIn encrypted file
+     * @param fileOut destination of the plaintext, written at its position
+     * @throws CorruptedFileException if a chunk was modified or the file was truncated
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    public void decryptSegmented(FileChannel fileIn, FileChannel fileOut) throws IOException, GeneralSecurityException {
+        new SegmentedFileCipher(this).decrypt(fileIn, fileOut);
+    }
+
+    /**
+     * Encrypts the files in the segmented format on a pool of worker threads. The store key is used
+     * once, to encrypt a data key that is shared by the files of this and the following jobs until
+     * it's idle for the data key timeout or wiped.
+     * @param tasks source and destination files, sources are not deleted
+     * @param parallelism maximum number of files processed at the same time
+     * @param listener optional progress listener, called on the worker threads
+     * @return the running job, can be cancelled
+     */
+    public FileBatchJob encryptFiles(List<FileBatchJob.Task> tasks, int parallelism, @Nullable FileBatchJob.Listener listener) {
+        return FileBatchJob.start(new SegmentedFileCipher(this), mFileKeys, true, SegmentedFileCipher.DEFAULT_CHUNK_SIZE, tasks, parallelism, listener);
+    }
+
+    /**
+     * Decrypts files written in the segmented format on a pool of worker threads, every distinct
+     * data key is decrypted with the store key once and kept for the following jobs like the data key.
+     * @param tasks source and destination files, sources are not deleted
+     * @param parallelism maximum number of files processed at the same time
+     * @param listener optional progress listener, called on the worker threads
+     * @return the running job, can be cancelled
+     */
+    public FileBatchJob decryptFiles(List<FileBatchJob.Task> tasks, int parallelism, @Nullable FileBatchJob.Listener listener) {
+        return FileBatchJob.start(new SegmentedFileCipher(this), mFileKeys, false, SegmentedFileCipher.DEFAULT_CHUNK_SIZE, tasks, parallelism, listener);
+    }
+
+    /**
+     * Opens a file written by {@link #encryptSegmented(InputStream, OutputStream, int)} for random access,
+     * reads decrypt only the chunks covering the requested range
+     * @param channel encrypted file, closed together with the reader
+     * @return reader of the plaintext
+     * @throws CorruptedFileException if the header or the last chunk is invalid
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    public EncryptedFileReader openSegmented(FileChannel channel) throws IOException, GeneralSecurityException {
+        return new EncryptedFileReader(new SegmentedFileCipher(this), channel);
+    }
+
+    /**
+     * Hashes are memoized in a plaintext key -> hashed key index that keeps the most recently used
+     * keys, repeated lookups of the same key don't compute the digest again
+     * @param text
+     * @return hex encoded SHA-256 of the text
+     * @throws NoSuchAlgorithmException
+     * @throws UnsupportedEncodingException
+     */
+    public static String getHashed(String text) throws NoSuchAlgorithmException, UnsupportedEncodingException {
+        String hashed;
+        synchronized (HASHED_KEY_INDEX) {
+            hashed = HASHED_KEY_INDEX.get(text);
+        }
+        if (hashed != null) return hashed;
+
+        long start = CryptoMetrics.start();
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+
+            byte[] result = digest.digest(text.getBytes(DEFAULT_CHARSET));
+            hashed = toHex(result);
+        } finally {
+            CryptoMetrics.record(CryptoMetrics.Operation.HASH, start, hashed != null);
         }
 
-        return sb.toString();
+        synchronized (HASHED_KEY_INDEX) {
+            HASHED_KEY_INDEX.put(text, hashed);
+        }
+
+        return hashed;
+    }
+
+    /**
+     * Sets the keystore used by the managers created afterwards, existing managers keep theirs
+     * @param provider e.g. an in-memory keystore to run off-device, null for {@link KeyStoreProvider#ANDROID}
+     */
+    public static void setKeyStoreProvider(@Nullable KeyStoreProvider provider) {
+        sKeyStoreProvider = provider != null ? provider : KeyStoreProvider.ANDROID;
+    }
+
+    public static KeyStoreProvider getKeyStoreProvider() {
+        return sKeyStoreProvider;
+    }
+
+    static String toHex(byte[] data) {
+        return EnvelopeCodec.toHex(data);
     }
 
     public static String base64Encode(byte[] data) {
@@ -551,30 +919,124 @@ public class EncryptionManager {
         return Base64.decode(text, Base64.NO_WRAP);
     }
 
+    /**
+     * New values are written in the legacy delimited envelope by default, values in either format are
+     * always readable. Versions without the compact envelope can't read the values written in it, so
+     * it's a one-way change of the stored format.
+     * @param enabled true to write new values in the compact (v2) envelope
+     */
+    public void setCompactEnvelopeEnabled(boolean enabled) {
+        mCompactEnvelope = enabled;
+    }
+
+    boolean isCompactEnvelopeEnabled() {
+        return mCompactEnvelope;
+    }
+
+    /**
+     * New values are encrypted with a software data key instead of the keystore key, the data key is
+     * decrypted with the keystore key once and kept in memory until it's idle for the timeout or wiped.
+     * Values written with the data key are always stored in the compact envelope and need a version
+     * with data key support to be read. Has no effect in compat mode, where values are encrypted with
+     * software keys already and those keys are kept the same way.
+     * @param enabled true to encrypt new values with the data key
+     */
+    public void setDataKeyEnabled(boolean enabled) {
+        mDataKeyEnabled = enabled;
+    }
+
+    /**
+     * @param timeoutMillis time after the last use at which the in-memory data keys are wiped, 0 keeps
+     *                      them until {@link #wipeDataKeys()}
+     */
+    public void setDataKeyTimeout(long timeoutMillis) {
+        mDataKey.setTimeout(timeoutMillis);
+        mCompatAesKey.setTimeout(timeoutMillis);
+        mCompatMacKey.setTimeout(timeoutMillis);
+        mFileKeys.setTimeout(timeoutMillis);
+    }
+
+    /**
+     * Zeroes the in-memory data keys and drops the keys of the file jobs, they are decrypted with the
+     * keystore key again on next use.
+     * Call it when the app gets locked.
+     */
+    public void wipeDataKeys() {
+        mDataKey.wipe();
+        mCompatAesKey.wipe();
+        mCompatMacKey.wipe();
+        mFileKeys.wipe();
+    }
+
+    /**
+     * Resolves the keys and creates the cipher instances of the current mode, so the first value
+     * operation costs the same as the following ones. Keys decrypted on first use, the data key and
+     * the compat mode keys, are decrypted here as well. Call it on a background thread at app start,
+     * e.g. from Application.onCreate.
+     */
+    public void prewarm() throws IOException, NoSuchPaddingException, InvalidKeyException, NoSuchAlgorithmException, IllegalBlockSizeException, BadPaddingException, InvalidMacException, NoSuchProviderException, InvalidAlgorithmParameterException, KeyStoreException, UnrecoverableEntryException {
+        long start = SystemClock.elapsedRealtime();
+
+        //a round trip goes through the same keys, engines and envelope codec as the stored values
+        decrypt(encrypt(PREWARM_PROBE));
+
+        Logger.d("Encryption prewarmed in " + (SystemClock.elapsedRealtime() - start) + " ms");
+    }
+
+    byte currentAlgorithm() {
+        if (isCompatMode) return EnvelopeCodec.ALGORITHM_AES_CBC_HMAC;
+        return mDataKeyEnabled ? EnvelopeCodec.ALGORITHM_AES_GCM_DATA_KEY : EnvelopeCodec.ALGORITHM_AES_GCM;
+    }
+
+    /**
+     * @return algorithm of the values encrypted directly with the keys of the current mode
+     */
+    byte keyStoreAlgorithm() {
+        return isCompatMode ? EnvelopeCodec.ALGORITHM_AES_CBC_HMAC : EnvelopeCodec.ALGORITHM_AES_GCM;
+    }
+
+    /**
+     * @return algorithm the data was encrypted with, as set by {@link #encrypt(byte[])}
+     */
+    byte algorithmOf(EncryptedData data) {
+        return data.algorithm != EnvelopeCodec.ALGORITHM_UNKNOWN ? data.algorithm : keyStoreAlgorithm();
+    }
+
     String encodeEncryptedData(EncryptedData data) {
-        if (data.mac != null) {
-            return base64Encode(data.IV) + DELIMITER + base64Encode(data.encryptedData) + DELIMITER + base64Encode(data.mac);
-        } else {
-            return base64Encode(data.IV) + DELIMITER + base64Encode(data.encryptedData);
+        //the legacy envelope has no algorithm id, values encrypted with the data key need the compact one
+        if (mCompactEnvelope || data.algorithm == EnvelopeCodec.ALGORITHM_AES_GCM_DATA_KEY) {
+            return EnvelopeCodec.encodeCompact(data, algorithmOf(data));
         }
+
+        return EnvelopeCodec.encode(data);
     }
 
     EncryptedData decodeEncryptedText(String text) {
-        EncryptedData result = new EncryptedData();
-        String[] parts = text.split(DELIMITER);
-        result.IV = base64Decode(parts[0]);
-        result.encryptedData = base64Decode(parts[1]);
+        return EnvelopeCodec.decodeAny(text);
+    }
 
-        if (parts.length > 2) {
-            result.mac = base64Decode(parts[2]);
-        }
+    /**
+     * Re-packs a legacy envelope into the compact one, the encrypted bytes are kept as they are
+     * @param text stored envelope
+     * @return compact envelope or null if the text isn't in the legacy format
+     */
+    @Nullable
+    String reencodeLegacy(String text) {
+        if (text == null || !EnvelopeCodec.isLegacy(text)) return null;
 
-        return result;
+        return EnvelopeCodec.encodeCompact(EnvelopeCodec.decode(text), keyStoreAlgorithm());
     }
 
     void loadKeyStore() throws KeyStoreException, CertificateException, NoSuchAlgorithmException, IOException {
-        mStore = KeyStore.getInstance(KEYSTORE_PROVIDER);
-        mStore.load(null);
+        long start = CryptoMetrics.start();
+        boolean success = false;
+        try {
+            mStore = mKeyStoreProvider.getKeyStore();
+            mStore.load(null);
+            success = true;
+        } finally {
+            CryptoMetrics.record(CryptoMetrics.Operation.KEYSTORE_LOAD, start, success);
+        }
     }
 
     byte[] getIV() throws UnsupportedEncodingException {
@@ -601,7 +1063,7 @@ public class EncryptionManager {
      */
     @TargetApi(Build.VERSION_CODES.KITKAT)
     Cipher getCipherAES(byte[] IV, boolean modeEncrypt) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException {
-        Cipher cipher = Cipher.getInstance(AES_CIPHER);
+        Cipher cipher = mEnginePool.cipher(modeEncrypt ? AES_ENCRYPT_ENGINE : AES_DECRYPT_ENGINE, AES_CIPHER);
         if (modeEncrypt) {
             cipher.init(modeEncrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, aesKey);
         } else {
@@ -652,13 +1114,89 @@ public class EncryptionManager {
         return cipher.doFinal(encryptedData.encryptedData);
     }
 
-    Cipher getCipherAESCompat(byte[] IV, boolean modeEncrypt) throws NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException, InvalidAlgorithmParameterException, InvalidKeyException {
-        Cipher c = Cipher.getInstance(AES_CIPHER_COMPAT, BOUNCY_CASTLE_PROVIDER);
-        c.init(modeEncrypt? Cipher.ENCRYPT_MODE:Cipher.DECRYPT_MODE, aesKey, new IvParameterSpec(IV));
+    Cipher getCipherAESCompat(byte[] IV, boolean modeEncrypt) throws NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException, InvalidAlgorithmParameterException, InvalidKeyException, IOException {
+        Cipher c = mEnginePool.cipher(modeEncrypt ? AES_COMPAT_ENCRYPT_ENGINE : AES_COMPAT_DECRYPT_ENGINE, AES_CIPHER_COMPAT, BOUNCY_CASTLE_PROVIDER);
+        SecretKey key = acquire(mCompatAesKey);
+        try {
+            c.init(modeEncrypt? Cipher.ENCRYPT_MODE:Cipher.DECRYPT_MODE, key, new IvParameterSpec(IV));
+        } finally {
+            mCompatAesKey.release();
+        }
 
         return c;
     }
 
+    /**
+     * @return the key of the holder, errors of its loader as the exception types the recovery expects
+     */
+    private SecretKey acquire(DataKeyHolder holder) throws InvalidKeyException, IOException {
+        try {
+            return holder.acquire();
+        } catch (InvalidKeyException | IOException e) {
+            throw e;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to decrypt a data key", e);
+        }
+    }
+
+    EncryptedData encryptWithDataKey(byte[] bytes, byte[] IV) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, IOException {
+        Cipher cipher = mEnginePool.cipher(DATA_KEY_ENCRYPT_ENGINE, AES_CIPHER);
+        SecretKey key = acquire(mDataKey);
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH, IV));
+        } finally {
+            mDataKey.release();
+        }
+
+        EncryptedData result = new EncryptedData();
+        result.IV = IV;
+        result.encryptedData = cipher.doFinal(bytes);
+        result.algorithm = EnvelopeCodec.ALGORITHM_AES_GCM_DATA_KEY;
+
+        return result;
+    }
+
+    byte[] decryptWithDataKey(EncryptedData encryptedData) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, IOException {
+        Cipher cipher = mEnginePool.cipher(DATA_KEY_DECRYPT_ENGINE, AES_CIPHER);
+        SecretKey key = acquire(mDataKey);
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH, encryptedData.IV));
+        } finally {
+            mDataKey.release();
+        }
+
+        return cipher.doFinal(encryptedData.encryptedData);
+    }
+
+    /**
+     * Decrypts the stored data key with the keystore key, a new one is generated and stored on first use
+     * @return the raw data key
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    byte[] loadDataKey() throws GeneralSecurityException, IOException {
+        String hashedAlias = getHashed(DATA_KEY_ALIAS);
+        String stored = mPrefs.getString(hashedAlias, null);
+
+        if (stored != null) {
+            byte[] key = decryptAES(EnvelopeCodec.decodeAny(stored));
+            if (key.length != DATA_KEY_LENGTH) {
+                throw new InvalidKeyException("Invalid data key");
+            }
+            return key;
+        }
+
+        byte[] key = new byte[DATA_KEY_LENGTH];
+        new SecureRandom().nextBytes(key);
+
+        EncryptedData wrapped = encryptAES(key, getIV());
+        if (!mPrefs.edit().putString(hashedAlias, EnvelopeCodec.encodeCompact(wrapped, EnvelopeCodec.ALGORITHM_AES_GCM)).commit()) {
+            Arrays.fill(key, (byte) 0);
+            throw new IOException("Failed to store the data key");
+        }
+
+        return key;
+    }
+
     /**
      *
      * @param bytes
@@ -673,7 +1211,7 @@ public class EncryptionManager {
      * @throws UnsupportedEncodingException
      * @throws InvalidAlgorithmParameterException
      */
-    EncryptedData encryptAESCompat(byte[] bytes, byte[] IV) throws NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, UnsupportedEncodingException, InvalidAlgorithmParameterException {
+    EncryptedData encryptAESCompat(byte[] bytes, byte[] IV) throws NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException, InvalidKeyException, BadPaddingException, IllegalBlockSizeException, UnsupportedEncodingException, InvalidAlgorithmParameterException, IOException {
         Cipher c = getCipherAESCompat(IV, true);
         EncryptedData result = new EncryptedData();
         result.IV = c.getIV();
@@ -683,7 +1221,7 @@ public class EncryptionManager {
         return result;
     }
 
-    byte[] decryptAESCompat(EncryptedData encryptedData) throws UnsupportedEncodingException, NoSuchAlgorithmException, InvalidKeyException, NoSuchProviderException, NoSuchPaddingException, InvalidAlgorithmParameterException, BadPaddingException, IllegalBlockSizeException, InvalidMacException {
+    byte[] decryptAESCompat(EncryptedData encryptedData) throws UnsupportedEncodingException, NoSuchAlgorithmException, InvalidKeyException, NoSuchProviderException, NoSuchPaddingException, InvalidAlgorithmParameterException, BadPaddingException, IllegalBlockSizeException, InvalidMacException, IOException {
         if (verifyMac(encryptedData.mac, encryptedData.getDataForMacComputation())) {
             Cipher c = getCipherAESCompat(encryptedData.IV, false);
             return c.doFinal(encryptedData.encryptedData);
@@ -693,13 +1231,27 @@ public class EncryptionManager {
     void loadKey(SharedPreferences prefStore) throws KeyStoreException, UnrecoverableEntryException, NoSuchAlgorithmException, NoSuchPaddingException, NoSuchProviderException, InvalidKeyException, IOException {
         if (!isCompatMode) {
             if (mStore.containsAlias(AES_KEY_ALIAS) && mStore.entryInstanceOf(AES_KEY_ALIAS, KeyStore.SecretKeyEntry.class)) {
-                KeyStore.SecretKeyEntry entry = (KeyStore.SecretKeyEntry) mStore.getEntry(AES_KEY_ALIAS, null);
+                long start = CryptoMetrics.start();
+                KeyStore.SecretKeyEntry entry = null;
+                try {
+                    entry = (KeyStore.SecretKeyEntry) mStore.getEntry(AES_KEY_ALIAS, null);
+                } finally {
+                    CryptoMetrics.record(CryptoMetrics.Operation.KEY_FETCH, start, entry != null);
+                }
                 aesKey = entry.getSecretKey();
             }
         } else {
-            aesKey = getFallbackAESKey(prefStore);
-            macKey = getMacKey(prefStore);
+            aesKey = null;
         }
+
+        //the keys may have changed, they are decrypted again on next use
+        mCompatAesKey.wipe();
+        mCompatMacKey.wipe();
+        mDataKey.wipe();
+        mFileKeys.wipe();
+
+        //engines initialized with the previous keys must not be reused
+        mEnginePool.invalidate();
     }
 
     boolean generateKey(Context context, @Nullable byte[] seed, SharedPreferences prefStore) throws KeyStoreException, NoSuchProviderException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, UnrecoverableEntryException, NoSuchPaddingException, InvalidKeyException, IOException {
@@ -720,7 +1272,7 @@ public class EncryptionManager {
     @TargetApi(Build.VERSION_CODES.M)
     boolean generateAESKey(@Nullable byte[] seed) throws KeyStoreException, NoSuchProviderException, NoSuchAlgorithmException, InvalidAlgorithmParameterException {
         if (!mStore.containsAlias(AES_KEY_ALIAS)) {
-            KeyGenerator keyGen = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEYSTORE_PROVIDER);
+            KeyGenerator keyGen = mKeyStoreProvider.getKeyGenerator(KeyProperties.KEY_ALGORITHM_AES);
 
             KeyGenParameterSpec spec = new KeyGenParameterSpec.Builder(AES_KEY_ALIAS, KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
                     .setCertificateSubject(new X500Principal("CN = Secured Preference Store, O = Devliving Online"))
@@ -806,6 +1358,12 @@ public class EncryptionManager {
     }
 
     SecretKey getFallbackAESKey(SharedPreferences prefStore) throws IOException, NoSuchAlgorithmException, InvalidKeyException, NoSuchProviderException, NoSuchPaddingException {
+        byte[] keyData = unwrapFallbackAESKey(prefStore);
+        return keyData != null ? new SecretKeySpec(keyData, "AES") : null;
+    }
+
+    @Nullable
+    byte[] unwrapFallbackAESKey(SharedPreferences prefStore) throws IOException, NoSuchAlgorithmException, InvalidKeyException, NoSuchProviderException, NoSuchPaddingException {
         String key = getHashed(AES_KEY_ALIAS);
 
         String base64Value = prefStore.getString(key, null);
@@ -813,22 +1371,27 @@ public class EncryptionManager {
             byte[] encryptedData = base64Decode(base64Value);
             byte[] shiftedEncodedKey = RSADecrypt(encryptedData);
             byte[] keyData = xorWithKey(shiftedEncodedKey, SHIFTING_KEY);
+            if (keyData != shiftedEncodedKey) Arrays.fill(shiftedEncodedKey, (byte) 0);
 
-            return new SecretKeySpec(keyData, "AES");
+            return keyData;
         }
 
         return null;
     }
 
     SecretKey getMacKey(SharedPreferences prefStore) throws IOException, NoSuchAlgorithmException, InvalidKeyException, NoSuchProviderException, NoSuchPaddingException {
+        byte[] keyData = unwrapMacKey(prefStore);
+        return keyData != null ? new SecretKeySpec(keyData, MAC_CIPHER) : null;
+    }
+
+    @Nullable
+    byte[] unwrapMacKey(SharedPreferences prefStore) throws IOException, NoSuchAlgorithmException, InvalidKeyException, NoSuchProviderException, NoSuchPaddingException {
         String key = getHashed(MAC_KEY_ALIAS);
 
         String base64 = prefStore.getString(key, null);
         if (base64 != null) {
             byte[] encryptedKey = base64Decode(base64);
-            byte[] keyData = RSADecrypt(encryptedKey);
-
-            return new SecretKeySpec(keyData, MAC_CIPHER);
+            return RSADecrypt(encryptedKey);
         }
 
         return null;
@@ -836,7 +1399,13 @@ public class EncryptionManager {
 
     void loadRSAKeys() throws KeyStoreException, UnrecoverableEntryException, NoSuchAlgorithmException {
         if (mStore.containsAlias(RSA_KEY_ALIAS) && mStore.entryInstanceOf(RSA_KEY_ALIAS, KeyStore.PrivateKeyEntry.class)) {
-            KeyStore.PrivateKeyEntry entry = (KeyStore.PrivateKeyEntry) mStore.getEntry(RSA_KEY_ALIAS, null);
+            long start = CryptoMetrics.start();
+            KeyStore.PrivateKeyEntry entry = null;
+            try {
+                entry = (KeyStore.PrivateKeyEntry) mStore.getEntry(RSA_KEY_ALIAS, null);
+            } finally {
+                CryptoMetrics.record(CryptoMetrics.Operation.KEY_FETCH, start, entry != null);
+            }
             publicKey = (RSAPublicKey) entry.getCertificate().getPublicKey();
             privateKey = (RSAPrivateKey) entry.getPrivateKey();
         }
@@ -845,7 +1414,7 @@ public class EncryptionManager {
     @SuppressWarnings("WrongConstant")
     boolean generateRSAKeys(Context context, @Nullable byte[] seed) throws NoSuchProviderException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, KeyStoreException {
         if (!mStore.containsAlias(RSA_KEY_ALIAS)) {
-            KeyPairGenerator keyGen = KeyPairGenerator.getInstance(KEY_ALGORITHM_RSA, KEYSTORE_PROVIDER);
+            KeyPairGenerator keyGen = mKeyStoreProvider.getKeyPairGenerator(KEY_ALGORITHM_RSA);
 
             KeyPairGeneratorSpec spec;
             Calendar start = Calendar.getInstance();
@@ -889,13 +1458,18 @@ public class EncryptionManager {
         return false;
     }
 
-    byte[] computeMac(byte[] data) throws NoSuchAlgorithmException, InvalidKeyException {
-        Mac HmacSha256 = Mac.getInstance(MAC_CIPHER);
-        HmacSha256.init(macKey);
+    byte[] computeMac(byte[] data) throws NoSuchAlgorithmException, InvalidKeyException, IOException {
+        Mac HmacSha256;
+        SecretKey key = acquire(mCompatMacKey);
+        try {
+            HmacSha256 = mEnginePool.mac(MAC_ENGINE, MAC_CIPHER, key);
+        } finally {
+            mCompatMacKey.release();
+        }
         return HmacSha256.doFinal(data);
     }
 
-    boolean verifyMac(byte[] mac, byte[] data) throws InvalidKeyException, NoSuchAlgorithmException {
+    boolean verifyMac(byte[] mac, byte[] data) throws InvalidKeyException, NoSuchAlgorithmException, IOException {
         if (mac != null && data != null) {
             byte[] actualMac = computeMac(data);
 
@@ -913,7 +1487,7 @@ public class EncryptionManager {
     }
 
     byte[] RSAEncrypt(byte[] bytes) throws KeyStoreException, UnrecoverableEntryException, NoSuchAlgorithmException, NoSuchProviderException, NoSuchPaddingException, InvalidKeyException, IOException {
-        Cipher cipher = Cipher.getInstance(RSA_CIPHER, SSL_PROVIDER);
+        Cipher cipher = mEnginePool.cipher(RSA_ENCRYPT_ENGINE, RSA_CIPHER, SSL_PROVIDER);
         cipher.init(Cipher.ENCRYPT_MODE, publicKey);
 
         ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
@@ -925,7 +1499,7 @@ public class EncryptionManager {
     }
 
     byte[] RSADecrypt(byte[] bytes) throws NoSuchPaddingException, NoSuchAlgorithmException, NoSuchProviderException, InvalidKeyException, IOException {
-        Cipher cipher = Cipher.getInstance(RSA_CIPHER, SSL_PROVIDER);
+        Cipher cipher = mEnginePool.cipher(RSA_DECRYPT_ENGINE, RSA_CIPHER, SSL_PROVIDER);
         cipher.init(Cipher.DECRYPT_MODE, privateKey);
 
         CipherInputStream cipherInputStream = new CipherInputStream(new ByteArrayInputStream(bytes), cipher);
@@ -949,6 +1523,7 @@ public class EncryptionManager {
         byte[] IV;
         byte[] encryptedData;
         byte[] mac;
+        byte algorithm = EnvelopeCodec.ALGORITHM_UNKNOWN;
 
         public EncryptedData() {
             IV = null;
@@ -0,0 +1,314 @@
+package devliving.online.securedpreferencestore;
+
+import android.util.Base64;
+
+import devliving.online.securedpreferencestore.EncryptionManager.EncryptedData;
+
+/**
+ * Hex/Base85 codec for the stored value envelopes.
+ *
+ * Legacy envelope: {@code base64(IV)]base64(data)]base64(mac)}.
+ * Compact envelope (v2): {@code base85(version | algorithm | IV length | IV | mac length | mac | data)},
+ * a single pass over a binary layout. Base85 turns 4 bytes into 5 chars instead of Base64's 3 into 4,
+ * its alphabet avoids the chars escaped in the preferences XML and the legacy delimiter, so both formats
+ * can be told apart by looking for the delimiter.
+ *
+ * The legacy envelope is split on the delimiter without regular expressions, its parts are encoded with
+ * {@link Base64}, which is faster than a hand-written Java loop for the value sizes stored. Hex and
+ * Base85 write into a single pre-sized buffer.
+ */
+final class EnvelopeCodec {
+    final static char DELIMITER = ']';
+
+    final static byte VERSION_COMPACT = 2;
+
+    final static byte ALGORITHM_UNKNOWN = 0;
+    final static byte ALGORITHM_AES_GCM = 1;
+    final static byte ALGORITHM_AES_CBC_HMAC = 2;
+    //AES-GCM with the software data key, see EncryptionManager#setDataKeyEnabled
+    final static byte ALGORITHM_AES_GCM_DATA_KEY = 3;
+
+    private final static int COMPACT_HEADER_LENGTH = 4;
+
+    private final static char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    //printable ASCII without " & ' < > \ ] } ~
+    private final static char[] BASE85_ALPHABET = "!#$%()*+,-./0123456789:;=?@ABCDEFGHIJKLMNOPQRSTUVWXYZ[^_`abcdefghijklmnopqrstuvwxyz{|".toCharArray();
+    private final static int[] BASE85_VALUES = new int[128];
+
+    private final static int INVALID = -1;
+
+    static {
+        for (int i = 0; i < BASE85_VALUES.length; i++) {
+            BASE85_VALUES[i] = INVALID;
+        }
+        for (int i = 0; i < BASE85_ALPHABET.length; i++) {
+            BASE85_VALUES[BASE85_ALPHABET[i]] = i;
+        }
+    }
+
+    private EnvelopeCodec() {
+    }
+
+    /**
+     * @param data
+     * @return upper case hex representation of the data
+     */
+    static String toHex(byte[] data) {
+        char[] chars = new char[data.length * 2];
+
+        for (int i = 0, j = 0; i < data.length; i++) {
+            int b = data[i] & 0xFF;
+            chars[j++] = HEX_DIGITS[b >>> 4];
+            chars[j++] = HEX_DIGITS[b & 0x0F];
+        }
+
+        return new String(chars);
+    }
+
+    /**
+     * @param data
+     * @return {@code base64(IV)]base64(data)} followed by {@code ]base64(mac)} if there is a mac
+     */
+    static String encode(EncryptedData data) {
+        StringBuilder sb = new StringBuilder()
+                .append(Base64.encodeToString(data.IV, Base64.NO_WRAP))
+                .append(DELIMITER)
+                .append(Base64.encodeToString(data.encryptedData, Base64.NO_WRAP));
+
+        if (data.mac != null) {
+            sb.append(DELIMITER).append(Base64.encodeToString(data.mac, Base64.NO_WRAP));
+        }
+
+        return sb.toString();
+    }
+
+    static int base85Length(int byteCount) {
+        int remaining = byteCount % 4;
+        return byteCount / 4 * 5 + (remaining > 0 ? remaining + 1 : 0);
+    }
+
+    /**
+     * Encodes 4 byte groups into 5 chars, a trailing group of n bytes takes n + 1 chars
+     * @param data
+     * @return base85 text
+     */
+    static String base85Encode(byte[] data) {
+        char[] out = new char[base85Length(data.length)];
+        int fullGroups = data.length / 4 * 4;
+        int offset = 0;
+        int i = 0;
+
+        while (i < fullGroups) {
+            long group = ((data[i++] & 0xFF) << 24 | (data[i++] & 0xFF) << 16 | (data[i++] & 0xFF) << 8 | (data[i++] & 0xFF)) & 0xFFFFFFFFL;
+            //the quotient fits an int after the first division, the rest is done with int arithmetic
+            int rest = (int) (group / 85);
+            out[offset + 4] = BASE85_ALPHABET[(int) (group - rest * 85L)];
+            out[offset + 3] = BASE85_ALPHABET[rest % 85];
+            rest /= 85;
+            out[offset + 2] = BASE85_ALPHABET[rest % 85];
+            rest /= 85;
+            out[offset + 1] = BASE85_ALPHABET[rest % 85];
+            out[offset] = BASE85_ALPHABET[rest / 85];
+            offset += 5;
+        }
+
+        int remaining = data.length - fullGroups;
+        if (remaining > 0) {
+            long group = 0;
+            for (int j = 0; j < 4; j++) {
+                group = (group << 8) | (j < remaining ? data[i + j] & 0xFF : 0);
+            }
+
+            //only the leading digits are kept, they're enough to restore the trailing bytes
+            for (int j = 4; j >= 0; j--) {
+                if (j <= remaining) out[offset + j] = BASE85_ALPHABET[(int) (group % 85)];
+                group /= 85;
+            }
+        }
+
+        return new String(out);
+    }
+
+    /**
+     * @param text text produced by {@link #base85Encode(byte[])}
+     * @return decoded bytes
+     * @throws IllegalArgumentException if the text isn't valid base85
+     */
+    static byte[] base85Decode(CharSequence text) {
+        int length = text.length();
+        int remaining = length % 5;
+        if (remaining == 1) {
+            throw new IllegalArgumentException("bad base-85");
+        }
+
+        byte[] out = new byte[length / 5 * 4 + (remaining > 0 ? remaining - 1 : 0)];
+        int fullGroups = length - remaining;
+        int offset = 0;
+        int i = 0;
+
+        while (i < fullGroups) {
+            //4 digits fit an int, only the last step needs the long
+            int high = base85ValueOf(text.charAt(i++));
+            high = high * 85 + base85ValueOf(text.charAt(i++));
+            high = high * 85 + base85ValueOf(text.charAt(i++));
+            high = high * 85 + base85ValueOf(text.charAt(i++));
+            long group = high * 85L + base85ValueOf(text.charAt(i++));
+
+            if (group > 0xFFFFFFFFL) {
+                throw new IllegalArgumentException("bad base-85");
+            }
+
+            out[offset++] = (byte) (group >>> 24);
+            out[offset++] = (byte) (group >>> 16);
+            out[offset++] = (byte) (group >>> 8);
+            out[offset++] = (byte) group;
+        }
+
+        if (remaining > 0) {
+            long group = 0;
+            for (int j = 0; j < 5; j++) {
+                //a trailing group is padded with the highest digit, so truncating gives the original bytes
+                group = group * 85 + (j < remaining ? base85ValueOf(text.charAt(i + j)) : 84);
+            }
+
+            if (group > 0xFFFFFFFFL) {
+                throw new IllegalArgumentException("bad base-85");
+            }
+
+            for (int j = 0; j < remaining - 1; j++) {
+                out[offset++] = (byte) (group >>> (24 - j * 8));
+            }
+        }
+
+        return out;
+    }
+
+    private static int base85ValueOf(char c) {
+        int value = c < BASE85_VALUES.length ? BASE85_VALUES[c] : INVALID;
+        if (value == INVALID) {
+            throw new IllegalArgumentException("bad base-85");
+        }
+
+        return value;
+    }
+
+    /**
+     * @param text stored envelope
+     * @return true if the text is in the legacy, delimited, format
+     */
+    static boolean isLegacy(String text) {
+        return text.indexOf(DELIMITER) >= 0;
+    }
+
+    /**
+     * @param text envelope in either format
+     * @return decoded data
+     * @throws IllegalArgumentException if the text isn't a valid envelope
+     */
+    static EncryptedData decodeAny(String text) {
+        return isLegacy(text) ? decode(text) : decodeCompact(text);
+    }
+
+    /**
+     * @param data
+     * @param algorithm algorithm id stored in the envelope
+     * @return compact (v2) envelope
+     */
+    static String encodeCompact(EncryptedData data, byte algorithm) {
+        int macLength = data.mac != null ? data.mac.length : 0;
+        if (data.IV.length > 0xFF || macLength > 0xFF) {
+            throw new IllegalArgumentException("IV or mac is too long for the compact envelope");
+        }
+
+        byte[] binary = new byte[COMPACT_HEADER_LENGTH + data.IV.length + macLength + data.encryptedData.length];
+        int offset = 0;
+        binary[offset++] = VERSION_COMPACT;
+        binary[offset++] = algorithm;
+        binary[offset++] = (byte) data.IV.length;
+        System.arraycopy(data.IV, 0, binary, offset, data.IV.length);
+        offset += data.IV.length;
+        binary[offset++] = (byte) macLength;
+        if (macLength > 0) {
+            System.arraycopy(data.mac, 0, binary, offset, macLength);
+            offset += macLength;
+        }
+        System.arraycopy(data.encryptedData, 0, binary, offset, data.encryptedData.length);
+
+        return base85Encode(binary);
+    }
+
+    /**
+     * @param text text produced by {@link #encodeCompact(EncryptedData, byte)}
+     * @return decoded data, {@link EncryptedData#algorithm} is set from the envelope
+     * @throws IllegalArgumentException if the text isn't a valid compact envelope
+     */
+    static EncryptedData decodeCompact(String text) {
+        byte[] binary = base85Decode(text);
+        if (binary.length < COMPACT_HEADER_LENGTH || binary[0] != VERSION_COMPACT) {
+            throw new IllegalArgumentException("Unexpected encryption state");
+        }
+
+        int offset = 1;
+        byte algorithm = binary[offset++];
+        int ivLength = binary[offset++] & 0xFF;
+        if (offset + ivLength + 1 > binary.length) {
+            throw new IllegalArgumentException("Unexpected encryption state");
+        }
+
+        EncryptedData result = new EncryptedData();
+        result.algorithm = algorithm;
+        result.IV = new byte[ivLength];
+        System.arraycopy(binary, offset, result.IV, 0, ivLength);
+        offset += ivLength;
+
+        int macLength = binary[offset++] & 0xFF;
+        if (offset + macLength > binary.length) {
+            throw new IllegalArgumentException("Unexpected encryption state");
+        }
+        if (macLength > 0) {
+            result.mac = new byte[macLength];
+            System.arraycopy(binary, offset, result.mac, 0, macLength);
+            offset += macLength;
+        }
+
+        result.encryptedData = new byte[binary.length - offset];
+        System.arraycopy(binary, offset, result.encryptedData, 0, result.encryptedData.length);
+
+        return result;
+    }
+
+    /**
+     * @param text text produced by {@link #encode(EncryptedData)}
+     * @return decoded data
+     * @throws IllegalArgumentException if the text isn't a valid envelope
+     */
+    static EncryptedData decode(String text) {
+        int first = text.indexOf(DELIMITER);
+        if (first < 0) {
+            throw new IllegalArgumentException("Unexpected encryption state");
+        }
+
+        int second = text.indexOf(DELIMITER, first + 1);
+        int dataEnd = second < 0 ? text.length() : second;
+
+        EncryptedData result = new EncryptedData();
+        result.IV = base64Decode(text, 0, first);
+        result.encryptedData = base64Decode(text, first + 1, dataEnd);
+
+        if (second >= 0) {
+            int third = text.indexOf(DELIMITER, second + 1);
+            int macEnd = third < 0 ? text.length() : third;
+
+            if (macEnd > second + 1) {
+                result.mac = base64Decode(text, second + 1, macEnd);
+            }
+        }
+
+        return result;
+    }
+
+    private static byte[] base64Decode(String text, int start, int end) {
+        return Base64.decode(text.substring(start, end), Base64.NO_WRAP);
+    }
+}
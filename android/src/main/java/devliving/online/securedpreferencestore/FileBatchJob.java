@@ -0,0 +1,299 @@
+package devliving.online.securedpreferencestore;
+
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import devliving.online.securedpreferencestore.SegmentedFileCipher.ChunkSealer;
+import devliving.online.securedpreferencestore.SegmentedFileCipher.Header;
+
+/**
+ * Encrypts or decrypts a list of files in the segmented format on a bounded pool of worker threads.
+ *
+ * The keystore is only touched for the key material, which is kept by the {@link FileKeyCache} of the
+ * manager across jobs: new files share one data key, every distinct data key of read files is unwrapped once. Chunk
+ * encryption runs without holding any lock. Failed files don't stop the job, their partial output is
+ * deleted and the error is reported per file. Cancelling interrupts the running files and skips the
+ * queued ones.
+ */
+public class FileBatchJob implements Future<FileBatchResult> {
+    private final static int BUFFER_SIZE = 64 * 1024;
+    private final static long WORKER_KEEP_ALIVE_SECONDS = 1;
+
+    public interface Listener {
+        /**
+         * Called on a worker thread after every file, successful or not
+         * @param source source of the processed file
+         * @param processed number of processed files
+         * @param total number of files in the job
+         */
+        void onProgress(File source, int processed, int total);
+
+        /**
+         * Called on a worker thread when a file fails, before {@link #onProgress(File, int, int)}
+         * @param source source of the failed file
+         * @param error the error
+         */
+        void onFailure(File source, Exception error);
+    }
+
+    public static class Task {
+        public final File source;
+        public final File destination;
+
+        public Task(File source, File destination) {
+            this.source = source;
+            this.destination = destination;
+        }
+    }
+
+    private final SegmentedFileCipher mCipher;
+    private final FileKeyCache mKeys;
+    private final boolean mEncrypt;
+    private final int mChunkSize;
+    private final List<Task> mTasks;
+    @Nullable
+    private final Listener mListener;
+
+    private final FileBatchResult mResult;
+    private final CountDownLatch mDone;
+    private final List<FileFuture> mFutures = new ArrayList<>();
+    private volatile boolean mCancelled = false;
+
+    private FileBatchJob(SegmentedFileCipher cipher, FileKeyCache keys, boolean encrypt, int chunkSize, List<Task> tasks, @Nullable Listener listener) {
+        mCipher = cipher;
+        mKeys = keys;
+        mEncrypt = encrypt;
+        mChunkSize = chunkSize;
+        mTasks = Collections.unmodifiableList(new ArrayList<>(tasks));
+        mListener = listener;
+        mResult = new FileBatchResult(mTasks.size());
+        mDone = new CountDownLatch(mTasks.size());
+    }
+
+    static FileBatchJob start(SegmentedFileCipher cipher, FileKeyCache keys, boolean encrypt, int chunkSize, List<Task> tasks,
+                              int parallelism, @Nullable Listener listener) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+        }
+
+        FileBatchJob job = new FileBatchJob(cipher, keys, encrypt, chunkSize, tasks, listener);
+        job.submitAll(parallelism);
+        return job;
+    }
+
+    private void submitAll(int parallelism) {
+        final AtomicInteger counter = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(parallelism, parallelism, WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "SPS-file-batch-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+
+        synchronized (mFutures) {
+            for (Task task : mTasks) {
+                FileFuture future = new FileFuture(task);
+                mFutures.add(future);
+                executor.execute(future);
+            }
+        }
+
+        //workers exit once the queue is drained
+        executor.shutdown();
+    }
+
+    private void process(Task task) {
+        if (mCancelled) return;
+
+        try {
+            if (mEncrypt) {
+                encryptFile(task);
+            } else {
+                decryptFile(task);
+            }
+
+            int processed = mResult.addCompleted(task.source);
+            if (mListener != null) mListener.onProgress(task.source, processed, mTasks.size());
+        } catch (Exception e) {
+            if (mCancelled && e instanceof InterruptedIOException) return;
+
+            Logger.e(e);
+            int processed = mResult.addFailure(task.source, e);
+            if (mListener != null) {
+                mListener.onFailure(task.source, e);
+                mListener.onProgress(task.source, processed, mTasks.size());
+            }
+        }
+    }
+
+    private void encryptFile(Task task) throws IOException, GeneralSecurityException {
+        ChunkSealer sealer = mCipher.newSealer(mChunkSize, mKeys.dataKey(mCipher));
+
+        InputStream in = new BufferedInputStream(new FileInputStream(task.source), BUFFER_SIZE);
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(task.destination), BUFFER_SIZE);
+            boolean written = false;
+            try {
+                mCipher.encrypt(in, out, sealer);
+                written = true;
+            } finally {
+                out.close();
+                if (!written) deletePartialOutput(task);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void decryptFile(Task task) throws IOException, GeneralSecurityException {
+        InputStream in = new BufferedInputStream(new FileInputStream(task.source), BUFFER_SIZE);
+        try {
+            Header header = Header.read(in);
+            ChunkSealer sealer = new ChunkSealer(header, mKeys.unwrappedKey(mCipher, header));
+
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(task.destination), BUFFER_SIZE);
+            boolean written = false;
+            try {
+                mCipher.decrypt(in, out, sealer);
+                written = true;
+            } finally {
+                out.close();
+                if (!written) deletePartialOutput(task);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void deletePartialOutput(Task task) {
+        if (!task.destination.delete()) {
+            Logger.w("Failed to delete the partial output " + task.destination);
+        }
+    }
+
+    /**
+     * @return the result so far, complete once the job is done
+     */
+    public FileBatchResult getResult() {
+        return mResult;
+    }
+
+    /**
+     * Skips the queued files, the running ones are interrupted if mayInterruptIfRunning is true.
+     * Interrupted files are neither completed nor failed.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (isDone()) return false;
+
+        mCancelled = true;
+        mResult.setCancelled();
+
+        synchronized (mFutures) {
+            for (FileFuture future : mFutures) {
+                future.cancel(mayInterruptIfRunning);
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return mDone.getCount() == 0;
+    }
+
+    /**
+     * @return the result once every file has been processed
+     * @throws CancellationException if the job was cancelled, see {@link #getResult()} for the partial result
+     */
+    @Override
+    public FileBatchResult get() throws InterruptedException, ExecutionException {
+        mDone.await();
+        return result();
+    }
+
+    @Override
+    public FileBatchResult get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!mDone.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return result();
+    }
+
+    /**
+     * Counts down the job once per file, either when the file was processed or when it was
+     * cancelled before it started
+     */
+    private class FileFuture extends FutureTask<Void> {
+        private final AtomicBoolean mClaimed;
+
+        FileFuture(final Task task) {
+            this(task, new AtomicBoolean());
+        }
+
+        private FileFuture(final Task task, final AtomicBoolean claimed) {
+            super(new Runnable() {
+                @Override
+                public void run() {
+                    if (!claimed.compareAndSet(false, true)) return;
+
+                    try {
+                        process(task);
+                    } finally {
+                        mDone.countDown();
+                    }
+                }
+            }, null);
+            mClaimed = claimed;
+        }
+
+        @Override
+        protected void done() {
+            if (mClaimed.compareAndSet(false, true)) {
+                mDone.countDown();
+            }
+        }
+    }
+
+    private FileBatchResult result() {
+        if (mCancelled) {
+            throw new CancellationException();
+        }
+        return mResult;
+    }
+}
@@ -0,0 +1,66 @@
+package devliving.online.securedpreferencestore;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Outcome of a {@link FileBatchJob}, files that were neither completed nor failed were skipped
+ * because the job was cancelled
+ */
+public class FileBatchResult {
+    private final int mTotal;
+    private final List<File> mCompleted = new ArrayList<>();
+    private final Map<File, Exception> mFailures = new LinkedHashMap<>();
+    private boolean mCancelled = false;
+
+    FileBatchResult(int total) {
+        mTotal = total;
+    }
+
+    /**
+     * @return number of files in the job
+     */
+    public int getTotal() {
+        return mTotal;
+    }
+
+    /**
+     * @return sources of the files that were processed successfully
+     */
+    public synchronized List<File> getCompleted() {
+        return Collections.unmodifiableList(new ArrayList<>(mCompleted));
+    }
+
+    /**
+     * @return errors by source file
+     */
+    public synchronized Map<File, Exception> getFailures() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(mFailures));
+    }
+
+    public synchronized boolean hasFailures() {
+        return !mFailures.isEmpty();
+    }
+
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    synchronized int addCompleted(File source) {
+        mCompleted.add(source);
+        return mCompleted.size() + mFailures.size();
+    }
+
+    synchronized int addFailure(File source, Exception error) {
+        mFailures.put(source, error);
+        return mCompleted.size() + mFailures.size();
+    }
+
+    synchronized void setCancelled() {
+        mCancelled = true;
+    }
+}
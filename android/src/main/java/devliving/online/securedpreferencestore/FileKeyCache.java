@@ -0,0 +1,165 @@
+package devliving.online.securedpreferencestore;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import javax.crypto.SecretKey;
+
+import devliving.online.securedpreferencestore.SegmentedFileCipher.DataKey;
+import devliving.online.securedpreferencestore.SegmentedFileCipher.Header;
+
+/**
+ * Data keys of the segmented file format shared by the file jobs of an {@link EncryptionManager}, so
+ * consecutive jobs don't go to the keystore again.
+ *
+ * New files are encrypted with the same data key, keys unwrapped to read files are kept in a small LRU
+ * map by their wrapped form. All the keys are dropped once the cache is idle for the timeout, or on
+ * {@link #wipe()} when the store keys are reloaded or the data keys are wiped. The keys are
+ * {@link javax.crypto.spec.SecretKeySpec}s that can't be zeroed, dropping them only releases the references.
+ *
+ * The keystore is called outside the lock of the cache: a missing key is published as a future first, so
+ * jobs asking for the same key wait for a single keystore call while jobs using other keys aren't blocked.
+ * A failed future is dropped so the next job tries again.
+ */
+class FileKeyCache {
+    private final static int MAX_UNWRAPPED_KEYS = 16;
+
+    private FutureTask<DataKey> mDataKey;
+    private final LinkedHashMap<String, FutureTask<SecretKey>> mUnwrappedKeys = new LinkedHashMap<String, FutureTask<SecretKey>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, FutureTask<SecretKey>> eldest) {
+            return size() > MAX_UNWRAPPED_KEYS;
+        }
+    };
+    private long mTimeoutMillis;
+    private long mLastUse;
+
+    /**
+     * @param timeoutMillis idle timeout, 0 keeps the keys until they're wiped
+     */
+    FileKeyCache(long timeoutMillis) {
+        mTimeoutMillis = timeoutMillis;
+    }
+
+    synchronized void setTimeout(long timeoutMillis) {
+        mTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @return data key to encrypt new files with, wrapped with the store key on first use
+     */
+    DataKey dataKey(final SegmentedFileCipher cipher) throws IOException, GeneralSecurityException {
+        FutureTask<DataKey> task;
+        boolean created = false;
+        synchronized (this) {
+            touch();
+
+            task = mDataKey;
+            if (task == null) {
+                task = new FutureTask<>(new Callable<DataKey>() {
+                    @Override
+                    public DataKey call() throws Exception {
+                        return cipher.newDataKey();
+                    }
+                });
+                mDataKey = task;
+                created = true;
+            }
+        }
+
+        if (created) task.run();
+        try {
+            return await(task);
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            synchronized (this) {
+                if (mDataKey == task) mDataKey = null;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @param header header of the file to read
+     * @return the data key of the file, unwrapped with the store key once
+     */
+    SecretKey unwrappedKey(final SegmentedFileCipher cipher, final Header header) throws IOException, GeneralSecurityException {
+        String wrapped = EnvelopeCodec.toHex(header.wrappedKey);
+        FutureTask<SecretKey> task;
+        boolean created = false;
+        synchronized (this) {
+            touch();
+
+            task = mUnwrappedKeys.get(wrapped);
+            if (task == null) {
+                task = new FutureTask<>(new Callable<SecretKey>() {
+                    @Override
+                    public SecretKey call() throws Exception {
+                        return cipher.unwrapKey(header);
+                    }
+                });
+                mUnwrappedKeys.put(wrapped, task);
+                created = true;
+            }
+        }
+
+        if (created) task.run();
+        try {
+            return await(task);
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            synchronized (this) {
+                if (mUnwrappedKeys.get(wrapped) == task) mUnwrappedKeys.remove(wrapped);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Drops all the keys, new files get a new data key. Keys still being fetched are only handed to
+     * the jobs waiting for them.
+     */
+    synchronized void wipe() {
+        mDataKey = null;
+        mUnwrappedKeys.clear();
+    }
+
+    private void touch() {
+        long now = SystemClock.elapsedRealtime();
+        if (mTimeoutMillis > 0 && mLastUse > 0 && now - mLastUse >= mTimeoutMillis) {
+            wipe();
+        }
+        mLastUse = now;
+    }
+
+    /**
+     * Waits for a key fetched by another job, interrupts are kept for the caller since the keystore
+     * call can't be abandoned halfway
+     */
+    private static <T> T await(FutureTask<T> task) throws IOException, GeneralSecurityException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) throw (IOException) cause;
+                    if (cause instanceof GeneralSecurityException) throw (GeneralSecurityException) cause;
+                    if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                    if (cause instanceof Error) throw (Error) cause;
+                    throw new GeneralSecurityException(cause);
+                }
+            }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+}
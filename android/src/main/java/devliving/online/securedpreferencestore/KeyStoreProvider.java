@@ -0,0 +1,41 @@
+package devliving.online.securedpreferencestore;
+
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+
+import javax.crypto.KeyGenerator;
+
+/**
+ * Source of the keystore that holds the keys of the library and of the generators of those keys.
+ * {@link #ANDROID} is used unless another provider is set with
+ * {@link EncryptionManager#setKeyStoreProvider(KeyStoreProvider)}, e.g. the in-memory provider of the
+ * test sources to run the encryption off-device.
+ *
+ * Generators are initialized with a {@code KeyGenParameterSpec} or a {@code KeyPairGeneratorSpec}
+ * whatever the provider, generated keys are stored in the keystore under the alias of the spec.
+ * Implementations must be thread-safe.
+ */
+public interface KeyStoreProvider {
+    KeyStoreProvider ANDROID = new AndroidKeyStoreProvider();
+
+    /**
+     * @return a keystore instance, loaded with {@code load(null)} before use
+     * @throws KeyStoreException if the keystore isn't available
+     */
+    KeyStore getKeyStore() throws KeyStoreException;
+
+    /**
+     * @param algorithm key algorithm, e.g. {@code KeyProperties.KEY_ALGORITHM_AES}
+     * @return a generator that stores the generated keys in the keystore
+     */
+    KeyGenerator getKeyGenerator(String algorithm) throws NoSuchAlgorithmException, NoSuchProviderException;
+
+    /**
+     * @param algorithm key algorithm, e.g. {@code KeyProperties.KEY_ALGORITHM_RSA}
+     * @return a generator that stores the generated key pairs in the keystore
+     */
+    KeyPairGenerator getKeyPairGenerator(String algorithm) throws NoSuchAlgorithmException, NoSuchProviderException;
+}
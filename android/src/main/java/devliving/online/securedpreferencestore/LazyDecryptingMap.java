@@ -0,0 +1,99 @@
+package devliving.online.securedpreferencestore;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Read-only snapshot of the encrypted entries of a store, a value is decrypted the first time it's
+ * accessed and kept afterwards. Values that fail to decrypt are returned as null.
+ */
+class LazyDecryptingMap extends AbstractMap<String, Object> {
+    private final SecuredPreferenceStore mStore;
+    private final Map<String, ?> mEncrypted;
+    private final Map<String, Object> mDecrypted;
+
+    LazyDecryptingMap(SecuredPreferenceStore store, Map<String, ?> encrypted) {
+        mStore = store;
+        mEncrypted = encrypted;
+        mDecrypted = new HashMap<>(encrypted.size());
+    }
+
+    @Override
+    public int size() {
+        return mEncrypted.size();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return mEncrypted.containsKey(key);
+    }
+
+    @Override
+    public Object get(Object key) {
+        if (!mEncrypted.containsKey(key)) return null;
+
+        return decrypted((String) key);
+    }
+
+    private synchronized Object decrypted(String key) {
+        if (mDecrypted.containsKey(key)) return mDecrypted.get(key);
+
+        Object value = mStore.decryptEntry(key, mEncrypted.get(key));
+        mDecrypted.put(key, value);
+
+        return value;
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return new AbstractSet<Entry<String, Object>>() {
+            @Override
+            public Iterator<Entry<String, Object>> iterator() {
+                final Iterator<String> keys = mEncrypted.keySet().iterator();
+
+                return new Iterator<Entry<String, Object>>() {
+                    @Override
+                    public boolean hasNext() {
+                        return keys.hasNext();
+                    }
+
+                    @Override
+                    public Entry<String, Object> next() {
+                        final String key = keys.next();
+
+                        return new Entry<String, Object>() {
+                            @Override
+                            public String getKey() {
+                                return key;
+                            }
+
+                            @Override
+                            public Object getValue() {
+                                return decrypted(key);
+                            }
+
+                            @Override
+                            public Object setValue(Object value) {
+                                throw new UnsupportedOperationException();
+                            }
+                        };
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return mEncrypted.size();
+            }
+        };
+    }
+}
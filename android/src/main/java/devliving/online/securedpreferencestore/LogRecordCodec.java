@@ -0,0 +1,131 @@
+package devliving.online.securedpreferencestore;
+
+import androidx.annotation.Nullable;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Binary encoding of the entries written by the log based backends: a type byte, the key and the value,
+ * strings are length-prefixed UTF-8
+ */
+final class LogRecordCodec {
+    final static byte TYPE_REMOVE = 0;
+    final static byte TYPE_STRING = 1;
+    final static byte TYPE_STRING_SET = 2;
+    final static byte TYPE_INT = 3;
+    final static byte TYPE_LONG = 4;
+    final static byte TYPE_FLOAT = 5;
+    final static byte TYPE_BOOLEAN = 6;
+
+    private LogRecordCodec() {
+    }
+
+    @SuppressWarnings("unchecked")
+    static void writeEntry(DataOutputStream out, String key, @Nullable Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TYPE_REMOVE);
+            writeString(out, key);
+        } else if (value instanceof String) {
+            out.writeByte(TYPE_STRING);
+            writeString(out, key);
+            writeString(out, (String) value);
+        } else if (value instanceof Set) {
+            Set<String> values = (Set<String>) value;
+            out.writeByte(TYPE_STRING_SET);
+            writeString(out, key);
+            out.writeInt(values.size());
+            for (String item : values) {
+                writeString(out, item);
+            }
+        } else if (value instanceof Integer) {
+            out.writeByte(TYPE_INT);
+            writeString(out, key);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            writeString(out, key);
+            out.writeLong((Long) value);
+        } else if (value instanceof Float) {
+            out.writeByte(TYPE_FLOAT);
+            writeString(out, key);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(TYPE_BOOLEAN);
+            writeString(out, key);
+            out.writeBoolean((Boolean) value);
+        } else {
+            throw new IllegalArgumentException("Unsupported value type: " + value.getClass());
+        }
+    }
+
+    @Nullable
+    static Object readValue(DataInputStream in, byte type) throws IOException {
+        switch (type) {
+            case TYPE_REMOVE:
+                return null;
+            case TYPE_STRING:
+                return readString(in);
+            case TYPE_STRING_SET:
+                int count = in.readInt();
+                if (count < 0) throw new IOException("Invalid set size " + count);
+                Set<String> values = new HashSet<>(count);
+                for (int i = 0; i < count; i++) {
+                    values.add(readString(in));
+                }
+                return Collections.unmodifiableSet(values);
+            case TYPE_INT:
+                return in.readInt();
+            case TYPE_LONG:
+                return in.readLong();
+            case TYPE_FLOAT:
+                return in.readFloat();
+            case TYPE_BOOLEAN:
+                return in.readBoolean();
+            default:
+                throw new IOException("Unknown value type " + type);
+        }
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) throw new EOFException("Invalid string length " + length);
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Approximate encoded size of an entry, used to decide when the log is worth compacting.
+     * Keys and encrypted values are ASCII, so a char is counted as a byte.
+     */
+    @SuppressWarnings("unchecked")
+    static long entrySize(String key, Object value) {
+        long size = 5 + key.length();
+
+        if (value instanceof String) {
+            size += 4 + ((String) value).length();
+        } else if (value instanceof Set) {
+            size += 4;
+            for (String item : (Set<String>) value) {
+                size += 4 + item.length();
+            }
+        } else {
+            size += 8;
+        }
+
+        return size;
+    }
+}
@@ -0,0 +1,101 @@
+package devliving.online.securedpreferencestore;
+
+import androidx.annotation.Nullable;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Completion of a write queued with {@link SecuredPreferenceStore.AsyncEditor}, completes once the
+ * write has been encrypted and committed to disk.
+ */
+public class PendingWrite implements Future<Boolean> {
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    @Nullable
+    private final SecuredPreferenceStore.WriteCallback mCallback;
+    //plain keys the write touches
+    private final Set<String> mKeys;
+
+    private volatile boolean mResult;
+    private volatile Exception mError;
+    private volatile long mFailedWrites;
+
+    PendingWrite(@Nullable SecuredPreferenceStore.WriteCallback callback, Collection<String> keys) {
+        mCallback = callback;
+        mKeys = new HashSet<>(keys);
+    }
+
+    Set<String> getKeys() {
+        return mKeys;
+    }
+
+    /**
+     * @param failedWrites failed writes of the queue up to and including this one
+     */
+    void complete(boolean result, @Nullable Exception error, long failedWrites) {
+        mResult = result && error == null;
+        mError = error;
+        mFailedWrites = failedWrites;
+        mDone.countDown();
+
+        if (mCallback != null) {
+            try {
+                mCallback.onComplete(mResult, error);
+            } catch (RuntimeException e) {
+                Logger.e(e);
+            }
+        }
+    }
+
+    void await() throws InterruptedException {
+        mDone.await();
+    }
+
+    long getFailedWrites() {
+        return mFailedWrites;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return mDone.getCount() == 0;
+    }
+
+    @Override
+    public Boolean get() throws InterruptedException, ExecutionException {
+        mDone.await();
+        return result();
+    }
+
+    @Override
+    public Boolean get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!mDone.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+
+        return result();
+    }
+
+    private Boolean result() throws ExecutionException {
+        if (mError != null) {
+            throw new ExecutionException(mError);
+        }
+
+        return mResult;
+    }
+}
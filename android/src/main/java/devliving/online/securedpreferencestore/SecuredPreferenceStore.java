@@ -2,13 +2,13 @@ package devliving.online.securedpreferencestore;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.os.Build;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyStore;
@@ -17,12 +17,20 @@ import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.UnrecoverableEntryException;
 import java.security.cert.CertificateException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
@@ -37,17 +45,35 @@ public class SecuredPreferenceStore implements SharedPreferences {
     private final static int[] VERSIONS_WITH_BREAKING_CHANGES = new int[]{10}; //version code in ascending order
     final static String VERSION_KEY = "VERSION";
     private final static String DEFAULT_PREF_FILE_NAME = "SPS_file";
+    private final static String BLOB_DIRECTORY_NAME = "sps_blobs";
+    private final static int DEFAULT_BLOB_THRESHOLD = 2048;
+    private final static long BLOB_SWEEP_MIN_AGE_MILLIS = 10 * 60 * 1000;
+    private final static String DEFAULT_CHARSET = "UTF-8";
 
     private final String[] RESERVED_KEYS;
+    private final Set<String> mReservedKeys;
+    private final Set<String> mReservedHashedKeys;
 
     private SharedPreferences mPrefs;
+    private final StorageBackend.Factory mBackendFactory;
     private EncryptionManager mEncryptionManager;
 
     private static RecoveryHandler mRecoveryHandler;
 
+    private final RecoveryHandler mOwnRecoveryHandler;
+
     private static SecuredPreferenceStore mInstance;
 
-    private Exception mException;
+    private final AtomicReference<Exception> mException = new AtomicReference<>();
+
+    private volatile DecryptedValueCache mValueCache;
+
+    private final Object mWriteLock = new Object();
+
+    private volatile WriteBehindQueue mWriteBehind;
+
+    private final BlobStore mBlobStore;
+    private volatile int mBlobThreshold = DEFAULT_BLOB_THRESHOLD;
 
     /**
      *
@@ -55,6 +81,8 @@ public class SecuredPreferenceStore implements SharedPreferences {
      * @param storeName optional name of the preference file
      * @param keyPrefix optional prefix for encryption key aliases
      * @param bitShiftingKey seed for randomization and bit shifting, enhances security on older OS versions
+     * @param recoveryHandler recovery handler of this instance, the shared one is used if null
+     * @param backendFactory storage of the store and of the files it migrates from
      * @throws IOException
      * @throws CertificateException
      * @throws NoSuchAlgorithmException
@@ -67,11 +95,14 @@ public class SecuredPreferenceStore implements SharedPreferences {
      * @throws MigrationFailedException
      */
     private SecuredPreferenceStore(@NonNull Context appContext, @Nullable String storeName, @Nullable String keyPrefix,
-                                   @Nullable byte[] bitShiftingKey) throws IOException, CertificateException, NoSuchAlgorithmException, KeyStoreException, UnrecoverableEntryException, InvalidAlgorithmParameterException, NoSuchPaddingException, InvalidKeyException, NoSuchProviderException, MigrationFailedException {
+                                   @Nullable byte[] bitShiftingKey, @Nullable RecoveryHandler recoveryHandler,
+                                   @NonNull StorageBackend.Factory backendFactory) throws IOException, CertificateException, NoSuchAlgorithmException, KeyStoreException, UnrecoverableEntryException, InvalidAlgorithmParameterException, NoSuchPaddingException, InvalidKeyException, NoSuchProviderException, MigrationFailedException {
         Logger.d("Creating store instance");
+        mOwnRecoveryHandler = recoveryHandler;
+        mBackendFactory = backendFactory;
         // handle migration
         String fileName = storeName != null ? storeName : DEFAULT_PREF_FILE_NAME;
-        mPrefs = appContext.getSharedPreferences(fileName, Context.MODE_PRIVATE);
+        mPrefs = BackendSharedPreferences.wrap(backendFactory.open(appContext, fileName));
 
         int mRunningVersion = mPrefs.getInt(VERSION_KEY, 9);
 
@@ -83,15 +114,24 @@ public class SecuredPreferenceStore implements SharedPreferences {
         mEncryptionManager = new EncryptionManager(appContext, mPrefs, keyPrefix, bitShiftingKey, new KeyStoreRecoveryNotifier() {
             @Override
             public boolean onRecoveryRequired(Exception e, KeyStore keyStore, List<String> keyAliases) {
-                if (mRecoveryHandler != null)
-                    return mRecoveryHandler.recover(e, keyStore, keyAliases, mPrefs);
+                RecoveryHandler handler = mOwnRecoveryHandler != null ? mOwnRecoveryHandler : mRecoveryHandler;
+                if (handler != null)
+                    return handler.recover(e, keyStore, keyAliases, mPrefs);
                 else throw new RuntimeException(e);
             }
         });
 
+        mBlobStore = new BlobStore(new File(new File(appContext.getFilesDir(), BLOB_DIRECTORY_NAME), fileName), mEncryptionManager);
+
         RESERVED_KEYS = new String[]{VERSION_KEY, EncryptionManager.OVERRIDING_KEY_ALIAS_PREFIX_NAME,
                 mEncryptionManager.IS_COMPAT_MODE_KEY_ALIAS, mEncryptionManager.MAC_KEY_ALIAS,
-                mEncryptionManager.AES_KEY_ALIAS};
+                mEncryptionManager.AES_KEY_ALIAS, mEncryptionManager.DATA_KEY_ALIAS};
+
+        mReservedKeys = new HashSet<>(Arrays.asList(RESERVED_KEYS));
+        mReservedHashedKeys = new HashSet<>(RESERVED_KEYS.length);
+        for (String key : RESERVED_KEYS) {
+            mReservedHashedKeys.add(EncryptionManager.getHashed(key));
+        }
     }
 
     public static void setRecoveryHandler(RecoveryHandler recoveryHandler) {
@@ -135,7 +175,87 @@ public class SecuredPreferenceStore implements SharedPreferences {
         }
 
         setRecoveryHandler(recoveryHandler);
-        mInstance = new SecuredPreferenceStore(appContext, storeName, keyPrefix, bitShiftingKey);
+        mInstance = new SecuredPreferenceStore(appContext, storeName, keyPrefix, bitShiftingKey, null, SharedPreferencesBackend.FACTORY);
+    }
+
+    /**
+     * Creates a store that is independent of the shared instance, e.g. one store per account.
+     * The caller owns the returned instance and should keep it for as long as the store is used,
+     * opening the same preference file twice is not supported.
+     *
+     * @param appContext application context
+     * @param storeName name of the preference file
+     * @param keyPrefix optional prefix for encryption key aliases, stores with the same prefix share the keystore keys
+     * @param bitShiftingKey seed for randomization and bit shifting, enhances security on older OS versions
+     * @param recoveryHandler recovery handler of the new store
+     * @return a new store instance
+     *
+     * @throws IOException
+     * @throws CertificateException
+     * @throws NoSuchAlgorithmException
+     * @throws KeyStoreException
+     * @throws UnrecoverableEntryException
+     * @throws InvalidAlgorithmParameterException
+     * @throws NoSuchPaddingException
+     * @throws InvalidKeyException
+     * @throws NoSuchProviderException
+     * @throws MigrationFailedException
+     */
+    public static SecuredPreferenceStore open(Context appContext, @NonNull String storeName, @Nullable String keyPrefix, @Nullable byte[] bitShiftingKey,
+                                              RecoveryHandler recoveryHandler) throws IOException, CertificateException, NoSuchAlgorithmException, KeyStoreException, UnrecoverableEntryException, InvalidAlgorithmParameterException, NoSuchPaddingException, InvalidKeyException, NoSuchProviderException, MigrationFailedException {
+        return open(appContext, storeName, keyPrefix, bitShiftingKey, recoveryHandler, SharedPreferencesBackend.FACTORY);
+    }
+
+    /**
+     * Same as {@link #open(Context, String, String, byte[], RecoveryHandler)} with a custom storage,
+     * e.g. {@link AppendOnlyLogBackend#FACTORY} for stores that are written often.
+     * Data isn't moved between backends, a store must always be opened with the same one.
+     *
+     * @param backendFactory storage of the store
+     * @return a new store instance
+     *
+     * @throws IOException
+     * @throws CertificateException
+     * @throws NoSuchAlgorithmException
+     * @throws KeyStoreException
+     * @throws UnrecoverableEntryException
+     * @throws InvalidAlgorithmParameterException
+     * @throws NoSuchPaddingException
+     * @throws InvalidKeyException
+     * @throws NoSuchProviderException
+     * @throws MigrationFailedException
+     */
+    public static SecuredPreferenceStore open(Context appContext, @NonNull String storeName, @Nullable String keyPrefix, @Nullable byte[] bitShiftingKey,
+                                              RecoveryHandler recoveryHandler, @NonNull StorageBackend.Factory backendFactory) throws IOException, CertificateException, NoSuchAlgorithmException, KeyStoreException, UnrecoverableEntryException, InvalidAlgorithmParameterException, NoSuchPaddingException, InvalidKeyException, NoSuchProviderException, MigrationFailedException {
+        return new SecuredPreferenceStore(appContext, storeName, keyPrefix, bitShiftingKey, recoveryHandler, backendFactory);
+    }
+
+    /**
+     * Same as {@link #open(Context, String, String, byte[], RecoveryHandler)} on a background thread.
+     * Call it early, e.g. from Application.onCreate, so the keys are generated before the store is
+     * needed. Writes can be queued with {@link StoreProvisioning#edit()} while the store is opening.
+     *
+     * @return completion of the opening, fails with the errors of {@link #open(Context, String, String, byte[], RecoveryHandler)}
+     */
+    public static StoreProvisioning openAsync(Context appContext, @NonNull String storeName, @Nullable String keyPrefix, @Nullable byte[] bitShiftingKey,
+                                              RecoveryHandler recoveryHandler) {
+        return openAsync(appContext, storeName, keyPrefix, bitShiftingKey, recoveryHandler, SharedPreferencesBackend.FACTORY);
+    }
+
+    /**
+     * Same as {@link #open(Context, String, String, byte[], RecoveryHandler, StorageBackend.Factory)} on a
+     * background thread, see {@link #openAsync(Context, String, String, byte[], RecoveryHandler)}
+     *
+     * @return completion of the opening
+     */
+    public static StoreProvisioning openAsync(final Context appContext, @NonNull final String storeName, @Nullable final String keyPrefix, @Nullable final byte[] bitShiftingKey,
+                                              final RecoveryHandler recoveryHandler, @NonNull final StorageBackend.Factory backendFactory) {
+        return new StoreProvisioning(new Callable<SecuredPreferenceStore>() {
+            @Override
+            public SecuredPreferenceStore call() throws Exception {
+                return open(appContext, storeName, keyPrefix, bitShiftingKey, recoveryHandler, backendFactory);
+            }
+        });
     }
 
     /**
@@ -150,26 +270,186 @@ public class SecuredPreferenceStore implements SharedPreferences {
         return mEncryptionManager;
     }
 
-    private boolean isReservedKey(String key){
-        return Arrays.asList(RESERVED_KEYS).contains(key);
+    /**
+     * Enables an in-memory LRU cache of decrypted values, the cache is disabled by default.
+     * Cached values are kept as decrypted bytes, they are zeroed on eviction, on writes to their keys
+     * and on {@link #wipeValueCache()}. The Strings returned to the callers are copies the cache can't zero.
+     * @param maxEntries maximum number of cached values, 0 disables the cache
+     */
+    public void setValueCacheSize(int maxEntries) {
+        DecryptedValueCache previous = mValueCache;
+        mValueCache = maxEntries > 0 ? new DecryptedValueCache(maxEntries) : null;
+
+        if (previous != null) previous.wipe();
     }
 
-    private boolean isReservedHashedKey(String hashedKey) {
-        for(String key : RESERVED_KEYS) {
-            try {
-                if(hashedKey.equals(EncryptionManager.getHashed(key))) {
-                    return true;
+    /**
+     * Zeroes and drops all the cached decrypted values, call it when the store gets locked
+     */
+    public void wipeValueCache() {
+        DecryptedValueCache cache = mValueCache;
+        if (cache != null) cache.wipe();
+    }
+
+    /**
+     * Waits for the stored values to be loaded and prepares the encryption, see
+     * {@link EncryptionManager#prewarm()}. Call it on a background thread right after the store is
+     * opened, e.g. from Application.onCreate, so the first read doesn't pay for the initialization.
+     */
+    public void prewarm() throws IOException, NoSuchPaddingException, InvalidKeyException, NoSuchAlgorithmException, IllegalBlockSizeException, BadPaddingException, EncryptionManager.InvalidMacException, NoSuchProviderException, InvalidAlgorithmParameterException, KeyStoreException, UnrecoverableEntryException {
+        //blocks until the backend has read its file
+        mPrefs.contains(VERSION_KEY);
+        mEncryptionManager.prewarm();
+    }
+
+    /**
+     * Zeroes the in-memory data keys, see {@link EncryptionManager#setDataKeyEnabled(boolean)}.
+     * Call it with {@link #wipeValueCache()} when the store gets locked
+     */
+    public void wipeDataKeys() {
+        mEncryptionManager.wipeDataKeys();
+    }
+
+    /**
+     * Binary values written with {@code putBytes} whose size reaches the threshold are stored in
+     * separate encrypted files, the preference only keeps a pointer to the file. Such values are
+     * read from disk only when requested, so the preference file stays small.
+     * @param bytes minimum size of a value to store it in a separate file, 0 keeps every value in the preferences
+     */
+    public void setBlobThreshold(int bytes) {
+        mBlobThreshold = bytes;
+    }
+
+    /**
+     * Deletes blob files that no value points to, e.g. ones left behind by a write that was never
+     * committed or replaced through {@code apply()}. Recently written files are kept as they may belong
+     * to an editor that isn't committed yet.
+     * @return number of deleted files
+     */
+    public int deleteUnreferencedBlobs() {
+        List<String> pointers = new ArrayList<>();
+
+        synchronized (mWriteLock) {
+            for (Object value : mPrefs.getAll().values()) {
+                if (BlobStore.isPointer(value)) pointers.add((String) value);
+            }
+
+            return mBlobStore.deleteUnreferenced(pointers, BLOB_SWEEP_MIN_AGE_MILLIS);
+        }
+    }
+
+    /**
+     * Re-packs the values stored in the legacy envelope into the compact one on a background thread,
+     * so the preference file shrinks and loads faster. Values are not decrypted for this.
+     * Does nothing unless the compact envelope is enabled, see {@link EncryptionManager#setCompactEnvelopeEnabled(boolean)}.
+     * @return future with the number of re-encoded entries
+     */
+    public Future<Integer> reencodeLegacyValuesInBackground() {
+        FutureTask<Integer> task = new FutureTask<>(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return reencodeLegacyValues();
+            }
+        });
+
+        Thread thread = new Thread(task, "SPS-reencode");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+
+        return task;
+    }
+
+    @SuppressWarnings("unchecked")
+    int reencodeLegacyValues() {
+        int count = 0;
+        //older versions can still read the legacy values, only re-encode them once the app opted in
+        if (!mEncryptionManager.isCompactEnvelopeEnabled()) return count;
+
+        //holding the write lock, so a concurrent commit can't be overwritten with an older value
+        synchronized (mWriteLock) {
+            SharedPreferences.Editor editor = mPrefs.edit();
+
+            for (Map.Entry<String, ?> entry : mPrefs.getAll().entrySet()) {
+                String key = entry.getKey();
+                if (key.equals(VERSION_KEY) || isReservedHashedKey(key)) continue;
+
+                try {
+                    if (entry.getValue() instanceof String) {
+                        String compact = mEncryptionManager.reencodeLegacy((String) entry.getValue());
+                        if (compact != null) {
+                            editor.putString(key, compact);
+                            count++;
+                        }
+                    } else if (entry.getValue() instanceof Set) {
+                        Set<String> values = (Set<String>) entry.getValue();
+                        Set<String> compactValues = new HashSet<>(values.size());
+                        boolean changed = false;
+
+                        for (String value : values) {
+                            String compact = mEncryptionManager.reencodeLegacy(value);
+                            changed = changed || compact != null;
+                            compactValues.add(compact != null ? compact : value);
+                        }
+
+                        if (changed) {
+                            editor.putStringSet(key, compactValues);
+                            count++;
+                        }
+                    }
+                } catch (IllegalArgumentException e) {
+                    Logger.e("Unable to re-encode the value of key: " + key, e);
                 }
-            } catch (NoSuchAlgorithmException e) {
-                Logger.e(e);
-                pushException(e);
-            } catch (UnsupportedEncodingException e) {
-                Logger.e(e);
-                pushException(e);
             }
+
+            if (count > 0) editor.commit();
         }
 
-        return false;
+        Logger.d("Re-encoded values: " + count);
+        return count;
+    }
+
+    private String decryptValue(String hashedKey, String encryptedValue) throws GeneralSecurityException, IOException {
+        return decryptValue(hashedKey, encryptedValue, null);
+    }
+
+    /**
+     * @param decryptor decryptor of the batch the value is read in, null for a single read
+     */
+    private String decryptValue(String hashedKey, String encryptedValue, @Nullable EncryptionManager.BatchDecryptor decryptor) throws GeneralSecurityException, IOException {
+        if (BlobStore.isPointer(encryptedValue)) {
+            return EncryptionManager.base64Encode(mBlobStore.read(encryptedValue));
+        }
+
+        DecryptedValueCache cache = mValueCache;
+        if (cache == null && decryptor == null) return mEncryptionManager.decrypt(encryptedValue);
+
+        if (cache != null) {
+            String cached = cache.get(hashedKey, encryptedValue);
+            if (cached != null) return cached;
+        }
+
+        byte[] decrypted = decryptor != null ? decryptor.decrypt(encryptedValue) : mEncryptionManager.decryptToBytes(encryptedValue);
+        if (decrypted == null) return null;
+
+        if (cache != null) {
+            //the cache keeps the decrypted bytes and zeroes them once the entry is dropped
+            cache.put(hashedKey, encryptedValue, decrypted);
+            return new String(decrypted, DEFAULT_CHARSET);
+        }
+
+        try {
+            return new String(decrypted, DEFAULT_CHARSET);
+        } finally {
+            Arrays.fill(decrypted, (byte) 0);
+        }
+    }
+
+    private boolean isReservedKey(String key){
+        return mReservedKeys.contains(key);
+    }
+
+    private boolean isReservedHashedKey(String hashedKey) {
+        return mReservedHashedKeys.contains(hashedKey);
     }
 
     @Override
@@ -182,7 +462,7 @@ public class SecuredPreferenceStore implements SharedPreferences {
                 if(key.equals(VERSION_KEY) || isReservedHashedKey(key)) continue;
                 try {
                     Object value = all.get(key);
-                    dAll.put(key, mEncryptionManager.decrypt((String) value));
+                    dAll.put(key, decryptValue(key, (String) value));
                 } catch (Exception e) {
                     Logger.e(e);
                     pushException(e);
@@ -192,13 +472,75 @@ public class SecuredPreferenceStore implements SharedPreferences {
         return dAll;
     }
 
+    /**
+     * @return number of stored values, nothing is decrypted
+     */
+    public int size() {
+        int size = 0;
+
+        for (String key : mPrefs.getAll().keySet()) {
+            if (!key.equals(VERSION_KEY) && !isReservedHashedKey(key)) size++;
+        }
+
+        return size;
+    }
+
+    /**
+     * @return true if there are no stored values, nothing is decrypted
+     */
+    public boolean isEmpty() {
+        for (String key : mPrefs.getAll().keySet()) {
+            if (!key.equals(VERSION_KEY) && !isReservedHashedKey(key)) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Same as {@link #getAll()} but values are decrypted only when they are accessed, so the call itself
+     * costs no more than a copy of the encrypted entries
+     * @return read-only map of hashed keys to lazily decrypted values
+     */
+    public Map<String, Object> getAllLazily() {
+        Map<String, ?> all = mPrefs.getAll();
+        Map<String, Object> encrypted = new HashMap<>(all.size());
+
+        for (Map.Entry<String, ?> entry : all.entrySet()) {
+            if (entry.getKey().equals(VERSION_KEY) || isReservedHashedKey(entry.getKey())) continue;
+            encrypted.put(entry.getKey(), entry.getValue());
+        }
+
+        return new LazyDecryptingMap(this, encrypted);
+    }
+
+    @SuppressWarnings("unchecked")
+    Object decryptEntry(String hashedKey, Object encrypted) {
+        try {
+            if (encrypted instanceof Set) {
+                Set<String> eSet = (Set<String>) encrypted;
+                Set<String> dSet = new HashSet<>(eSet.size());
+
+                for (String val : eSet) {
+                    dSet.add(mEncryptionManager.decrypt(val));
+                }
+
+                return dSet;
+            }
+
+            return decryptValue(hashedKey, (String) encrypted);
+        } catch (Exception e) {
+            Logger.e(e);
+            pushException(e);
+        }
+
+        return null;
+    }
+
     @Override
     public String getString(String key, String defValue) {
         if(!isReservedKey(key)) {
             try {
-                String hashedKey = EncryptionManager.getHashed(key);
-                String value = mPrefs.getString(hashedKey, null);
-                if (value != null) return mEncryptionManager.decrypt(value);
+                return readString(key, defValue);
             } catch (Exception e) {
                 Logger.e(e);
                 pushException(e);
@@ -208,23 +550,105 @@ public class SecuredPreferenceStore implements SharedPreferences {
         return defValue;
     }
 
-    @Override
-    public Set<String> getStringSet(String key, Set<String> defValues) {
-        if(!isReservedKey(key)) {
+    /**
+     * Same as {@link #getString(String, String)} but errors are thrown to the caller instead of being kept
+     * for {@link #throwExceptionIfErrorOccurred()}, so concurrent readers only see their own errors.
+     * Nothing is allocated besides the value itself.
+     * @throws IllegalArgumentException if the key is reserved
+     * @throws GeneralSecurityException if the value can't be decrypted
+     * @throws IOException if the value or its blob can't be read
+     */
+    public String getStringChecked(String key, @Nullable String defValue) throws GeneralSecurityException, IOException {
+        checkNotReserved(key);
+        return readString(key, defValue);
+    }
+
+    private String readString(String key, String defValue) throws GeneralSecurityException, IOException {
+        Object pending = pendingValue(key);
+        if (pending != WriteBehindQueue.NOT_PENDING) {
+            if (pending instanceof byte[]) return EncryptionManager.base64Encode((byte[]) pending);
+            return pending instanceof String ? (String) pending : defValue;
+        }
+
+        String hashedKey = EncryptionManager.getHashed(key);
+        String value = mPrefs.getString(hashedKey, null);
+        if (value != null) return decryptValue(hashedKey, value);
+
+        return defValue;
+    }
+
+    private void checkNotReserved(String key) {
+        if (isReservedKey(key)) {
+            throw new IllegalArgumentException("Trying to read value for a reserved key");
+        }
+    }
+
+    /**
+     * Reads several values at once, errors are reported per key instead of through {@link #pullException()}.
+     * All the keys are hashed and looked up first, then the values are decrypted back to back with the
+     * cipher engine and the keys fetched once for the batch, only the cipher init with the IV of each
+     * value is left per key.
+     * @param keys keys to read
+     * @return decrypted values and errors by key
+     */
+    public BatchReadResult getStrings(Collection<String> keys) {
+        BatchReadResult result = new BatchReadResult(keys.size());
+
+        List<String> readKeys = new ArrayList<>(keys.size());
+        List<String> hashedKeys = new ArrayList<>(keys.size());
+        List<String> encryptedValues = new ArrayList<>(keys.size());
+
+        for (String key : keys) {
+            if (isReservedKey(key)) {
+                result.putError(key, new IllegalArgumentException("Trying to read value for a reserved key"));
+                continue;
+            }
+
+            Object pending = pendingValue(key);
+            if (pending != WriteBehindQueue.NOT_PENDING) {
+                if (pending instanceof String) result.putValue(key, (String) pending);
+                else if (pending instanceof byte[]) result.putValue(key, EncryptionManager.base64Encode((byte[]) pending));
+                continue;
+            }
+
             try {
                 String hashedKey = EncryptionManager.getHashed(key);
-                Set<String> eSet = mPrefs.getStringSet(hashedKey, null);
-
-                if (eSet != null) {
-                    Set<String> dSet = new HashSet<>(eSet.size());
+                String value = mPrefs.getString(hashedKey, null);
+                if (value != null) {
+                    readKeys.add(key);
+                    hashedKeys.add(hashedKey);
+                    encryptedValues.add(value);
+                }
+            } catch (Exception e) {
+                Logger.e(e);
+                result.putError(key, e);
+            }
+        }
 
-                    for (String val : eSet) {
-                        dSet.add(mEncryptionManager.decrypt(val));
-                    }
+        if (readKeys.isEmpty()) return result;
 
-                    return dSet;
+        EncryptionManager.BatchDecryptor decryptor = mEncryptionManager.newBatchDecryptor();
+        try {
+            for (int i = 0; i < readKeys.size(); i++) {
+                try {
+                    result.putValue(readKeys.get(i), decryptValue(hashedKeys.get(i), encryptedValues.get(i), decryptor));
+                } catch (Exception e) {
+                    Logger.e(e);
+                    result.putError(readKeys.get(i), e);
                 }
+            }
+        } finally {
+            decryptor.close();
+        }
 
+        return result;
+    }
+
+    @Override
+    public Set<String> getStringSet(String key, Set<String> defValues) {
+        if(!isReservedKey(key)) {
+            try {
+                return readStringSet(key, defValues);
             } catch (Exception e) {
                 Logger.e(e);
                 pushException(e);
@@ -234,6 +658,38 @@ public class SecuredPreferenceStore implements SharedPreferences {
         return defValues;
     }
 
+    /**
+     * Same as {@link #getStringSet(String, Set)} with errors thrown to the caller,
+     * see {@link #getStringChecked(String, String)}
+     */
+    public Set<String> getStringSetChecked(String key, @Nullable Set<String> defValues) throws GeneralSecurityException, IOException {
+        checkNotReserved(key);
+        return readStringSet(key, defValues);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Set<String> readStringSet(String key, Set<String> defValues) throws GeneralSecurityException, IOException {
+        Object pending = pendingValue(key);
+        if (pending != WriteBehindQueue.NOT_PENDING) {
+            return pending instanceof Set ? new HashSet<>((Set<String>) pending) : defValues;
+        }
+
+        String hashedKey = EncryptionManager.getHashed(key);
+        Set<String> eSet = mPrefs.getStringSet(hashedKey, null);
+
+        if (eSet != null) {
+            Set<String> dSet = new HashSet<>(eSet.size());
+
+            for (String val : eSet) {
+                dSet.add(mEncryptionManager.decrypt(val));
+            }
+
+            return dSet;
+        }
+
+        return defValues;
+    }
+
     @Override
     public int getInt(String key, int defValue) {
         String value = getString(key, null);
@@ -270,10 +726,82 @@ public class SecuredPreferenceStore implements SharedPreferences {
         return defValue;
     }
 
+    /**
+     * @throws NumberFormatException if the stored value isn't an int
+     * @see #getStringChecked(String, String)
+     */
+    public int getIntChecked(String key, int defValue) throws GeneralSecurityException, IOException {
+        String value = getStringChecked(key, null);
+        return value != null ? Integer.parseInt(value) : defValue;
+    }
+
+    /**
+     * @throws NumberFormatException if the stored value isn't a long
+     * @see #getStringChecked(String, String)
+     */
+    public long getLongChecked(String key, long defValue) throws GeneralSecurityException, IOException {
+        String value = getStringChecked(key, null);
+        return value != null ? Long.parseLong(value) : defValue;
+    }
+
+    /**
+     * @throws NumberFormatException if the stored value isn't a float
+     * @see #getStringChecked(String, String)
+     */
+    public float getFloatChecked(String key, float defValue) throws GeneralSecurityException, IOException {
+        String value = getStringChecked(key, null);
+        return value != null ? Float.parseFloat(value) : defValue;
+    }
+
+    /**
+     * @see #getStringChecked(String, String)
+     */
+    public boolean getBooleanChecked(String key, boolean defValue) throws GeneralSecurityException, IOException {
+        String value = getStringChecked(key, null);
+        return value != null ? Boolean.parseBoolean(value) : defValue;
+    }
+
+    /**
+     * Values stored in a blob file are read from it directly, without a Base64 round trip
+     * @param key
+     * @return the value or null
+     */
     public byte[] getBytes(String key) {
-        String val = getString(key, null);
-        if (val != null) {
-            return EncryptionManager.base64Decode(val);
+        if (isReservedKey(key)) return null;
+
+        try {
+            return readBytes(key);
+        } catch (Exception e) {
+            Logger.e(e);
+            pushException(e);
+        }
+
+        return null;
+    }
+
+    /**
+     * Same as {@link #getBytes(String)} with errors thrown to the caller,
+     * see {@link #getStringChecked(String, String)}
+     */
+    @Nullable
+    public byte[] getBytesChecked(String key) throws GeneralSecurityException, IOException {
+        checkNotReserved(key);
+        return readBytes(key);
+    }
+
+    private byte[] readBytes(String key) throws GeneralSecurityException, IOException {
+        Object pending = pendingValue(key);
+        if (pending != WriteBehindQueue.NOT_PENDING) {
+            if (pending instanceof byte[]) return ((byte[]) pending).clone();
+            return pending instanceof String ? EncryptionManager.base64Decode((String) pending) : null;
+        }
+
+        String hashedKey = EncryptionManager.getHashed(key);
+        String value = mPrefs.getString(hashedKey, null);
+
+        if (value != null) {
+            if (BlobStore.isPointer(value)) return mBlobStore.read(value);
+            return EncryptionManager.base64Decode(decryptValue(hashedKey, value));
         }
 
         return null;
@@ -281,6 +809,11 @@ public class SecuredPreferenceStore implements SharedPreferences {
 
     @Override
     public boolean contains(String key) {
+        Object pending = pendingValue(key);
+        if (pending != WriteBehindQueue.NOT_PENDING) {
+            return pending != WriteBehindQueue.REMOVED;
+        }
+
         try {
             String hashedKey = EncryptionManager.getHashed(key);
             return mPrefs.contains(hashedKey);
@@ -292,16 +825,22 @@ public class SecuredPreferenceStore implements SharedPreferences {
         return false;
     }
 
+    /**
+     * The last error of any getter or editor of this store, whatever the thread, and resets it.
+     * Use the checked getters, e.g. {@link #getStringChecked(String, String)}, and the result of
+     * {@link AsyncEditor#commitAsync()} to get the errors of a specific call.
+     */
     public Exception pullException() {
-        Exception ex = mException;
-        mException = null;
-        return ex;
+        return mException.getAndSet(null);
     }
 
     private void pushException(Exception ex) {
-        mException = ex;
+        mException.set(ex);
     }
 
+    /**
+     * @see #pullException()
+     */
     public void throwExceptionIfErrorOccurred() throws Exception {
         Exception ex = pullException();
         if (ex != null) {
@@ -314,6 +853,61 @@ public class SecuredPreferenceStore implements SharedPreferences {
         return new Editor();
     }
 
+    /**
+     * Editor for write-behind writes: values are encrypted and committed on a worker thread, successive
+     * writes are merged into one commit. Reads of this store see queued values right away.
+     * @return an async editor
+     */
+    public AsyncEditor editAsync() {
+        return new AsyncEditor(this, writeBehindQueue());
+    }
+
+    /**
+     * Blocks until all the writes queued with {@link #editAsync()} are committed,
+     * use it where durability is required. Nothing is committed if there are no queued writes.
+     * @return false if a write queued before this call and after the previous flush failed, or the
+     * thread was interrupted
+     */
+    public boolean flush() {
+        WriteBehindQueue queue = mWriteBehind;
+        if (queue == null) return true;
+
+        try {
+            return queue.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        return false;
+    }
+
+    /**
+     * Takes over the queue of writes made while the store was being opened
+     */
+    synchronized void setWriteBehindQueue(WriteBehindQueue queue) {
+        mWriteBehind = queue;
+    }
+
+    private WriteBehindQueue writeBehindQueue() {
+        WriteBehindQueue queue = mWriteBehind;
+
+        if (queue == null) {
+            synchronized (this) {
+                if (mWriteBehind == null) {
+                    mWriteBehind = new WriteBehindQueue(this);
+                }
+                queue = mWriteBehind;
+            }
+        }
+
+        return queue;
+    }
+
+    private Object pendingValue(String key) {
+        WriteBehindQueue queue = mWriteBehind;
+        return queue != null ? queue.pendingValue(key) : WriteBehindQueue.NOT_PENDING;
+    }
+
     @Override
     public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener onSharedPreferenceChangeListener) {
         if (mPrefs != null)
@@ -328,11 +922,78 @@ public class SecuredPreferenceStore implements SharedPreferences {
 
     public class Editor implements SharedPreferences.Editor {
         SharedPreferences.Editor mEditor;
+        Set<String> mChangedKeys = new HashSet<>();
+        boolean mCleared = false;
+        Exception mError;
+        //blobs written by this editor by hashed key, and the ones its changes replace
+        Map<String, String> mNewBlobs = new HashMap<>();
+        Set<String> mReplacedBlobs = new HashSet<>();
 
         public Editor() {
             mEditor = mPrefs.edit();
         }
 
+        private void onError(Exception e) {
+            mError = e;
+            pushException(e);
+        }
+
+        /**
+         * @return the last error of this editor, if any, and resets it
+         */
+        Exception pullError() {
+            Exception error = mError;
+            mError = null;
+            return error;
+        }
+
+        /**
+         * Remembers the blob the key points to, so it gets deleted once the change is committed
+         */
+        private void onValueReplaced(String hashedKey) {
+            String newBlob = mNewBlobs.remove(hashedKey);
+            if (newBlob != null) mBlobStore.delete(newBlob);
+
+            try {
+                String current = mPrefs.getString(hashedKey, null);
+                if (BlobStore.isPointer(current)) mReplacedBlobs.add(current);
+            } catch (ClassCastException e) {
+                //a string set, can't be a blob
+            }
+        }
+
+        private void onCommitted(boolean result) {
+            if (result) {
+                for (String pointer : mReplacedBlobs) {
+                    mBlobStore.delete(pointer);
+                }
+            } else {
+                for (String pointer : mNewBlobs.values()) {
+                    mBlobStore.delete(pointer);
+                }
+            }
+
+            mReplacedBlobs.clear();
+            mNewBlobs.clear();
+        }
+
+        private void invalidateCachedValues() {
+            DecryptedValueCache cache = mValueCache;
+
+            if (cache != null) {
+                if (mCleared) {
+                    cache.wipe();
+                } else {
+                    for (String hashedKey : mChangedKeys) {
+                        cache.invalidate(hashedKey);
+                    }
+                }
+            }
+
+            mChangedKeys.clear();
+            mCleared = false;
+        }
+
         @Override
         public SharedPreferences.Editor putString(String key, String value) {
             if(isReservedKey(key)) {
@@ -343,10 +1004,12 @@ public class SecuredPreferenceStore implements SharedPreferences {
             try {
                 String hashedKey = EncryptionManager.getHashed(key);
                 String evalue = mEncryptionManager.encrypt(value);
+                onValueReplaced(hashedKey);
                 mEditor.putString(hashedKey, evalue);
+                mChangedKeys.add(hashedKey);
             } catch (Exception e) {
                 Logger.e(e);
-                pushException(e);
+                onError(e);
             }
 
             return this;
@@ -367,10 +1030,12 @@ public class SecuredPreferenceStore implements SharedPreferences {
                     eSet.add(mEncryptionManager.encrypt(val));
                 }
 
+                onValueReplaced(hashedKey);
                 mEditor.putStringSet(hashedKey, eSet);
+                mChangedKeys.add(hashedKey);
             } catch (Exception e) {
                 Logger.e(e);
-                pushException(e);
+                onError(e);
             }
 
             return this;
@@ -400,11 +1065,36 @@ public class SecuredPreferenceStore implements SharedPreferences {
             return putString(key, val);
         }
 
+        /**
+         * Values reaching the blob threshold are encrypted into a separate file right away,
+         * see {@link #setBlobThreshold(int)}
+         */
         public SharedPreferences.Editor putBytes(String key, byte[] bytes) {
-            if (bytes != null) {
-                String val = EncryptionManager.base64Encode(bytes);
-                return putString(key, val);
-            } else return remove(key);
+            if (bytes == null) return remove(key);
+
+            int threshold = mBlobThreshold;
+            if (threshold <= 0 || bytes.length < threshold) {
+                return putString(key, EncryptionManager.base64Encode(bytes));
+            }
+
+            if(isReservedKey(key)) {
+                Logger.e("Trying to store value for a reserved key");
+                return this;
+            }
+
+            try {
+                String hashedKey = EncryptionManager.getHashed(key);
+                String pointer = mBlobStore.write(bytes);
+                onValueReplaced(hashedKey);
+                mNewBlobs.put(hashedKey, pointer);
+                mEditor.putString(hashedKey, pointer);
+                mChangedKeys.add(hashedKey);
+            } catch (Exception e) {
+                Logger.e(e);
+                onError(e);
+            }
+
+            return this;
         }
 
         @Override
@@ -416,10 +1106,12 @@ public class SecuredPreferenceStore implements SharedPreferences {
 
             try {
                 String hashedKey = EncryptionManager.getHashed(key);
+                onValueReplaced(hashedKey);
                 mEditor.remove(hashedKey);
+                mChangedKeys.add(hashedKey);
             } catch (Exception e) {
                 Logger.e(e);
-                pushException(e);
+                onError(e);
             }
 
             return this;
@@ -427,26 +1119,188 @@ public class SecuredPreferenceStore implements SharedPreferences {
 
         @Override
         public SharedPreferences.Editor clear() {
-            for(String key : mPrefs.getAll().keySet()) {
+            for(Map.Entry<String, ?> entry : mPrefs.getAll().entrySet()) {
+                String key = entry.getKey();
                 if (key.equals(VERSION_KEY) || isReservedHashedKey(key)) continue;
 
                 mEditor.remove(key);
+                if (BlobStore.isPointer(entry.getValue())) mReplacedBlobs.add((String) entry.getValue());
             }
+            mCleared = true;
 
             return this;
         }
 
         @Override
         public boolean commit() {
-            return mEditor.commit();
+            long start = CryptoMetrics.start();
+            boolean result;
+            synchronized (mWriteLock) {
+                result = mEditor.commit();
+            }
+            CryptoMetrics.record(CryptoMetrics.Operation.COMMIT, start, result);
+            onCommitted(result);
+            invalidateCachedValues();
+            return result;
         }
 
+        /**
+         * Blob files of the replaced values aren't deleted here, the old pointers may still be the ones
+         * on disk until the write completes. They're left for {@link SecuredPreferenceStore#deleteUnreferencedBlobs()}.
+         */
         @Override
         public void apply() {
-            mEditor.apply();
+            long start = CryptoMetrics.start();
+            synchronized (mWriteLock) {
+                mEditor.apply();
+            }
+            CryptoMetrics.record(CryptoMetrics.Operation.COMMIT, start, true);
+            mReplacedBlobs.clear();
+            mNewBlobs.clear();
+            invalidateCachedValues();
         }
     }
 
+    public static class AsyncEditor implements SharedPreferences.Editor {
+        @Nullable
+        private final SecuredPreferenceStore mStore;
+        private final WriteBehindQueue mQueue;
+        private final Map<String, Object> mValues = new LinkedHashMap<>();
+        private boolean mClear = false;
+
+        /**
+         * @param store store to check reserved keys with, null if it isn't open yet
+         */
+        AsyncEditor(@Nullable SecuredPreferenceStore store, WriteBehindQueue queue) {
+            mStore = store;
+            mQueue = queue;
+        }
+
+        private boolean isReservedKey(String key) {
+            return mStore != null && mStore.isReservedKey(key);
+        }
+
+        @Override
+        public AsyncEditor putString(String key, String value) {
+            if(isReservedKey(key)) {
+                Logger.e("Trying to store value for a reserved key, value: " + value);
+                return this;
+            }
+
+            mValues.put(key, value != null ? value : WriteBehindQueue.REMOVED);
+            return this;
+        }
+
+        @Override
+        public AsyncEditor putStringSet(String key, Set<String> values) {
+            if(isReservedKey(key)) {
+                Logger.e("Trying to store value for a reserved key, value: " + values);
+                return this;
+            }
+
+            mValues.put(key, values != null ? new HashSet<>(values) : WriteBehindQueue.REMOVED);
+            return this;
+        }
+
+        @Override
+        public AsyncEditor putInt(String key, int value) {
+            return putString(key, Integer.toString(value));
+        }
+
+        @Override
+        public AsyncEditor putLong(String key, long value) {
+            return putString(key, Long.toString(value));
+        }
+
+        @Override
+        public AsyncEditor putFloat(String key, float value) {
+            return putString(key, Float.toString(value));
+        }
+
+        @Override
+        public AsyncEditor putBoolean(String key, boolean value) {
+            return putString(key, Boolean.toString(value));
+        }
+
+        public AsyncEditor putBytes(String key, byte[] bytes) {
+            if (bytes == null) return remove(key);
+
+            if(isReservedKey(key)) {
+                Logger.e("Trying to store value for a reserved key");
+                return this;
+            }
+
+            mValues.put(key, bytes.clone());
+            return this;
+        }
+
+        @Override
+        public AsyncEditor remove(String key) {
+            if(isReservedKey(key)) {
+                Logger.e("Trying to remove value for a reserved key");
+                return this;
+            }
+
+            mValues.put(key, WriteBehindQueue.REMOVED);
+            return this;
+        }
+
+        @Override
+        public AsyncEditor clear() {
+            mClear = true;
+            return this;
+        }
+
+        /**
+         * Queues the changes and waits until they are committed
+         * @return true if the changes were committed successfully
+         */
+        @Override
+        public boolean commit() {
+            try {
+                return commitAsync().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                Logger.e(e);
+            }
+
+            return false;
+        }
+
+        @Override
+        public void apply() {
+            commitAsync();
+        }
+
+        /**
+         * @return completion of the queued changes
+         */
+        public PendingWrite commitAsync() {
+            return commit(null);
+        }
+
+        /**
+         * @param callback called on the worker thread once the changes are committed
+         * @return completion of the queued changes
+         */
+        public PendingWrite commit(@Nullable WriteCallback callback) {
+            PendingWrite write = mQueue.enqueue(new LinkedHashMap<>(mValues), mClear, callback);
+            mValues.clear();
+            mClear = false;
+
+            return write;
+        }
+    }
+
+    public interface WriteCallback {
+        /**
+         * @param success true if the changes were committed
+         * @param error the error that occurred while encrypting or writing, if any
+         */
+        void onComplete(boolean success, @Nullable Exception error);
+    }
+
     public interface KeyStoreRecoveryNotifier{
         /**
          *
@@ -486,11 +1340,11 @@ public class SecuredPreferenceStore implements SharedPreferences {
 
             SharedPreferences prefToRead, prefToWrite;
 
-            prefToRead = prefToWrite = mContext.getSharedPreferences(DEFAULT_PREF_FILE_NAME, Context.MODE_PRIVATE);
+            prefToRead = prefToWrite = openPref(DEFAULT_PREF_FILE_NAME);
             boolean filenameChanged = false, prefixChanged = false;
 
             if(storeName != null && !storeName.equals(DEFAULT_PREF_FILE_NAME)) {
-                prefToWrite = mContext.getSharedPreferences(storeName, Context.MODE_PRIVATE);
+                prefToWrite = openPref(storeName);
                 filenameChanged = true;
             }
 
@@ -599,19 +1453,25 @@ public class SecuredPreferenceStore implements SharedPreferences {
             }
         }
 
+        SharedPreferences openPref(String storeName) throws MigrationFailedException {
+            try {
+                return BackendSharedPreferences.wrap(mBackendFactory.open(mContext, storeName));
+            } catch (IOException e) {
+                throw new MigrationFailedException("Migration to Version: 0.7.0: Failed to open " + storeName, e);
+            }
+        }
+
         void cleanupPref(String storeName) {
-            SharedPreferences prefs = mContext.getSharedPreferences(storeName, Context.MODE_PRIVATE);
-            if(prefs.getAll().size() > 0) prefs.edit().clear().commit();
+            try {
+                SharedPreferences prefs = openPref(storeName);
+                if(prefs.getAll().size() > 0) prefs.edit().clear().commit();
+            } catch (MigrationFailedException e) {
+                Logger.w("Unable to clear the store file");
+                pushException(e);
+            }
 
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-                mContext.deleteSharedPreferences(storeName);
-            } else {
-                try {
-                    new File(mContext.getCacheDir().getParent() + "/shared_prefs/" + storeName + ".xml").delete();
-                } catch(Exception e) {
-                    Logger.w("Unable to remove store file completely");
-                    pushException(e);
-                }
+            if (!mBackendFactory.delete(mContext, storeName)) {
+                Logger.w("Unable to remove store file completely");
             }
         }
     }
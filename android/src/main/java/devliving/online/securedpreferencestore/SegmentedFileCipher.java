@@ -0,0 +1,591 @@
+package devliving.online.securedpreferencestore;
+
+import android.os.Build;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import devliving.online.securedpreferencestore.EncryptionManager.EncryptedData;
+
+/**
+ * Segmented streaming AEAD for files.
+ *
+ * Every file gets a random data key, the key is encrypted with the store key and kept in the header.
+ * A batch of files may share one data key, the random nonce prefix keeps the nonces of its files apart.
+ * The plaintext is split into fixed-size chunks which are sealed independently with AES-GCM, so memory
+ * use only depends on the chunk size and a damaged chunk is detected as soon as it is read.
+ *
+ * Layout: {@code magic | version | chunk size | nonce prefix | wrapped key length | wrapped key | chunk*},
+ * every chunk is {@code ciphertext | tag} and only the last one may be shorter than the chunk size.
+ * The nonce of a chunk is {@code nonce prefix (7) | chunk index (4) | last chunk flag (1)}, so reordered
+ * chunks fail to open and a file truncated at a chunk boundary is detected because its new last chunk
+ * wasn't sealed as the last one. The header needs no extra authentication, any change of it yields a
+ * different data key, chunk layout or nonce and every chunk fails to open.
+ */
+final class SegmentedFileCipher {
+    final static int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    final static int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+    final static int TAG_LENGTH = 16;
+    final static int MAP_WINDOW_SIZE = 8 * 1024 * 1024;
+
+    private final static byte[] MAGIC = new byte[]{'S', 'P', 'S', 'F'};
+    private final static byte VERSION = 1;
+
+    private final static int KEY_LENGTH = 32;
+    private final static int NONCE_PREFIX_LENGTH = 7;
+    private final static int NONCE_LENGTH = 12;
+    private final static long MAX_CHUNK_COUNT = 0xFFFFFFFFL;
+
+    private final static String CHUNK_CIPHER = "AES/GCM/NoPadding";
+    private final static String KEY_ALGORITHM = "AES";
+    private final static String DEFAULT_CHARSET = "UTF-8";
+
+    private final EncryptionManager mManager;
+    private final SecureRandom mRandom = new SecureRandom();
+
+    SegmentedFileCipher(EncryptionManager manager) {
+        mManager = manager;
+    }
+
+    /**
+     * Doesn't close the streams
+     * @param in plaintext
+     * @param out destination of the encrypted file
+     * @param chunkSize plaintext bytes per chunk
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    void encrypt(InputStream in, OutputStream out, int chunkSize) throws IOException, GeneralSecurityException {
+        encrypt(in, out, newSealer(chunkSize));
+    }
+
+    /**
+     * Doesn't close the streams
+     * @param in plaintext
+     * @param out destination of the encrypted file
+     * @param sealer sealer of the new file
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    void encrypt(InputStream in, OutputStream out, ChunkSealer sealer) throws IOException, GeneralSecurityException {
+        int chunkSize = sealer.header().chunkSize;
+        out.write(sealer.header().encode());
+
+        PushbackInputStream source = new PushbackInputStream(in, 1);
+        byte[] plain = new byte[chunkSize];
+        byte[] sealed = new byte[chunkSize + TAG_LENGTH];
+
+        long index = 0;
+        boolean last;
+        do {
+            checkInterrupted();
+            int read = readFully(source, plain, 0, chunkSize);
+            last = read < chunkSize || isAtEnd(source);
+
+            int length = sealer.seal(index++, last, plain, read, sealed);
+            out.write(sealed, 0, length);
+        } while (!last);
+
+        Arrays.fill(plain, (byte) 0);
+        out.flush();
+    }
+
+    /**
+     * Doesn't close the streams. Chunks are verified before they are written to the output, if the
+     * file is corrupted the output holds the plaintext of the chunks before the damaged one.
+     * @param in encrypted file
+     * @param out destination of the plaintext
+     * @throws CorruptedFileException if a chunk fails authentication or the file is truncated
+     * @throws IOException
+     * @throws GeneralSecurityException if the data key can't be decrypted
+     */
+    void decrypt(InputStream in, OutputStream out) throws IOException, GeneralSecurityException {
+        Header header = Header.read(in);
+        decrypt(in, out, new ChunkSealer(header, unwrapKey(header)));
+    }
+
+    /**
+     * Decrypts the chunks of a file whose header has already been read
+     * @param in encrypted file positioned at its first chunk
+     * @param out destination of the plaintext
+     * @param sealer sealer of the file
+     * @throws CorruptedFileException if a chunk fails authentication or the file is truncated
+     * @throws IOException
+     */
+    void decrypt(InputStream in, OutputStream out, ChunkSealer sealer) throws IOException {
+        Header header = sealer.header();
+        PushbackInputStream source = new PushbackInputStream(in, 1);
+        byte[] sealed = new byte[header.chunkSize + TAG_LENGTH];
+        byte[] plain = new byte[header.chunkSize];
+
+        long index = 0;
+        boolean last;
+        do {
+            checkInterrupted();
+            int read = readFully(source, sealed, 0, sealed.length);
+            last = read < sealed.length || isAtEnd(source);
+
+            int length = sealer.open(index++, last, sealed, read, plain);
+            out.write(plain, 0, length);
+        } while (!last);
+
+        Arrays.fill(plain, (byte) 0);
+        out.flush();
+    }
+
+    /**
+     * Encrypts the rest of the input channel, from its position to its end, and writes the file at the
+     * position of the output channel. Chunks go through direct buffers, a mapped input is sliced into
+     * the cipher without copying it to the Java heap.
+     * @param in plaintext
+     * @param out destination of the encrypted file
+     * @param chunkSize plaintext bytes per chunk
+     * @param mapInput true to map the input in windows instead of reading it
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    void encrypt(FileChannel in, FileChannel out, int chunkSize, boolean mapInput) throws IOException, GeneralSecurityException {
+        ChunkSealer sealer = newSealer(chunkSize);
+        writeFully(out, ByteBuffer.wrap(sealer.header().encode()));
+
+        long start = in.position();
+        long size = in.size() - start;
+        long chunkCount = Math.max(1, (size + chunkSize - 1) / chunkSize);
+
+        ByteBuffer sealed = ByteBuffer.allocateDirect(chunkSize + TAG_LENGTH);
+        ByteBuffer plain = mapInput ? null : ByteBuffer.allocateDirect(chunkSize);
+        MappedByteBuffer window = null;
+        long windowStart = 0;
+        long windowLength = (long) chunkSize * Math.max(1, MAP_WINDOW_SIZE / chunkSize);
+
+        for (long index = 0; index < chunkCount; index++) {
+            checkInterrupted();
+            long offset = index * chunkSize;
+            int length = (int) Math.min(chunkSize, size - offset);
+            ByteBuffer chunk;
+
+            if (mapInput) {
+                if (window == null || offset + length > windowStart + window.capacity()) {
+                    windowStart = offset;
+                    window = in.map(FileChannel.MapMode.READ_ONLY, start + offset, Math.min(windowLength, size - offset));
+                }
+                int at = (int) (offset - windowStart);
+                window.limit(at + length);
+                window.position(at);
+                chunk = window;
+            } else {
+                plain.clear();
+                plain.limit(length);
+                if (readFully(in, start + offset, plain) != length) {
+                    throw new IOException("Input changed while it was encrypted");
+                }
+                plain.flip();
+                chunk = plain;
+            }
+
+            sealed.clear();
+            sealer.seal(index, index == chunkCount - 1, chunk, sealed);
+            sealed.flip();
+            writeFully(out, sealed);
+        }
+
+        in.position(start + size);
+        if (plain != null) wipe(plain);
+    }
+
+    /**
+     * Decrypts a file that starts at offset 0 of the input channel and writes the plaintext at the
+     * position of the output channel, chunks go through direct buffers
+     * @param in encrypted file
+     * @param out destination of the plaintext
+     * @throws CorruptedFileException if a chunk fails authentication or the file is truncated
+     * @throws IOException
+     * @throws GeneralSecurityException if the data key can't be decrypted
+     */
+    void decrypt(FileChannel in, FileChannel out) throws IOException, GeneralSecurityException {
+        Header header = Header.read(in);
+        ChunkSealer sealer = new ChunkSealer(header, unwrapKey(header));
+
+        int sealedChunkSize = header.chunkSize + TAG_LENGTH;
+        long body = in.size() - header.length;
+        if (body < TAG_LENGTH) {
+            throw new CorruptedFileException("Truncated file");
+        }
+        long chunkCount = (body + sealedChunkSize - 1) / sealedChunkSize;
+
+        ByteBuffer sealed = ByteBuffer.allocateDirect(sealedChunkSize);
+        ByteBuffer plain = ByteBuffer.allocateDirect(header.chunkSize);
+
+        for (long index = 0; index < chunkCount; index++) {
+            checkInterrupted();
+            long offset = header.length + index * sealedChunkSize;
+            sealed.clear();
+            sealed.limit((int) Math.min(sealedChunkSize, in.size() - offset));
+            readFully(in, offset, sealed);
+            sealed.flip();
+
+            plain.clear();
+            sealer.open(index, index == chunkCount - 1, sealed, plain);
+            plain.flip();
+            writeFully(out, plain);
+        }
+
+        wipe(plain);
+    }
+
+    /**
+     * @param chunkSize plaintext bytes per chunk
+     * @return sealer of a new file with a random data key, its header is {@link ChunkSealer#header()}
+     */
+    ChunkSealer newSealer(int chunkSize) throws IOException, GeneralSecurityException {
+        return newSealer(chunkSize, newDataKey());
+    }
+
+    /**
+     * @param chunkSize plaintext bytes per chunk
+     * @param dataKey data key of the file, may be shared by several files
+     * @return sealer of a new file with a random nonce prefix
+     */
+    ChunkSealer newSealer(int chunkSize, DataKey dataKey) throws GeneralSecurityException {
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Unsupported chunk size: " + chunkSize);
+        }
+
+        byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+        mRandom.nextBytes(noncePrefix);
+
+        return new ChunkSealer(new Header(chunkSize, noncePrefix, dataKey.wrappedKey), dataKey.key);
+    }
+
+    /**
+     * Generates a random data key and encrypts it with the store key, the only keystore operation
+     * needed to encrypt files
+     * @return the data key
+     */
+    DataKey newDataKey() throws IOException, GeneralSecurityException {
+        byte[] key = new byte[KEY_LENGTH];
+        mRandom.nextBytes(key);
+
+        try {
+            EncryptedData wrapped = mManager.tryEncrypt(key);
+            byte[] wrappedKey = EnvelopeCodec.encodeCompact(wrapped, mManager.algorithmOf(wrapped)).getBytes(DEFAULT_CHARSET);
+
+            return new DataKey(new SecretKeySpec(key, KEY_ALGORITHM), wrappedKey);
+        } finally {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    SecretKey unwrapKey(Header header) throws IOException, GeneralSecurityException {
+        EncryptedData wrapped;
+        try {
+            wrapped = EnvelopeCodec.decodeCompact(new String(header.wrappedKey, DEFAULT_CHARSET));
+        } catch (IllegalArgumentException e) {
+            throw new CorruptedFileException("Invalid file key", e);
+        }
+
+        byte[] key = mManager.tryDecrypt(wrapped);
+        try {
+            if (key == null || key.length != KEY_LENGTH) {
+                throw new CorruptedFileException("Invalid file key");
+            }
+            return new SecretKeySpec(key, KEY_ALGORITHM);
+        } finally {
+            if (key != null) Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    /**
+     * @return number of bytes read, less than length only at the end of the stream
+     */
+    static int readFully(InputStream in, byte[] buffer, int offset, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int read = in.read(buffer, offset + total, length - total);
+            if (read == -1) break;
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Positional read, doesn't change the position of the channel
+     * @return number of bytes read, less than length only at the end of the file
+     */
+    static int readFully(FileChannel channel, long position, byte[] buffer, int offset, int length) throws IOException {
+        ByteBuffer target = ByteBuffer.wrap(buffer, offset, length);
+        while (target.hasRemaining()) {
+            int read = channel.read(target, position + target.position() - offset);
+            if (read == -1) break;
+        }
+        return target.position() - offset;
+    }
+
+    private static int readFully(FileChannel channel, long position, ByteBuffer target) throws IOException {
+        int start = target.position();
+        while (target.hasRemaining()) {
+            int read = channel.read(target, position + target.position() - start);
+            if (read == -1) break;
+        }
+        return target.position() - start;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer source) throws IOException {
+        while (source.hasRemaining()) {
+            channel.write(source);
+        }
+    }
+
+    private static void wipe(ByteBuffer buffer) {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            buffer.put((byte) 0);
+        }
+    }
+
+    private static void checkInterrupted() throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("File encryption was cancelled");
+        }
+    }
+
+    private static boolean isAtEnd(PushbackInputStream in) throws IOException {
+        int next = in.read();
+        if (next == -1) return true;
+
+        in.unread(next);
+        return false;
+    }
+
+    /**
+     * Plain data key and its encrypted form stored in the file headers
+     */
+    static class DataKey {
+        final SecretKey key;
+        final byte[] wrappedKey;
+
+        DataKey(SecretKey key, byte[] wrappedKey) {
+            this.key = key;
+            this.wrappedKey = wrappedKey;
+        }
+    }
+
+    /**
+     * File header, {@link #length} is the offset of the first chunk
+     */
+    static class Header {
+        final int chunkSize;
+        final byte[] noncePrefix;
+        final byte[] wrappedKey;
+        final int length;
+
+        Header(int chunkSize, byte[] noncePrefix, byte[] wrappedKey) {
+            if (wrappedKey.length > 0xFFFF) {
+                throw new IllegalArgumentException("Wrapped key is too long");
+            }
+
+            this.chunkSize = chunkSize;
+            this.noncePrefix = noncePrefix;
+            this.wrappedKey = wrappedKey;
+            this.length = fixedLength() + wrappedKey.length;
+        }
+
+        static int fixedLength() {
+            return MAGIC.length + 1 + 4 + NONCE_PREFIX_LENGTH + 2;
+        }
+
+        byte[] encode() {
+            byte[] bytes = new byte[length];
+            int offset = 0;
+
+            System.arraycopy(MAGIC, 0, bytes, offset, MAGIC.length);
+            offset += MAGIC.length;
+            bytes[offset++] = VERSION;
+            bytes[offset++] = (byte) (chunkSize >>> 24);
+            bytes[offset++] = (byte) (chunkSize >>> 16);
+            bytes[offset++] = (byte) (chunkSize >>> 8);
+            bytes[offset++] = (byte) chunkSize;
+            System.arraycopy(noncePrefix, 0, bytes, offset, NONCE_PREFIX_LENGTH);
+            offset += NONCE_PREFIX_LENGTH;
+            bytes[offset++] = (byte) (wrappedKey.length >>> 8);
+            bytes[offset++] = (byte) wrappedKey.length;
+            System.arraycopy(wrappedKey, 0, bytes, offset, wrappedKey.length);
+
+            return bytes;
+        }
+
+        /**
+         * @param in stream positioned at the start of the file
+         * @return the header, the stream is left at the first chunk
+         * @throws CorruptedFileException if the file isn't in the segmented format
+         */
+        static Header read(InputStream in) throws IOException {
+            byte[] fixed = new byte[fixedLength()];
+            if (readFully(in, fixed, 0, fixed.length) != fixed.length) {
+                throw new CorruptedFileException("Truncated file header");
+            }
+
+            int wrappedKeyLength = parseFixed(fixed);
+            byte[] wrappedKey = new byte[wrappedKeyLength];
+            if (readFully(in, wrappedKey, 0, wrappedKeyLength) != wrappedKeyLength) {
+                throw new CorruptedFileException("Truncated file header");
+            }
+
+            return new Header(parseChunkSize(fixed), Arrays.copyOfRange(fixed, MAGIC.length + 5, MAGIC.length + 5 + NONCE_PREFIX_LENGTH), wrappedKey);
+        }
+
+        /**
+         * @param channel encrypted file, its position isn't changed
+         * @return the header
+         * @throws CorruptedFileException if the file isn't in the segmented format
+         */
+        static Header read(FileChannel channel) throws IOException {
+            byte[] fixed = new byte[fixedLength()];
+            if (readFully(channel, 0, fixed, 0, fixed.length) != fixed.length) {
+                throw new CorruptedFileException("Truncated file header");
+            }
+
+            int wrappedKeyLength = parseFixed(fixed);
+            byte[] wrappedKey = new byte[wrappedKeyLength];
+            if (readFully(channel, fixed.length, wrappedKey, 0, wrappedKeyLength) != wrappedKeyLength) {
+                throw new CorruptedFileException("Truncated file header");
+            }
+
+            return new Header(parseChunkSize(fixed), Arrays.copyOfRange(fixed, MAGIC.length + 5, MAGIC.length + 5 + NONCE_PREFIX_LENGTH), wrappedKey);
+        }
+
+        /**
+         * Validates the fixed part of the header
+         * @return length of the wrapped key
+         */
+        static int parseFixed(byte[] fixed) throws CorruptedFileException {
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (fixed[i] != MAGIC[i]) throw new CorruptedFileException("Not a segmented encrypted file");
+            }
+            if (fixed[MAGIC.length] != VERSION) {
+                throw new CorruptedFileException("Unsupported file version: " + fixed[MAGIC.length]);
+            }
+
+            int chunkSize = parseChunkSize(fixed);
+            if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+                throw new CorruptedFileException("Unsupported chunk size: " + chunkSize);
+            }
+
+            int offset = MAGIC.length + 5 + NONCE_PREFIX_LENGTH;
+            return ((fixed[offset] & 0xFF) << 8) | (fixed[offset + 1] & 0xFF);
+        }
+
+        private static int parseChunkSize(byte[] fixed) {
+            int offset = MAGIC.length + 1;
+            return ((fixed[offset] & 0xFF) << 24) | ((fixed[offset + 1] & 0xFF) << 16)
+                    | ((fixed[offset + 2] & 0xFF) << 8) | (fixed[offset + 3] & 0xFF);
+        }
+    }
+
+    /**
+     * Seals and opens the chunks of one file, owns a single cipher
+     */
+    static class ChunkSealer {
+        private final Header mHeader;
+        private final SecretKey mKey;
+        private final Cipher mCipher;
+        private final byte[] mNonce = new byte[NONCE_LENGTH];
+
+        ChunkSealer(Header header, SecretKey key) throws GeneralSecurityException {
+            mHeader = header;
+            mKey = key;
+            mCipher = Cipher.getInstance(CHUNK_CIPHER);
+            System.arraycopy(header.noncePrefix, 0, mNonce, 0, NONCE_PREFIX_LENGTH);
+        }
+
+        /**
+         * @return length of the sealed chunk written to out
+         */
+        int seal(long index, boolean last, byte[] plain, int length, byte[] out) throws GeneralSecurityException {
+            mCipher.init(Cipher.ENCRYPT_MODE, mKey, parameters(index, last));
+            return mCipher.doFinal(plain, 0, length, out, 0);
+        }
+
+        /**
+         * Seals the remaining bytes of plain into out
+         * @return length of the sealed chunk
+         */
+        int seal(long index, boolean last, ByteBuffer plain, ByteBuffer out) throws GeneralSecurityException {
+            mCipher.init(Cipher.ENCRYPT_MODE, mKey, parameters(index, last));
+            return mCipher.doFinal(plain, out);
+        }
+
+        /**
+         * Opens the remaining bytes of sealed into out
+         * @return length of the plaintext
+         * @throws CorruptedFileException if the chunk fails authentication
+         */
+        int open(long index, boolean last, ByteBuffer sealed, ByteBuffer out) throws CorruptedFileException {
+            if (sealed.remaining() < TAG_LENGTH) {
+                throw new CorruptedFileException("Truncated chunk " + index);
+            }
+
+            try {
+                mCipher.init(Cipher.DECRYPT_MODE, mKey, parameters(index, last));
+                return mCipher.doFinal(sealed, out);
+            } catch (GeneralSecurityException e) {
+                throw new CorruptedFileException("Chunk " + index + " failed authentication", e);
+            }
+        }
+
+        /**
+         * @return length of the plaintext written to out
+         * @throws CorruptedFileException if the chunk fails authentication
+         */
+        int open(long index, boolean last, byte[] sealed, int length, byte[] out) throws CorruptedFileException {
+            if (length < TAG_LENGTH) {
+                throw new CorruptedFileException("Truncated chunk " + index);
+            }
+
+            try {
+                mCipher.init(Cipher.DECRYPT_MODE, mKey, parameters(index, last));
+                return mCipher.doFinal(sealed, 0, length, out, 0);
+            } catch (GeneralSecurityException e) {
+                throw new CorruptedFileException("Chunk " + index + " failed authentication", e);
+            }
+        }
+
+        Header header() {
+            return mHeader;
+        }
+
+        private AlgorithmParameterSpec parameters(long index, boolean last) {
+            if (index > MAX_CHUNK_COUNT) {
+                throw new IllegalStateException("File has too many chunks");
+            }
+
+            mNonce[NONCE_PREFIX_LENGTH] = (byte) (index >>> 24);
+            mNonce[NONCE_PREFIX_LENGTH + 1] = (byte) (index >>> 16);
+            mNonce[NONCE_PREFIX_LENGTH + 2] = (byte) (index >>> 8);
+            mNonce[NONCE_PREFIX_LENGTH + 3] = (byte) index;
+            mNonce[NONCE_LENGTH - 1] = (byte) (last ? 1 : 0);
+
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                return new GCMParameterSpec(TAG_LENGTH * 8, mNonce);
+            }
+            //GCMParameterSpec is API 19, older providers take the IV and use a 128 bit tag
+            return new IvParameterSpec(mNonce);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package devliving.online.securedpreferencestore;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The default backend, stores the values in a regular preference file
+ */
+public class SharedPreferencesBackend implements StorageBackend {
+    public final static Factory FACTORY = new Factory() {
+        @Override
+        public StorageBackend open(Context context, String name) {
+            return new SharedPreferencesBackend(context.getSharedPreferences(name, Context.MODE_PRIVATE));
+        }
+
+        @Override
+        public boolean delete(Context context, String name) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                return context.deleteSharedPreferences(name);
+            }
+
+            try {
+                return new File(context.getCacheDir().getParent() + "/shared_prefs/" + name + ".xml").delete();
+            } catch (Exception e) {
+                Logger.e(e);
+                return false;
+            }
+        }
+    };
+
+    private final SharedPreferences mPrefs;
+
+    public SharedPreferencesBackend(SharedPreferences prefs) {
+        mPrefs = prefs;
+    }
+
+    public SharedPreferences getSharedPreferences() {
+        return mPrefs;
+    }
+
+    /**
+     * getAll() copies the whole map, the value is read with the typed getters instead. Stored values
+     * are mostly strings, so that's tried first.
+     */
+    @Nullable
+    @Override
+    public Object get(String key) {
+        if (!mPrefs.contains(key)) return null;
+
+        try {
+            return mPrefs.getString(key, null);
+        } catch (ClassCastException e) {
+            //not a string
+        }
+        try {
+            return mPrefs.getStringSet(key, null);
+        } catch (ClassCastException e) {
+            //not a string set
+        }
+        try {
+            return mPrefs.getInt(key, 0);
+        } catch (ClassCastException e) {
+            //not an int
+        }
+        try {
+            return mPrefs.getLong(key, 0);
+        } catch (ClassCastException e) {
+            //not a long
+        }
+        try {
+            return mPrefs.getFloat(key, 0);
+        } catch (ClassCastException e) {
+            //not a float
+        }
+
+        return mPrefs.getBoolean(key, false);
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return mPrefs.contains(key);
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        return mPrefs.getAll();
+    }
+
+    @Override
+    public Transaction beginTransaction() {
+        final SharedPreferences.Editor editor = mPrefs.edit();
+
+        return new Transaction() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Transaction put(String key, @Nullable Object value) {
+                if (value == null) editor.remove(key);
+                else if (value instanceof String) editor.putString(key, (String) value);
+                else if (value instanceof Set) editor.putStringSet(key, (Set<String>) value);
+                else if (value instanceof Integer) editor.putInt(key, (Integer) value);
+                else if (value instanceof Long) editor.putLong(key, (Long) value);
+                else if (value instanceof Float) editor.putFloat(key, (Float) value);
+                else if (value instanceof Boolean) editor.putBoolean(key, (Boolean) value);
+                else throw new IllegalArgumentException("Unsupported value type: " + value.getClass());
+                return this;
+            }
+
+            @Override
+            public Transaction remove(String key) {
+                editor.remove(key);
+                return this;
+            }
+
+            @Override
+            public Transaction clear() {
+                editor.clear();
+                return this;
+            }
+
+            @Override
+            public boolean commit() {
+                return editor.commit();
+            }
+
+            @Override
+            public void apply() {
+                editor.apply();
+            }
+        };
+    }
+}
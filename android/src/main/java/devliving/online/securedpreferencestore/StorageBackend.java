@@ -0,0 +1,77 @@
+package devliving.online.securedpreferencestore;
+
+import android.content.Context;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Persistent key-value storage under a {@link SecuredPreferenceStore}. Backends only see hashed keys
+ * and encrypted values, plus the few plain bookkeeping values of the store.
+ *
+ * Values are one of String, {@code Set<String>}, Integer, Long, Float or Boolean, as with
+ * SharedPreferences. Implementations must be thread-safe.
+ */
+public interface StorageBackend {
+
+    /**
+     * Opens backends by name, a store and its migrations open all of their files through the same factory
+     */
+    interface Factory {
+        /**
+         * Opening the same name twice must return backends sharing the same data
+         * @param context application context
+         * @param name name of the store file
+         * @return the backend
+         * @throws IOException if the backend can't be opened
+         */
+        StorageBackend open(Context context, String name) throws IOException;
+
+        /**
+         * Deletes the store file of the given name
+         * @return false if the file couldn't be deleted
+         */
+        boolean delete(Context context, String name);
+    }
+
+    /**
+     * Changes made through a transaction become visible and durable together when it's committed
+     */
+    interface Transaction {
+        /**
+         * @param value the new value, null removes the key
+         */
+        Transaction put(String key, @Nullable Object value);
+
+        Transaction remove(String key);
+
+        /**
+         * Removes all the keys before the other changes of this transaction are applied
+         */
+        Transaction clear();
+
+        /**
+         * Writes the changes synchronously
+         * @return true if the changes were persisted
+         */
+        boolean commit();
+
+        /**
+         * Makes the changes visible immediately, persisting them may happen later
+         */
+        void apply();
+    }
+
+    @Nullable
+    Object get(String key);
+
+    boolean contains(String key);
+
+    /**
+     * @return snapshot of all the entries, used to iterate over the store
+     */
+    Map<String, ?> getAll();
+
+    Transaction beginTransaction();
+}
@@ -0,0 +1,110 @@
+package devliving.online.securedpreferencestore;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A store that is being opened in the background, see {@link SecuredPreferenceStore#openAsync}.
+ *
+ * Opening a store loads the keystore and generates the keys on first use, which can take seconds on
+ * low-end devices. The store is opened on a provisioning thread and this future completes once it's
+ * usable. Writes made with {@link #edit()} in the meantime are queued and committed in order with the
+ * writes of {@link SecuredPreferenceStore#editAsync()} once the store is open. If opening fails, the
+ * queued writes complete with the same error.
+ *
+ * Stores are opened one at a time, stores that share a key alias prefix never generate the same keys
+ * concurrently.
+ */
+public class StoreProvisioning implements Future<SecuredPreferenceStore> {
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 30;
+
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(0, 1, WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "SPS-provisioning");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final FutureTask<SecuredPreferenceStore> mTask;
+    private final WriteBehindQueue mWriteBehind;
+
+    StoreProvisioning(final Callable<SecuredPreferenceStore> opener) {
+        mWriteBehind = new WriteBehindQueue(this);
+        mTask = new FutureTask<>(new Callable<SecuredPreferenceStore>() {
+            @Override
+            public SecuredPreferenceStore call() throws Exception {
+                SecuredPreferenceStore store = opener.call();
+                //the store takes over the queue before anyone can see it, so queued writes keep their order
+                store.setWriteBehindQueue(mWriteBehind);
+                return store;
+            }
+        });
+
+        sExecutor.execute(mTask);
+    }
+
+    /**
+     * Editor that can be used before the store is open, its changes are committed once it is.
+     * Values written to reserved keys are dropped when the changes are committed.
+     * @return an async editor
+     */
+    public SecuredPreferenceStore.AsyncEditor edit() {
+        return new SecuredPreferenceStore.AsyncEditor(mTask.isDone() ? storeOrNull() : null, mWriteBehind);
+    }
+
+    private SecuredPreferenceStore storeOrNull() {
+        try {
+            return mTask.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            //reported by get() and the queued writes
+        }
+
+        return null;
+    }
+
+    /**
+     * Opening the store can't be cancelled, keys that are half generated would be left behind
+     * @return false
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return mTask.isDone();
+    }
+
+    /**
+     * Blocks until the store is open
+     * @return the store
+     * @throws ExecutionException with the error that prevented the store from opening
+     */
+    @Override
+    public SecuredPreferenceStore get() throws InterruptedException, ExecutionException {
+        return mTask.get();
+    }
+
+    @Override
+    public SecuredPreferenceStore get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        return mTask.get(timeout, unit);
+    }
+}
@@ -0,0 +1,264 @@
+package devliving.online.securedpreferencestore;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind queue of a {@link SecuredPreferenceStore}.
+ *
+ * Writes are merged into a pending batch, later writes to the same key replace earlier ones. A single
+ * worker thread encrypts the batch and commits it with one store editor, every write merged into the
+ * batch completes with the result of that commit. A value that fails to encrypt is left out of the
+ * commit, only the writes that touched its key fail with that error. Writes that are pending or in flight are visible
+ * through {@link #pendingValue(String)}, so reads of the store see them before they reach the disk.
+ * A queue of a store that is still being opened holds the writes until the store is usable.
+ */
+class WriteBehindQueue {
+    /**
+     * Marks a removed key
+     */
+    static final Object REMOVED = new Object();
+    /**
+     * Returned by {@link #pendingValue(String)} if there is no pending write for the key
+     */
+    static final Object NOT_PENDING = new Object();
+
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 30;
+
+    @Nullable
+    private final SecuredPreferenceStore mStore;
+    @Nullable
+    private final Future<SecuredPreferenceStore> mProvisioning;
+    private final ThreadPoolExecutor mExecutor;
+    private final Object mLock = new Object();
+
+    private Map<String, Object> mPending = new LinkedHashMap<>();
+    private boolean mPendingClear = false;
+    private List<PendingWrite> mPendingWrites = new ArrayList<>();
+    private boolean mScheduled = false;
+
+    private Map<String, Object> mInFlight = Collections.emptyMap();
+    private boolean mInFlightClear = false;
+
+    @Nullable
+    private PendingWrite mLastWrite;
+    //writes failed since the queue was created, and how many of them a flush already reported
+    private long mFailedWrites = 0;
+    private long mReportedFailures = 0;
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    WriteBehindQueue(SecuredPreferenceStore store) {
+        this(store, null);
+    }
+
+    /**
+     * @param provisioning the store that is being opened, writes are committed once it's open
+     */
+    WriteBehindQueue(Future<SecuredPreferenceStore> provisioning) {
+        this(null, provisioning);
+    }
+
+    private WriteBehindQueue(@Nullable SecuredPreferenceStore store, @Nullable Future<SecuredPreferenceStore> provisioning) {
+        mStore = store;
+        mProvisioning = provisioning;
+        mExecutor = new ThreadPoolExecutor(0, 1, WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "SPS-write-behind");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @param values plain values by key: strings, string sets, byte arrays or {@link #REMOVED}
+     * @param clear true if the store should be cleared before the values are written
+     * @param callback optional completion callback, called on the worker thread
+     * @return completion of the write
+     */
+    PendingWrite enqueue(Map<String, Object> values, boolean clear, @Nullable SecuredPreferenceStore.WriteCallback callback) {
+        PendingWrite write = new PendingWrite(callback, values.keySet());
+
+        synchronized (mLock) {
+            if (clear) {
+                mPending.clear();
+                mPendingClear = true;
+            }
+            mPending.putAll(values);
+            mPendingWrites.add(write);
+            mLastWrite = write;
+
+            if (!mScheduled) {
+                mScheduled = true;
+                mExecutor.execute(mDrain);
+            }
+        }
+
+        return write;
+    }
+
+    /**
+     * Waits until every write enqueued so far is committed, without committing anything itself
+     * @return false if one of them, or another write since the previous flush, failed
+     */
+    boolean flush() throws InterruptedException {
+        PendingWrite last;
+        long reported;
+
+        synchronized (mLock) {
+            last = mLastWrite;
+            reported = mReportedFailures;
+        }
+        if (last == null) return true;
+
+        //batches complete in order, so the earlier writes are done too
+        last.await();
+        long failed = last.getFailedWrites();
+
+        synchronized (mLock) {
+            if (failed > mReportedFailures) mReportedFailures = failed;
+        }
+
+        return failed == reported;
+    }
+
+    /**
+     * @param key plain key
+     * @return the value waiting to be written, {@link #REMOVED} or {@link #NOT_PENDING}
+     */
+    Object pendingValue(String key) {
+        synchronized (mLock) {
+            if (mPending.containsKey(key)) return mPending.get(key);
+            if (mPendingClear) return REMOVED;
+            if (mInFlight.containsKey(key)) return mInFlight.get(key);
+            if (mInFlightClear) return REMOVED;
+        }
+
+        return NOT_PENDING;
+    }
+
+    /**
+     * @return the store, waits until it's open if it's being provisioned
+     */
+    private SecuredPreferenceStore store() throws ExecutionException, InterruptedException {
+        return mStore != null ? mStore : mProvisioning.get();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void drain() {
+        Map<String, Object> values;
+        boolean clear;
+        List<PendingWrite> writes;
+
+        synchronized (mLock) {
+            values = mPending;
+            clear = mPendingClear;
+            writes = mPendingWrites;
+
+            mPending = new LinkedHashMap<>();
+            mPendingClear = false;
+            mPendingWrites = new ArrayList<>();
+            mScheduled = false;
+
+            mInFlight = values;
+            mInFlightClear = clear;
+        }
+
+        boolean result = false;
+        Exception error = null;
+        //errors of the values left out of the commit, by key
+        Map<String, Exception> keyErrors = new HashMap<>();
+
+        try {
+            if (values.isEmpty() && !clear) {
+                //nothing to write, e.g. an async editor committed without changes
+                result = true;
+            } else {
+                SecuredPreferenceStore.Editor editor = store().edit();
+                if (clear) editor.clear();
+
+                for (Map.Entry<String, Object> entry : values.entrySet()) {
+                    Object value = entry.getValue();
+
+                    if (value == REMOVED) {
+                        editor.remove(entry.getKey());
+                    } else if (value instanceof Set) {
+                        editor.putStringSet(entry.getKey(), (Set<String>) value);
+                    } else if (value instanceof byte[]) {
+                        editor.putBytes(entry.getKey(), (byte[]) value);
+                    } else {
+                        editor.putString(entry.getKey(), (String) value);
+                    }
+
+                    Exception keyError = editor.pullError();
+                    if (keyError != null) keyErrors.put(entry.getKey(), keyError);
+                }
+
+                result = editor.commit();
+                error = editor.pullError();
+            }
+        } catch (RuntimeException e) {
+            Logger.e(e);
+            error = e;
+        } catch (ExecutionException e) {
+            //the store failed to open, the writes fail with the same error
+            error = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            error = e;
+        }
+
+        Exception[] writeErrors = new Exception[writes.size()];
+        int failed = 0;
+        for (int i = 0; i < writeErrors.length; i++) {
+            writeErrors[i] = error != null ? error : firstError(writes.get(i), keyErrors);
+            if (!result || writeErrors[i] != null) failed++;
+        }
+
+        long failedWrites;
+        synchronized (mLock) {
+            mInFlight = Collections.emptyMap();
+            mInFlightClear = false;
+
+            mFailedWrites += failed;
+            failedWrites = mFailedWrites;
+        }
+
+        for (int i = 0; i < writeErrors.length; i++) {
+            writes.get(i).complete(result, writeErrors[i], failedWrites);
+        }
+    }
+
+    @Nullable
+    private static Exception firstError(PendingWrite write, Map<String, Exception> keyErrors) {
+        if (keyErrors.isEmpty()) return null;
+
+        for (String key : write.getKeys()) {
+            Exception error = keyErrors.get(key);
+            if (error != null) return error;
+        }
+
+        return null;
+    }
+}
@@ -20,6 +20,7 @@ import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
 import com.google.gson.Gson;
 
+import devliving.online.securedpreferencestore.EncryptionManager;
 import ru.eftr.RNSecurity.model.ErrorCode;
 import ru.eftr.RNSecurity.model.ErrorResponse;
 import ru.eftr.RNSecurity.model.AuthResponse;
@@ -442,7 +443,7 @@ public class SecurityAuthModule extends ReactContextBaseJavaModule {
   private boolean initCipher(Context context, int mode) throws RNException {
     try {
       if (keyStore == null) {
-        keyStore = KeyStore.getInstance("AndroidKeyStore");
+        keyStore = EncryptionManager.getKeyStoreProvider().getKeyStore();
       }
       cipher = Cipher.getInstance(
         KeyProperties.KEY_ALGORITHM_AES + "/"
@@ -478,7 +479,7 @@ public class SecurityAuthModule extends ReactContextBaseJavaModule {
 
   public void createKey() throws NoSuchProviderException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, IOException {
     try {
-      KeyGenerator mKeyGenerator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, "AndroidKeyStore");
+      KeyGenerator mKeyGenerator = EncryptionManager.getKeyStoreProvider().getKeyGenerator(KeyProperties.KEY_ALGORITHM_AES);
 
       mKeyGenerator.init(new KeyGenParameterSpec.Builder(KEY_NAME, KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
         .setBlockModes(KeyProperties.BLOCK_MODE_CBC)
@@ -489,7 +490,7 @@ public class SecurityAuthModule extends ReactContextBaseJavaModule {
         .build());
       mKeyGenerator.generateKey();
 
-      mKeyGenerator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, "AndroidKeyStore");
+      mKeyGenerator = EncryptionManager.getKeyStoreProvider().getKeyGenerator(KeyProperties.KEY_ALGORITHM_AES);
 
       //Initialize an empty KeyStore//
       keyStore.load(null);
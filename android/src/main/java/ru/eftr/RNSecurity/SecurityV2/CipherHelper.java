@@ -26,6 +26,7 @@ import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
 
+import devliving.online.securedpreferencestore.EncryptionManager;
 import ru.eftr.RNSecurity.sharedPreferences.DataHelper;
 
 import static javax.crypto.Cipher.DECRYPT_MODE;
@@ -53,7 +54,7 @@ public class CipherHelper {
   public boolean initCipher(Context context, int mode) {
     try {
       if (keyStore == null) {
-        keyStore = KeyStore.getInstance("AndroidKeyStore");
+        keyStore = EncryptionManager.getKeyStoreProvider().getKeyStore();
       }
       cipher = Cipher.getInstance(
         KeyProperties.KEY_ALGORITHM_AES + "/"
@@ -96,7 +97,7 @@ public class CipherHelper {
   @RequiresApi(api = Build.VERSION_CODES.M)
   private void createKey() throws NoSuchProviderException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, IOException {
     try {
-      KeyGenerator mKeyGenerator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, "AndroidKeyStore");
+      KeyGenerator mKeyGenerator = EncryptionManager.getKeyStoreProvider().getKeyGenerator(KeyProperties.KEY_ALGORITHM_AES);
 
       mKeyGenerator.init(new KeyGenParameterSpec.Builder(KEY_NAME, KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
         .setBlockModes(KeyProperties.BLOCK_MODE_CBC)
@@ -107,7 +108,7 @@ public class CipherHelper {
         .build());
       mKeyGenerator.generateKey();
 
-      mKeyGenerator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, "AndroidKeyStore");
+      mKeyGenerator = EncryptionManager.getKeyStoreProvider().getKeyGenerator(KeyProperties.KEY_ALGORITHM_AES);
 
       //Initialize an empty KeyStore//
       keyStore.load(null);
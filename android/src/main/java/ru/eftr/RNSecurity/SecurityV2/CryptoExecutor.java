@@ -0,0 +1,121 @@
+package ru.eftr.RNSecurity.SecurityV2;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Пул потоков для работы с хранилищем (keystore, шифрование, запись на диск), чтобы не занимать
+ * поток нативных модулей React Native.
+ *
+ * Задачи одного префикса выполняются строго по очереди, задачи разных префиксов - параллельно.
+ * Число потоков ограничено, в очереди пула не больше одной задачи от каждого префикса.
+ */
+public class CryptoExecutor {
+    private static final int MAX_THREADS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    private static final String NO_PREFIX = "";
+
+    private static CryptoExecutor instance;
+
+    private final ThreadPoolExecutor pool;
+    private final Map<String, SerialLane> lanes = new HashMap<>();
+
+    public static synchronized CryptoExecutor getInstance() {
+        if (instance == null) {
+            instance = new CryptoExecutor();
+        }
+        return instance;
+    }
+
+    private CryptoExecutor() {
+        final AtomicInteger counter = new AtomicInteger();
+        pool = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "SecurityV2-crypto-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Ставит задачу в очередь префикса
+     *
+     * @param prefix префикс хранилища, может быть null
+     * @param task задача
+     */
+    public void execute(String prefix, Runnable task) {
+        String key = prefix != null ? prefix : NO_PREFIX;
+        SerialLane lane;
+
+        synchronized (lanes) {
+            lane = lanes.get(key);
+            if (lane == null) {
+                lane = new SerialLane(key);
+                lanes.put(key, lane);
+            }
+            lane.enqueue(task);
+        }
+    }
+
+    // вызывается под lanes, очередь без задач удаляется
+    private void onLaneIdle(SerialLane lane) {
+        lanes.remove(lane.key);
+    }
+
+    /**
+     * Очередь одного префикса, в пуле находится не больше одной ее задачи
+     */
+    private class SerialLane implements Runnable {
+        private final String key;
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        private boolean running = false;
+
+        SerialLane(String key) {
+            this.key = key;
+        }
+
+        // вызывается под lanes
+        void enqueue(Runnable task) {
+            tasks.add(task);
+            if (!running) {
+                running = true;
+                pool.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            Runnable task;
+            synchronized (lanes) {
+                task = tasks.poll();
+            }
+
+            try {
+                if (task != null) {
+                    task.run();
+                }
+            } catch (RuntimeException ex) {
+                ex.printStackTrace();
+            } finally {
+                synchronized (lanes) {
+                    if (tasks.isEmpty()) {
+                        running = false;
+                        onLaneIdle(this);
+                    } else {
+                        pool.execute(this);
+                    }
+                }
+            }
+        }
+    }
+}
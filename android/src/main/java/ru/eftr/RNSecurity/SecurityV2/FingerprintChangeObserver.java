@@ -28,6 +28,8 @@ import javax.crypto.KeyGenerator;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 
+import devliving.online.securedpreferencestore.EncryptionManager;
+
 public class FingerprintChangeObserver extends ReactContextBaseJavaModule {
     private static FingerprintChangeObserver instance;
     private final ReactApplicationContext reactContext;
@@ -47,13 +49,13 @@ public class FingerprintChangeObserver extends ReactContextBaseJavaModule {
     // for your flow. Use of keys is necessary if you need to know if the set of
     // enrolled fingerprints has changed.
     try {
-      mKeyStore = KeyStore.getInstance("AndroidKeyStore");
+      mKeyStore = EncryptionManager.getKeyStoreProvider().getKeyStore();
     } catch (KeyStoreException e) {
       throw new RuntimeException("Failed to get an instance of KeyStore", e);
     }
     try {
-      mKeyGenerator = KeyGenerator
-        .getInstance(KeyProperties.KEY_ALGORITHM_AES, "AndroidKeyStore");
+      mKeyGenerator = EncryptionManager.getKeyStoreProvider()
+        .getKeyGenerator(KeyProperties.KEY_ALGORITHM_AES);
     } catch (NoSuchAlgorithmException | NoSuchProviderException e) {
 
       throw new RuntimeException("Failed to get an instance of KeyGenerator", e);
@@ -0,0 +1,133 @@
+package ru.eftr.RNSecurity.SecurityV2;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Запоминает закрытые секции в памяти процесса, для тестов на JVM и выгрузки медленных этапов с устройств.
+ * Хранит не больше capacity последних секций, более старые вытесняются
+ */
+public class RecordingTracer implements Tracer {
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    private final int capacity;
+    private final ArrayDeque<Span> spans = new ArrayDeque<>();
+    private final ThreadLocal<ArrayDeque<OpenSection>> openSections = new ThreadLocal<ArrayDeque<OpenSection>>() {
+        @Override
+        protected ArrayDeque<OpenSection> initialValue() {
+            return new ArrayDeque<>();
+        }
+    };
+
+    public RecordingTracer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public RecordingTracer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.capacity = capacity;
+    }
+
+    @Override
+    public void beginSection(String name) {
+        openSections.get().push(new OpenSection(name, System.nanoTime()));
+    }
+
+    @Override
+    public void endSection() {
+        long end = System.nanoTime();
+        ArrayDeque<OpenSection> stack = openSections.get();
+        // как и android.os.Trace, лишний endSection игнорируется
+        OpenSection section = stack.poll();
+        if (section == null) {
+            return;
+        }
+
+        OpenSection parent = stack.peek();
+        Span span = new Span(section.name, parent != null ? parent.name : null, stack.size(),
+                Thread.currentThread().getName(), section.start, end - section.start);
+
+        synchronized (spans) {
+            if (spans.size() == capacity) {
+                spans.removeFirst();
+            }
+            spans.addLast(span);
+        }
+    }
+
+    /**
+     * @return закрытые секции в порядке закрытия, вложенные закрываются раньше внешних
+     */
+    public List<Span> getSpans() {
+        synchronized (spans) {
+            return new ArrayList<>(spans);
+        }
+    }
+
+    /**
+     * @return секции с указанным именем
+     */
+    public List<Span> getSpans(String name) {
+        List<Span> result = new ArrayList<>();
+        for (Span span : getSpans()) {
+            if (span.name.equals(name)) {
+                result.add(span);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Возвращает и удаляет накопленные секции
+     */
+    public List<Span> drain() {
+        synchronized (spans) {
+            List<Span> result = new ArrayList<>(spans);
+            spans.clear();
+            return result;
+        }
+    }
+
+    public void clear() {
+        synchronized (spans) {
+            spans.clear();
+        }
+    }
+
+    public static final class Span {
+        public final String name;
+        // имя внешней секции, null для секции верхнего уровня
+        public final String parent;
+        public final int depth;
+        public final String thread;
+        public final long startNanos;
+        public final long durationNanos;
+
+        Span(String name, String parent, int depth, String thread, long startNanos, long durationNanos) {
+            this.name = name;
+            this.parent = parent;
+            this.depth = depth;
+            this.thread = thread;
+            this.startNanos = startNanos;
+            this.durationNanos = durationNanos;
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + (durationNanos / 1000) + "us [" + thread + "]";
+        }
+    }
+
+    private static final class OpenSection {
+        final String name;
+        final long start;
+
+        OpenSection(String name, long start) {
+            this.name = name;
+            this.start = start;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package ru.eftr.RNSecurity.SecurityV2;
+
+import android.os.Build;
+import android.os.Trace;
+
+/**
+ * Пишет секции в системный трейс (systrace, Perfetto, Android Studio profiler).
+ * До API 18 ничего не делает
+ */
+public class SystemTracer implements Tracer {
+    @Override
+    public void beginSection(String name) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.beginSection(name);
+        }
+    }
+
+    @Override
+    public void endSection() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.endSection();
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package ru.eftr.RNSecurity.SecurityV2;
+
+/**
+ * Разметка этапов операций хранилища, по модели секций android.os.Trace: секции вкладываются,
+ * endSection закрывает последнюю открытую секцию и должен вызываться в том же потоке, что и beginSection.
+ *
+ * @see SystemTracer
+ * @see RecordingTracer
+ */
+public interface Tracer {
+    /**
+     * Ничего не делает, используется по умолчанию
+     */
+    Tracer NONE = new Tracer() {
+        @Override
+        public void beginSection(String name) {
+        }
+
+        @Override
+        public void endSection() {
+        }
+    };
+
+    /**
+     * @param name имя этапа, не длиннее 127 символов
+     */
+    void beginSection(String name);
+
+    void endSection();
+}
@@ -3,12 +3,15 @@ package ru.eftr.RNSecurity;
 import android.Manifest;
 import android.app.KeyguardManager;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 import androidx.biometric.BiometricManager;
 import androidx.biometric.BiometricPrompt;
@@ -16,14 +19,18 @@ import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 import androidx.fragment.app.FragmentActivity;
 
+import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.Callback;
 import com.facebook.react.bridge.Promise;
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
 import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
 
 import java.io.IOException;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyStoreException;
@@ -31,15 +38,26 @@ import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.UnrecoverableEntryException;
 import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.crypto.Cipher;
 import javax.crypto.NoSuchPaddingException;
 
+import devliving.online.securedpreferencestore.CryptoMetrics;
 import devliving.online.securedpreferencestore.DefaultRecoveryHandler;
 import devliving.online.securedpreferencestore.SecuredPreferenceStore;
 import ru.eftr.RNSecurity.SecurityV2.CipherHelper;
+import ru.eftr.RNSecurity.SecurityV2.CryptoExecutor;
 import ru.eftr.RNSecurity.SecurityV2.FingerprintChangeObserver;
+import ru.eftr.RNSecurity.SecurityV2.Tracer;
 import ru.eftr.RNSecurity.model.ErrorCode;
 import ru.eftr.RNSecurity.model.ErrorResponse;
 import ru.eftr.RNSecurity.model.FingerPrintError;
@@ -53,15 +71,30 @@ enum LockType {
 }
 
 public class SecurityV2Module extends ReactContextBaseJavaModule {
+  private static final String NAME = "SecurityV2";
+  private static final String KEY_PREFIXES_FILE_NAME = NAME + ".keyPrefixes";
   private static final String UNLOCK_ATTEMPTS_KEY = "unlock_attempts";
   private static final String CREDS_KEY = "creds";
   private static final String CODE_KEY = "code";
   private static final int MAX_ATTEMPTS = 3;
+  private static final int VALUE_CACHE_SIZE = 8;
   private static final int TOUCH_ID_REQUEST = 1012;
 
-  private boolean _isLocked = true;
-  private boolean _isInitialized = false;
-  private BiometricPrompt biometricPrompt;
+  // хранилища по префиксу, создаются при первом обращении
+  private final Map<String, StoreState> _stores = new HashMap<>();
+  // хранилища, открытые в prewarm до создания модуля, забираются при первом обращении
+  private static final Map<String, FutureTask<SecuredPreferenceStore>> _prewarmedStores = new HashMap<>();
+  // разметка этапов операций, по умолчанию выключена
+  private static volatile Tracer tracer = Tracer.NONE;
+  // шифрование ключом данных, по умолчанию выключено, см. setDataKeyEnabled
+  private static volatile boolean dataKeyEnabled = false;
+  // компактный формат значений, по умолчанию выключен, см. setCompactEnvelopeEnabled
+  private static volatile boolean compactEnvelopeEnabled = false;
+  // запрос биометрии создается, показывается и отменяется только в UI потоке, см. uiHandler
+  private volatile BiometricPrompt biometricPrompt;
+  // время показа текущего запроса биометрии, для метрик
+  private volatile long biometricPromptStart;
+  private final Handler uiHandler = new Handler(Looper.getMainLooper());
 
   public SecurityV2Module(ReactApplicationContext reactContext) {
     super(reactContext);
@@ -69,57 +102,227 @@ public class SecurityV2Module extends ReactContextBaseJavaModule {
 
   @Override
   public String getName() {
-    return "SecurityV2";
+    return NAME;
+  }
+
+  /**
+   * Включает разметку этапов save, read, clean, lock и разблокировки, например SystemTracer для
+   * профилирования или RecordingTracer в тестах
+   * @param tracer null, чтобы выключить
+   */
+  public static void setTracer(@Nullable Tracer tracer) {
+    SecurityV2Module.tracer = tracer != null ? tracer : Tracer.NONE;
+  }
+
+  /**
+   * Включает шифрование новых значений программным ключом данных: ключ keystore расшифровывает его
+   * один раз, дальше значения шифруются без обращения к keystore. Меняет формат хранилища без
+   * возврата, записанные так значения не читаются версиями библиотеки без поддержки ключа данных.
+   * Действует на хранилища, открытые после вызова, поэтому вызывается до prewarm и первого обращения из JS
+   */
+  public static void setDataKeyEnabled(boolean enabled) {
+    dataKeyEnabled = enabled;
+  }
+
+  /**
+   * Включает запись новых значений в компактном формате (v2). Меняет формат хранилища без возврата,
+   * такие значения не читаются версиями библиотеки без поддержки компактного формата.
+   * Действует на хранилища, открытые после вызова, поэтому вызывается до prewarm и первого обращения из JS
+   */
+  public static void setCompactEnvelopeEnabled(boolean enabled) {
+    compactEnvelopeEnabled = enabled;
+  }
+
+  /**
+   * Открывает хранилище префикса и готовит шифрование до первого обращения из JS,
+   * чтобы первое чтение стоило как последующие. Вызывается из Application.onCreate в фоновом потоке
+   */
+  public static void prewarm(Context context, @Nullable final String prefix) {
+    final Context appContext = context.getApplicationContext();
+    FutureTask<SecuredPreferenceStore> task = new FutureTask<>(new Callable<SecuredPreferenceStore>() {
+      @Override
+      public SecuredPreferenceStore call() throws Exception {
+        SecuredPreferenceStore store = openStore(appContext, prefix);
+        store.prewarm();
+        return store;
+      }
+    });
+
+    synchronized (_prewarmedStores) {
+      if (_prewarmedStores.containsKey(prefix)) {
+        return;
+      }
+      _prewarmedStores.put(prefix, task);
+    }
+    task.run();
+  }
+
+  /**
+   * Ждет хранилище из prewarm, если оно еще открывается
+   * @return null, если хранилище не прогревалось или не открылось
+   */
+  @Nullable
+  private static SecuredPreferenceStore takePrewarmedStore(String prefix) {
+    FutureTask<SecuredPreferenceStore> task;
+    synchronized (_prewarmedStores) {
+      task = _prewarmedStores.remove(prefix);
+    }
+    if (task == null) {
+      return null;
+    }
+
+    try {
+      return task.get();
+    } catch (ExecutionException ex) {
+      // откроется заново, ошибка повторится уже в вызове из JS
+      Log.w(NAME, "Prewarm failed", ex.getCause());
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    return null;
   }
 
   /**
    * Не должен кидать исключений. В случае ошибки делает clean.
    */
   private void initIfNeeded(String prefix) {
-    if (!this._isInitialized) {
-      boolean ok;
-      try {
-        this._isLocked = !this.isEmpty(prefix);
-        ok = true;
-      } catch (RNException ex) {
-        ex.printStackTrace();
-        ok = false;
+    StoreState state = this.getStoreState(prefix);
+    synchronized (state) {
+      if (state.isLockStateKnown) {
+        return;
       }
 
-      if (!ok) {
+      tracer.beginSection("SecurityV2.init");
+      try {
+        boolean ok;
         try {
-          this._clean(prefix);
+          state.isLocked = !this.isEmpty(prefix);
+          ok = true;
         } catch (RNException ex) {
           ex.printStackTrace();
+          ok = false;
+        }
+
+        if (!ok) {
+          try {
+            this._clean(prefix);
+          } catch (RNException ex) {
+            ex.printStackTrace();
+          }
         }
-      }
 
-      this._isInitialized = true;
+        state.isLockStateKnown = true;
+      } finally {
+        tracer.endSection();
+      }
     }
   }
 
-  private String getStoreFileName(String prefix) {
+  private static String getStoreFileName(String prefix) {
     if (prefix != null) {
-      return prefix + this.getName() + ".securedStore";
+      return prefix + NAME + ".securedStore";
     } else {
-      return this.getName() + ".securedStore";
+      return NAME + ".securedStore";
+    }
+  }
+
+  private StoreState getStoreState(String prefix) {
+    synchronized (_stores) {
+      StoreState state = _stores.get(prefix);
+      if (state == null) {
+        state = new StoreState();
+        _stores.put(prefix, state);
+      }
+      return state;
     }
   }
 
   private SecuredPreferenceStore getSecuredPreferenceStore(String prefix) throws RNException, IOException, CertificateException, NoSuchAlgorithmException, InvalidKeyException, UnrecoverableEntryException, InvalidAlgorithmParameterException, NoSuchPaddingException, NoSuchProviderException, SecuredPreferenceStore.MigrationFailedException, KeyStoreException {
-    if (!this._isInitialized) {
-      final Context context = this.getContext();
-      //not mandatory, can be null too
-      String storeFileName = getStoreFileName(prefix);
-      //not mandatory, can be null too
-      String keyPrefix = this.getName();
-      //it's better to provide one, and you need to provide the same key each time after the first time
-      byte[] seedKey = (this.getName() + ".seedKey").getBytes();
-      SecuredPreferenceStore.init(context, storeFileName, keyPrefix, seedKey, new DefaultRecoveryHandler());
-      this._isInitialized = true;
+    StoreState state = this.getStoreState(prefix);
+    tracer.beginSection("SecurityV2.store");
+    try {
+      // хранилища разных префиксов открываются параллельно
+      synchronized (state) {
+        if (state.store == null) {
+          SecuredPreferenceStore store = takePrewarmedStore(prefix);
+          if (store == null) {
+            store = openStore(this.getContext(), prefix);
+          }
+          state.store = store;
+        }
+
+        return state.store;
+      }
+    } finally {
+      tracer.endSection();
+    }
+  }
+
+  private static SecuredPreferenceStore openStore(Context context, String prefix) throws IOException, CertificateException, NoSuchAlgorithmException, InvalidKeyException, UnrecoverableEntryException, InvalidAlgorithmParameterException, NoSuchPaddingException, NoSuchProviderException, SecuredPreferenceStore.MigrationFailedException, KeyStoreException {
+    //not mandatory, can be null too
+    String storeFileName = getStoreFileName(prefix);
+    //not mandatory, can be null too
+    String keyPrefix = getKeyPrefix(context, prefix, storeFileName);
+    //it's better to provide one, and you need to provide the same key each time after the first time
+    byte[] seedKey = (NAME + ".seedKey").getBytes();
+    SecuredPreferenceStore store = SecuredPreferenceStore.open(context, storeFileName, keyPrefix, seedKey, new DefaultRecoveryHandler());
+    store.setValueCacheSize(VALUE_CACHE_SIZE);
+    // ключ keystore расшифровывает только ключ данных, значения шифруются программно
+    store.getEncryptionManager().setDataKeyEnabled(dataKeyEnabled);
+    store.getEncryptionManager().setCompactEnvelopeEnabled(compactEnvelopeEnabled);
+    return store;
+  }
+
+  /**
+   * У каждого префикса свои ключи keystore, чтобы восстановление одного хранилища не удаляло ключи,
+   * которыми зашифрованы другие. Хранилище без префикса и хранилища с данными, записанными до этого
+   * на общих ключах, остаются на NAME. Выбор запоминается, чтобы не зависеть от содержимого хранилища
+   */
+  private static String getKeyPrefix(Context context, String prefix, String storeFileName) {
+    if (prefix == null) {
+      return NAME;
+    }
+
+    synchronized (SecurityV2Module.class) {
+      SharedPreferences keyPrefixes = context.getSharedPreferences(KEY_PREFIXES_FILE_NAME, Context.MODE_PRIVATE);
+      String keyPrefix = keyPrefixes.getString(prefix, null);
+      if (keyPrefix == null) {
+        boolean hasLegacyData = !context.getSharedPreferences(storeFileName, Context.MODE_PRIVATE).getAll().isEmpty();
+        keyPrefix = hasLegacyData ? NAME : NAME + "_" + prefix;
+        keyPrefixes.edit().putString(prefix, keyPrefix).commit();
+      }
+      return keyPrefix;
+    }
+  }
+
+  /**
+   * Выполняет задачу в очереди префикса, промис завершается из потока пула
+   * @param section имя секции трейса задачи
+   */
+  private void runInCryptoExecutor(final String section, ReadableMap options, final Promise promise, final PrefixTask task) {
+    final String prefix;
+    try {
+      prefix = options.getString("prefix");
+    } catch (Exception ex) {
+      new ErrorResponse(ErrorCode.UNDEFINED, ex.getMessage()).reject(promise);
+      return;
     }
 
-    return SecuredPreferenceStore.getSharedInstance();
+    CryptoExecutor.getInstance().execute(prefix, new Runnable() {
+      @Override
+      public void run() {
+        tracer.beginSection(section);
+        try {
+          task.execute(prefix);
+        } catch (RNException ex) {
+          new ErrorResponse(ex).reject(promise);
+        } catch (Exception ex) {
+          new ErrorResponse(ErrorCode.UNDEFINED, ex.getMessage()).reject(promise);
+        } finally {
+          tracer.endSection();
+        }
+      }
+    });
   }
 
   private void ensureUnlocked(String prefix) throws RNException {
@@ -130,14 +333,32 @@ public class SecurityV2Module extends ReactContextBaseJavaModule {
 
   private boolean getIsLocked(String prefix) {
     this.initIfNeeded(prefix);
-    return this._isLocked;
+    return this.getStoreState(prefix).isLocked;
+  }
+
+  private void setIsLocked(String prefix, boolean isLocked) {
+    this.getStoreState(prefix).isLocked = isLocked;
   }
 
   private boolean isEmpty(String prefix) throws RNException {
     try {
       SecuredPreferenceStore store = this.getSecuredPreferenceStore(prefix);
-      boolean result = store.getAll().size() == 0;
-      store.throwExceptionIfErrorOccurred();
+      boolean result;
+      tracer.beginSection("SecurityV2.isEmpty");
+      try {
+        // ничего не расшифровывает
+        result = store.isEmpty();
+      } finally {
+        tracer.endSection();
+      }
+
+      if (!result) {
+        // хранилище, которое не расшифровывается (например, после сброса ключей keystore),
+        // должно очиститься в initIfNeeded, иначе его не разблокировать кодом
+        if (getString(store, CODE_KEY, null) == null) {
+          getString(store, CREDS_KEY, null);
+        }
+      }
       return result;
     } catch (Exception ex) {
       throw new RNException(ErrorCode.UNDEFINED, ex.getMessage());
@@ -155,49 +376,124 @@ public class SecurityV2Module extends ReactContextBaseJavaModule {
 //    clean(options?: {}): Promise<void>;
 
   @ReactMethod
-  public void clean(ReadableMap options, Promise promise) {
-    try {
-      String prefix = options.getString("prefix");
-      this._clean(prefix);
-      promise.resolve(null);
-    } catch (RNException ex) {
-      new ErrorResponse(ex).reject(promise);
-    } catch (Exception ex) {
-      new ErrorResponse(ErrorCode.UNDEFINED, ex.getMessage()).reject(promise);
-    }
+  public void clean(ReadableMap options, final Promise promise) {
+    this.runInCryptoExecutor("SecurityV2.clean", options, promise, new PrefixTask() {
+      @Override
+      public void execute(String prefix) throws Exception {
+        _clean(prefix);
+        promise.resolve(null);
+      }
+    });
   }
 
   private void _clean(String prefix) throws RNException {
     try {
       SecuredPreferenceStore store = this.getSecuredPreferenceStore(prefix);
-      store.edit().clear().commit();
-      store.throwExceptionIfErrorOccurred();
+      commit(store.editAsync().clear(), "Failed to clean the store");
+    } catch (RNException ex) {
+      throw ex;
     } catch (Exception ex) {
       throw new RNException(ErrorCode.UNDEFINED, ex.getMessage());
     } finally {
-      biometricPrompt = null;
+      uiHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          biometricPrompt = null;
+        }
+      });
     }
 
-    this._isLocked = false;
+    this.setIsLocked(prefix, false);
   }
 
   //    lock(options?: {}): Promise<void>;
 
   @ReactMethod
-  public void lock(ReadableMap options, Promise promise) {
-    try {
-      this._isLocked = true;
+  public void lock(ReadableMap options, final Promise promise) {
+    // блокировка идет в очереди префикса, чтобы поставленная до нее разблокировка не отменила ее
+    if (options.hasKey("prefix")) {
+      this.runInCryptoExecutor("SecurityV2.lock", options, promise, new PrefixTask() {
+        @Override
+        public void execute(String prefix) {
+          _lock(prefix);
+          promise.resolve(null);
+        }
+      });
+      return;
+    }
+
+    // без префикса закрываются все хранилища, промис завершается после блокировки последнего
+    List<String> prefixes;
+    synchronized (_stores) {
+      prefixes = new ArrayList<>(_stores.keySet());
+    }
+    if (prefixes.isEmpty()) {
       promise.resolve(null);
-    } catch (Exception ex) {
-      new ErrorResponse(ErrorCode.UNDEFINED, ex.getMessage()).reject(promise);
+      return;
+    }
+
+    final AtomicInteger remaining = new AtomicInteger(prefixes.size());
+    for (final String prefix : prefixes) {
+      CryptoExecutor.getInstance().execute(prefix, new Runnable() {
+        @Override
+        public void run() {
+          tracer.beginSection("SecurityV2.lock");
+          try {
+            _lock(prefix);
+          } finally {
+            tracer.endSection();
+            if (remaining.decrementAndGet() == 0) {
+              promise.resolve(null);
+            }
+          }
+        }
+      });
+    }
+  }
+
+  private void _lock(String prefix) {
+    StoreState state = this.getStoreState(prefix);
+    state.isLocked = true;
+    SecuredPreferenceStore store = state.store;
+    if (store != null) {
+      // закрытое хранилище не отдает значения из кэша, ключи данных обнуляются
+      store.wipeValueCache();
+      store.wipeDataKeys();
+    }
+  }
+
+  /**
+   * Записывает изменения и дожидается их записи на диск, ошибка берется из результата этой записи,
+   * а не из общего для всех потоков pullException хранилища
+   */
+  private static void commit(SecuredPreferenceStore.AsyncEditor editor, String errorMessage) throws RNException {
+    tracer.beginSection("SecurityV2.commit");
+    try {
+      if (!editor.commitAsync().get()) {
+        throw new RNException(ErrorCode.UNDEFINED, errorMessage);
+      }
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+      throw new RNException(ErrorCode.UNDEFINED, cause.getMessage());
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new RNException(ErrorCode.UNDEFINED, errorMessage);
+    } finally {
+      tracer.endSection();
     }
   }
 
   private void tryIncrementUnlockAttempts(LockType lockType, String prefix) throws RNException {
+    tracer.beginSection("SecurityV2.incrementAttempts");
     try {
       SecuredPreferenceStore store = this.getSecuredPreferenceStore(prefix);
-      int nextValue = store.getInt(UNLOCK_ATTEMPTS_KEY, 0) + 1;
-      store.throwExceptionIfErrorOccurred();
+      int nextValue;
+      tracer.beginSection("SecurityV2.getInt");
+      try {
+        nextValue = store.getIntChecked(UNLOCK_ATTEMPTS_KEY, 0) + 1;
+      } finally {
+        tracer.endSection();
+      }
 
       if (nextValue >= MAX_ATTEMPTS) {
         // по старой логике очистку делать только при неверном коде
@@ -208,23 +504,29 @@ public class SecurityV2Module extends ReactContextBaseJavaModule {
         ErrorCode errorCode = lockType == LockType.Code ? ErrorCode.PINCODE_TO_MUCH_ATTEMPTS : ErrorCode.FINGERPRINT_TO_MUCH_ATTEMPTS;
         throw new RNException(errorCode);
       } else {
-        store.edit().putInt(UNLOCK_ATTEMPTS_KEY, nextValue).commit();
-        store.throwExceptionIfErrorOccurred();
+        // счетчик попыток должен попасть на диск до ответа
+        commit(store.editAsync().putInt(UNLOCK_ATTEMPTS_KEY, nextValue), "Failed to save unlock attempts");
       }
     } catch (RNException ex) {
       throw ex;
     } catch (Exception ex) {
       throw new RNException(ErrorCode.UNDEFINED, ex.getMessage());
+    } finally {
+      tracer.endSection();
     }
   }
 
   private void _resetUnlockAttempts(String prefix) throws RNException {
+    tracer.beginSection("SecurityV2.resetAttempts");
     try {
       SecuredPreferenceStore store = this.getSecuredPreferenceStore(prefix);
-      store.edit().putInt(UNLOCK_ATTEMPTS_KEY, 0).commit();
-      store.throwExceptionIfErrorOccurred();
+      commit(store.editAsync().putInt(UNLOCK_ATTEMPTS_KEY, 0), "Failed to reset unlock attempts");
+    } catch (RNException ex) {
+      throw ex;
     } catch (Exception ex) {
       throw new RNException(ErrorCode.UNDEFINED, ex.getMessage());
+    } finally {
+      tracer.endSection();
     }
   }
 
@@ -274,98 +576,108 @@ public class SecurityV2Module extends ReactContextBaseJavaModule {
 //    save(creds: string | undefined, options?: {}): Promise<void>;
 
   @ReactMethod
-  public void save(String creds, ReadableMap options, Promise promise) {
-    try {
-      String prefix = options.getString("prefix");
-      this.ensureUnlocked(prefix);
-      SecuredPreferenceStore store = this.getSecuredPreferenceStore(prefix);
-      store.edit().putString(CREDS_KEY, creds).commit();
-      store.throwExceptionIfErrorOccurred();
-      promise.resolve(null);
-    } catch (RNException ex) {
-      new ErrorResponse(ex).reject(promise);
-    } catch (Exception ex) {
-      new ErrorResponse(ErrorCode.UNDEFINED, ex.getMessage()).reject(promise);
-    }
+  public void save(final String creds, ReadableMap options, final Promise promise) {
+    this.runInCryptoExecutor("SecurityV2.save", options, promise, new PrefixTask() {
+      @Override
+      public void execute(String prefix) throws Exception {
+        ensureUnlocked(prefix);
+        SecuredPreferenceStore store = getSecuredPreferenceStore(prefix);
+        put(store, CREDS_KEY, creds, promise);
+      }
+    });
   }
 
 //    read(options?: {}): Promise<string | undefined>;
 
   @ReactMethod
-  public void read(ReadableMap options, Promise promise) {
+  public void read(ReadableMap options, final Promise promise) {
+    this.runInCryptoExecutor("SecurityV2.read", options, promise, new PrefixTask() {
+      @Override
+      public void execute(String prefix) throws Exception {
+        ensureUnlocked(prefix);
+        SecuredPreferenceStore store = getSecuredPreferenceStore(prefix);
+        String creds = getString(store, CREDS_KEY, null);
+
+        promise.resolve(creds);
+      }
+    });
+  }
+
+  private static String getString(SecuredPreferenceStore store, String key, String defaultValue) throws GeneralSecurityException, IOException {
+    tracer.beginSection("SecurityV2.getString");
     try {
-      String prefix = options.getString("prefix");
-      this.ensureUnlocked(prefix);
-      SecuredPreferenceStore store = this.getSecuredPreferenceStore(prefix);
-      String creds = store.getString(CREDS_KEY, null);
-      store.throwExceptionIfErrorOccurred();
+      return store.getStringChecked(key, defaultValue);
+    } finally {
+      tracer.endSection();
+    }
+  }
 
-      promise.resolve(creds);
-    } catch (RNException ex) {
-      new ErrorResponse(ex).reject(promise);
-    } catch (Exception ex) {
-      new ErrorResponse(ErrorCode.UNDEFINED, ex.getMessage()).reject(promise);
+  // промис завершается после записи на диск, секция покрывает только постановку в очередь
+  private static void put(SecuredPreferenceStore store, String key, String value, Promise promise) {
+    tracer.beginSection("SecurityV2.put");
+    try {
+      store.editAsync().putString(key, value).commit(new PromiseWriteCallback(promise));
+    } finally {
+      tracer.endSection();
     }
   }
 
 //    setUnlockCode(code: string, options?: {}): Promise<void>;
 
   @ReactMethod
-  public void setUnlockCode(String code, ReadableMap options, Promise promise) {
-    try {
-      String prefix = options.getString("prefix");
-      this.ensureUnlocked(prefix);
-      SecuredPreferenceStore store = this.getSecuredPreferenceStore(prefix);
-      store.edit().putString(CODE_KEY, code).commit();
-      store.throwExceptionIfErrorOccurred();
-      promise.resolve(null);
-    } catch (RNException ex) {
-      new ErrorResponse(ex).reject(promise);
-    } catch (Exception ex) {
-      new ErrorResponse(ErrorCode.UNDEFINED, ex.getMessage()).reject(promise);
-    }
+  public void setUnlockCode(final String code, ReadableMap options, final Promise promise) {
+    this.runInCryptoExecutor("SecurityV2.setUnlockCode", options, promise, new PrefixTask() {
+      @Override
+      public void execute(String prefix) throws Exception {
+        ensureUnlocked(prefix);
+        SecuredPreferenceStore store = getSecuredPreferenceStore(prefix);
+        put(store, CODE_KEY, code, promise);
+      }
+    });
   }
 
 //    unlockByCode(code: string, options?: {}): Promise<void>;
 
   @ReactMethod
-  public void unlockByCode(String code, ReadableMap options, Promise promise) {
-    try {
-      String prefix = options.getString("prefix");
-      SecuredPreferenceStore store = this.getSecuredPreferenceStore(prefix);
-      String unlockCode = store.getString(CODE_KEY, "");
-      boolean isValid = unlockCode.equals(code);
-      store.throwExceptionIfErrorOccurred();
-      if (!isValid) {
-        this.tryIncrementUnlockAttempts(LockType.Code, prefix);
-        throw new RNException(ErrorCode.PINCODE_CHECK_FAILED);
-      }
+  public void unlockByCode(final String code, ReadableMap options, final Promise promise) {
+    this.runInCryptoExecutor("SecurityV2.unlockByCode", options, promise, new PrefixTask() {
+      @Override
+      public void execute(String prefix) throws Exception {
+        SecuredPreferenceStore store = getSecuredPreferenceStore(prefix);
+        String unlockCode = getString(store, CODE_KEY, "");
+        boolean isValid;
+        tracer.beginSection("SecurityV2.compare");
+        try {
+          isValid = unlockCode.equals(code);
+        } finally {
+          tracer.endSection();
+        }
+        if (!isValid) {
+          tryIncrementUnlockAttempts(LockType.Code, prefix);
+          throw new RNException(ErrorCode.PINCODE_CHECK_FAILED);
+        }
 
-      _resetUnlockAttempts(prefix);
-      this._isLocked = false;
+        _resetUnlockAttempts(prefix);
+        setIsLocked(prefix, false);
 
-      promise.resolve(null);
-    } catch (RNException ex) {
-      new ErrorResponse(ex).reject(promise);
-    } catch (Exception ex) {
-      new ErrorResponse(ErrorCode.UNDEFINED, ex.getMessage()).reject(promise);
-    }
+        promise.resolve(null);
+      }
+    });
   }
 
 //    setUnlockBiometry(options?: {}): Promise<void>;
 
   @RequiresApi(api = Build.VERSION_CODES.M)
   @ReactMethod
-  public void setUnlockBiometry(ReadableMap options, final Promise promise) {
-    try {
-      String prefix = options.getString("prefix");
-      this.ensureUnlocked(prefix);
-      this._authenticateByBiometry(options, promise, false);
-    } catch (RNException ex) {
-      new ErrorResponse(ex).reject(promise);
-    } catch (Exception ex) {
-      new ErrorResponse(ErrorCode.UNDEFINED, ex.getMessage()).reject(promise);
-    }
+  public void setUnlockBiometry(final ReadableMap options, final Promise promise) {
+    // хранилище открывается и проверяется в очереди префикса, запрос биометрии показывается из UI потока
+    this.runInCryptoExecutor("SecurityV2.setUnlockBiometry", options, promise, new PrefixTask() {
+      @Override
+      public void execute(String prefix) throws Exception {
+        ensureUnlocked(prefix);
+        _authenticateByBiometry(options, promise, false);
+      }
+    });
   }
 
 //    unlockByBiometry(options?: {}): Promise<void>;
@@ -383,20 +695,40 @@ public class SecurityV2Module extends ReactContextBaseJavaModule {
   }
 
   @RequiresApi(api = Build.VERSION_CODES.M)
-  private void _authenticateByBiometry(ReadableMap options, final Promise promise, final boolean lockOnFail) throws RNException {
-    final String prefix = options.getString("prefix");
-    this._ensureFingerprintAuthAvailable();
-    this._cancelAndResetBiometry();
-
-    Context context = null;
+  private void _authenticateByBiometry(final ReadableMap options, final Promise promise, final boolean lockOnFail) throws RNException {
+    tracer.beginSection("SecurityV2.authenticateByBiometry");
     try {
-      context = getContext();
-    } catch (RNException e) {
-      e.printStackTrace();
+      tracer.beginSection("SecurityV2.ensureBiometry");
+      try {
+        this._ensureFingerprintAuthAvailable();
+      } finally {
+        tracer.endSection();
+      }
+      final Context context = getContext();
+
+      uiHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            _showBiometryPrompt(context, options, promise, lockOnFail);
+          } catch (Exception ex) {
+            new ErrorResponse(ErrorCode.UNDEFINED, ex.getMessage()).reject(promise);
+          }
+        }
+      });
+    } finally {
+      tracer.endSection();
     }
+  }
+
+  // вызывается только в UI потоке
+  @RequiresApi(api = Build.VERSION_CODES.M)
+  private void _showBiometryPrompt(Context context, ReadableMap options, final Promise promise, final boolean lockOnFail) {
+    final String prefix = options.getString("prefix");
+    this._cancelAndResetBiometry();
 
     Executor executor = ContextCompat.getMainExecutor(context);
-    biometricPrompt = new BiometricPrompt((FragmentActivity) context,
+    final BiometricPrompt prompt = new BiometricPrompt((FragmentActivity) context,
       executor, new BiometricPrompt.AuthenticationCallback() {
       @Override
       public void onAuthenticationError(int errorCode,
@@ -417,14 +749,23 @@ public class SecurityV2Module extends ReactContextBaseJavaModule {
         super.onAuthenticationSucceeded(result);
         if (biometricPrompt == null) return; // already handled
         //все прошло успешно
+        CryptoMetrics.record(CryptoMetrics.Operation.BIOMETRIC_PROMPT, biometricPromptStart, true);
         _cancelAndResetBiometry();
-        try {
-          _resetUnlockAttempts(prefix);
-          _isLocked = false;
-          promise.resolve(null);
-        } catch (RNException ex) {
-          new ErrorResponse(ex).reject(promise);
-        }
+        CryptoExecutor.getInstance().execute(prefix, new Runnable() {
+          @Override
+          public void run() {
+            tracer.beginSection("SecurityV2.biometrySucceeded");
+            try {
+              _resetUnlockAttempts(prefix);
+              setIsLocked(prefix, false);
+              promise.resolve(null);
+            } catch (RNException ex) {
+              new ErrorResponse(ex).reject(promise);
+            } finally {
+              tracer.endSection();
+            }
+          }
+        });
       }
 
       @Override
@@ -457,29 +798,40 @@ public class SecurityV2Module extends ReactContextBaseJavaModule {
       .setAllowedAuthenticators(BiometricManager.Authenticators.BIOMETRIC_STRONG)
       .build();
 
-    Handler h = new Handler(context.getMainLooper());
-    h.postDelayed(new Runnable() {
+    biometricPrompt = prompt;
+    uiHandler.postDelayed(new Runnable() {
       @Override
       public void run() {
-        biometricPrompt.authenticate(promptInfo);
+        if (biometricPrompt != prompt) return; // canceled before being shown
+        biometricPromptStart = CryptoMetrics.start();
+        prompt.authenticate(promptInfo);
       }
     }, 100);
   }
 
-  private void _onBiometryFailed(String prefix, ErrorCode errorCode, Promise promise, boolean lockOnFail, ErrorResponse errorResponse) {
+  private void _onBiometryFailed(final String prefix, final ErrorCode errorCode, final Promise promise, final boolean lockOnFail, final ErrorResponse errorResponse) {
+    CryptoMetrics.record(CryptoMetrics.Operation.BIOMETRIC_PROMPT, biometricPromptStart, false);
     _cancelAndResetBiometry();
-    if (lockOnFail) {
-      _isLocked = true;
-    }
 
-    try {
-      //not increment retry count when not try scan
-      if (errorCode != ErrorCode.FINGERPRINT_CANCELED)
-        tryIncrementUnlockAttempts(LockType.Biometry, prefix);
-      errorResponse.reject(promise);
-    } catch (RNException ex) {
-      new ErrorResponse(ex).reject(promise);
-    }
+    CryptoExecutor.getInstance().execute(prefix, new Runnable() {
+      @Override
+      public void run() {
+        tracer.beginSection("SecurityV2.biometryFailed");
+        try {
+          if (lockOnFail) {
+            setIsLocked(prefix, true);
+          }
+          //not increment retry count when not try scan
+          if (errorCode != ErrorCode.FINGERPRINT_CANCELED)
+            tryIncrementUnlockAttempts(LockType.Biometry, prefix);
+          errorResponse.reject(promise);
+        } catch (RNException ex) {
+          new ErrorResponse(ex).reject(promise);
+        } finally {
+          tracer.endSection();
+        }
+      }
+    });
   }
 
   @ReactMethod
@@ -503,8 +855,68 @@ public class SecurityV2Module extends ReactContextBaseJavaModule {
     }
   }
 
+//    setMetricsEnabled(enabled: boolean): Promise<void>;
+
+  @ReactMethod
+  public void setMetricsEnabled(boolean enabled, Promise promise) {
+    CryptoMetrics.setEnabled(enabled);
+    promise.resolve(null);
+  }
+
+//    getMetrics(options?: { reset?: boolean }): Promise<ISecurityV2Metrics | undefined>;
+
+  /**
+   * Счетчики и задержки операций шифрования и хранилища с момента включения или последнего сброса.
+   * Времена в микросекундах, buckets[i] - число операций быстрее 2^i мкс
+   */
+  @ReactMethod
+  public void getMetrics(ReadableMap options, Promise promise) {
+    try {
+      CryptoMetrics.Snapshot snapshot = CryptoMetrics.snapshot();
+      if (options.hasKey("reset") && options.getBoolean("reset")) {
+        CryptoMetrics.reset();
+      }
+
+      WritableMap operations = Arguments.createMap();
+      for (CryptoMetrics.OperationSnapshot operation : snapshot.getOperations()) {
+        WritableArray buckets = Arguments.createArray();
+        for (long count : operation.getBuckets()) {
+          buckets.pushDouble(count);
+        }
+
+        WritableMap map = Arguments.createMap();
+        map.putDouble("count", operation.getCount());
+        map.putDouble("errors", operation.getErrors());
+        map.putDouble("totalUs", operation.getTotalNanos() / 1000.0);
+        map.putDouble("meanUs", operation.getMeanNanos() / 1000.0);
+        map.putDouble("maxUs", operation.getMaxNanos() / 1000.0);
+        map.putDouble("p50Us", operation.getPercentileMicros(50));
+        map.putDouble("p90Us", operation.getPercentileMicros(90));
+        map.putDouble("p99Us", operation.getPercentileMicros(99));
+        map.putArray("buckets", buckets);
+        operations.putMap(operation.getOperation().metricName(), map);
+      }
+
+      WritableMap result = Arguments.createMap();
+      result.putBoolean("enabled", CryptoMetrics.isEnabled());
+      result.putMap("operations", operations);
+      promise.resolve(result);
+    } catch (Exception ex) {
+      new ErrorResponse(ErrorCode.UNDEFINED, ex.getMessage()).reject(promise);
+    }
+  }
+
   @ReactMethod
   private void _cancelAndResetBiometry() {
+    if (Looper.myLooper() != Looper.getMainLooper()) {
+      uiHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          _cancelAndResetBiometry();
+        }
+      });
+      return;
+    }
     if (biometricPrompt != null) {
       biometricPrompt.cancelAuthentication();
       biometricPrompt = null;
@@ -517,4 +929,34 @@ public class SecurityV2Module extends ReactContextBaseJavaModule {
       throw new RNException(ErrorCode.ACTIVITY_NOT_FOUND);
     return context;
   }
+
+  // состояние хранилища одного префикса, счетчик попыток хранится в самом хранилище
+  private static class StoreState {
+    volatile SecuredPreferenceStore store;
+    volatile boolean isLocked = true;
+    boolean isLockStateKnown = false;
+  }
+
+  private interface PrefixTask {
+    void execute(String prefix) throws Exception;
+  }
+
+  // завершает промис после записи значения на диск
+  private static class PromiseWriteCallback implements SecuredPreferenceStore.WriteCallback {
+    private final Promise promise;
+
+    PromiseWriteCallback(Promise promise) {
+      this.promise = promise;
+    }
+
+    @Override
+    public void onComplete(boolean success, @Nullable Exception error) {
+      if (success) {
+        promise.resolve(null);
+      } else {
+        String message = error != null ? error.getMessage() : "Failed to save the value";
+        new ErrorResponse(ErrorCode.UNDEFINED, message).reject(promise);
+      }
+    }
+  }
 }
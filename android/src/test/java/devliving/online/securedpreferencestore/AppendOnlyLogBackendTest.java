@@ -0,0 +1,185 @@
+package devliving.online.securedpreferencestore;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static devliving.online.securedpreferencestore.EncryptedJournalBackendTest.flip;
+import static devliving.online.securedpreferencestore.EncryptedJournalBackendTest.truncate;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Format of {@link AppendOnlyLogBackend}: logs are closed and loaded again from the file after being
+ * damaged the way a crash would
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class AppendOnlyLogBackendTest {
+    private File mFile;
+    private AppendOnlyLogBackend mLog;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = new File(RuntimeEnvironment.application.getFilesDir(), "log-test/" + System.nanoTime() + ".log");
+        mLog = AppendOnlyLogBackend.open(mFile);
+    }
+
+    @After
+    public void tearDown() {
+        mLog.close();
+        new File(mFile.getPath() + ".tmp").delete();
+        mFile.delete();
+    }
+
+    private AppendOnlyLogBackend reopen() throws IOException {
+        mLog.close();
+        mLog = AppendOnlyLogBackend.open(mFile);
+        return mLog;
+    }
+
+    @Test
+    public void valuesSurviveReopening() throws Exception {
+        Map<String, Object> expected = new HashMap<>();
+        expected.put("string", "value");
+        expected.put("set", new HashSet<>(Arrays.asList("a", "b")));
+        expected.put("int", 42);
+        expected.put("long", Long.MAX_VALUE);
+        expected.put("float", 1.5f);
+        expected.put("boolean", true);
+
+        StorageBackend.Transaction transaction = mLog.beginTransaction();
+        for (Map.Entry<String, Object> entry : expected.entrySet()) {
+            transaction.put(entry.getKey(), entry.getValue());
+        }
+        transaction.put("removed", "value");
+        assertTrue(transaction.commit());
+        assertTrue(mLog.beginTransaction().remove("removed").put("string", "new value").commit());
+        expected.put("string", "new value");
+
+        assertEquals(expected, reopen().getAll());
+        assertFalse(mLog.contains("removed"));
+    }
+
+    @Test
+    public void clearSurvivesReopening() throws Exception {
+        assertTrue(mLog.beginTransaction().put("old", "value").commit());
+        assertTrue(mLog.beginTransaction().clear().put("new", "value").commit());
+
+        Map<String, Object> expected = new HashMap<>();
+        expected.put("new", "value");
+        assertEquals(expected, reopen().getAll());
+    }
+
+    @Test
+    public void tornRecordIsDropped() throws Exception {
+        assertTrue(mLog.beginTransaction().put("first", "value").commit());
+        long committed = mFile.length();
+        assertTrue(mLog.beginTransaction().put("second", "value").put("third", "value").commit());
+
+        mLog.close();
+        truncate(mFile, mFile.length() - 5);
+
+        reopen();
+        assertEquals("value", mLog.get("first"));
+        assertNull(mLog.get("second"));
+        assertNull(mLog.get("third"));
+        assertEquals(committed, mFile.length());
+
+        //records are appended after the last valid one again
+        assertTrue(mLog.beginTransaction().put("fourth", "value").commit());
+        assertEquals("value", reopen().get("fourth"));
+        assertEquals("value", mLog.get("first"));
+    }
+
+    @Test
+    public void flippedByteDropsTheRecord() throws Exception {
+        assertTrue(mLog.beginTransaction().put("first", "value").commit());
+        long committed = mFile.length();
+        assertTrue(mLog.beginTransaction().put("second", "value").commit());
+
+        mLog.close();
+        flip(mFile, (committed + mFile.length()) / 2);
+
+        reopen();
+        assertEquals("value", mLog.get("first"));
+        assertNull(mLog.get("second"));
+        assertEquals(committed, mFile.length());
+    }
+
+    @Test
+    public void compactionKeepsTheLiveValues() throws Exception {
+        String padding = new String(new char[100]).replace('\0', 'x');
+        long written = 0;
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(mLog.beginTransaction().put("key" + (i % 10), padding + i).commit());
+            written += padding.length() + 20;
+        }
+
+        //compacted once the log grew past twice the live entries
+        assertTrue(mFile.length() < written / 2);
+        for (int key = 0; key < 10; key++) {
+            assertEquals(padding + (990 + key), mLog.get("key" + key));
+        }
+
+        reopen();
+        for (int key = 0; key < 10; key++) {
+            assertEquals(padding + (990 + key), mLog.get("key" + key));
+        }
+    }
+
+    @Test
+    public void writesDuringCompactionAreKept() throws Exception {
+        final int writes = 500;
+        final String padding = new String(new char[100]).replace('\0', 'x');
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+
+        Thread[] writers = new Thread[4];
+        for (int w = 0; w < writers.length; w++) {
+            final String prefix = "writer" + w + "_";
+            writers[w] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < writes; i++) {
+                            if (!mLog.beginTransaction().put(prefix + (i % 5), padding + i).commit()) {
+                                throw new AssertionError("Write " + i + " failed");
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.set(e);
+                    }
+                }
+            });
+            writers[w].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        if (error.get() != null) throw new AssertionError(error.get());
+
+        Map<String, Object> expected = new HashMap<>();
+        for (int w = 0; w < writers.length; w++) {
+            for (int key = 0; key < 5; key++) {
+                expected.put("writer" + w + "_" + key, padding + (writes - 5 + key));
+            }
+        }
+
+        assertEquals(expected, mLog.getAll());
+        assertEquals(expected, reopen().getAll());
+    }
+}
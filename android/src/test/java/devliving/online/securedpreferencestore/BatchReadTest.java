@@ -0,0 +1,116 @@
+package devliving.online.securedpreferencestore;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link SecuredPreferenceStore#getStrings(java.util.Collection)} reads the same values as
+ * {@link SecuredPreferenceStore#getString(String, String)} whatever the key used for each value
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class BatchReadTest {
+    private final static String STORE_NAME = "batch";
+
+    private SecuredPreferenceStore mStore;
+
+    @Before
+    public void setUp() throws Exception {
+        EncryptionManager.setKeyStoreProvider(new InMemoryKeyStoreProvider());
+        mStore = SecuredPreferenceStore.open(RuntimeEnvironment.application, STORE_NAME, "batch",
+                "batch.seed".getBytes(), new DefaultRecoveryHandler(), InMemoryBackend.FACTORY);
+    }
+
+    @After
+    public void tearDown() {
+        InMemoryBackend.FACTORY.delete(RuntimeEnvironment.application, STORE_NAME);
+        EncryptionManager.setKeyStoreProvider(null);
+    }
+
+    private Map<String, String> putValues(String prefix, int count) {
+        Map<String, String> values = new HashMap<>();
+        SecuredPreferenceStore.Editor editor = mStore.edit();
+        for (int i = 0; i < count; i++) {
+            values.put(prefix + i, "value " + prefix + i);
+            editor.putString(prefix + i, "value " + prefix + i);
+        }
+        assertTrue(editor.commit());
+        return values;
+    }
+
+    @Test
+    public void readsTheValuesOfEveryKey() throws Exception {
+        Map<String, String> expected = putValues("key", 50);
+
+        List<String> keys = new ArrayList<>(expected.keySet());
+        keys.add("missing");
+        BatchReadResult result = mStore.getStrings(keys);
+
+        assertEquals(expected, result.getValues());
+        assertFalse(result.hasErrors());
+        assertNull(result.getValue("missing"));
+    }
+
+    @Test
+    public void readsValuesOfTheKeystoreAndDataKeys() throws Exception {
+        Map<String, String> expected = putValues("keystore", 10);
+
+        mStore.getEncryptionManager().setDataKeyEnabled(true);
+        expected.putAll(putValues("dataKey", 10));
+
+        assertEquals(expected, mStore.getStrings(expected.keySet()).getValues());
+        for (Map.Entry<String, String> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), mStore.getString(entry.getKey(), null));
+        }
+    }
+
+    @Test
+    public void readsThroughTheValueCache() throws Exception {
+        Map<String, String> expected = putValues("key", 10);
+        mStore.setValueCacheSize(5);
+
+        assertEquals(expected, mStore.getStrings(expected.keySet()).getValues());
+        //the second batch is partly served by the cache
+        assertEquals(expected, mStore.getStrings(expected.keySet()).getValues());
+    }
+
+    @Test
+    public void errorsAreReportedPerKey() throws Exception {
+        Map<String, String> expected = putValues("key", 10);
+
+        //a value that fails authentication
+        StorageBackend backend = InMemoryBackend.FACTORY.open(RuntimeEnvironment.application, STORE_NAME);
+        String hashedKey = EncryptionManager.getHashed("key3");
+        String stored = (String) backend.get(hashedKey);
+        char last = stored.charAt(stored.length() - 1);
+        String damaged = stored.substring(0, stored.length() - 1) + (last == 'A' ? 'B' : 'A');
+        assertTrue(backend.beginTransaction().put(hashedKey, damaged).commit());
+        expected.remove("key3");
+
+        List<String> keys = new ArrayList<>(expected.keySet());
+        keys.addAll(Arrays.asList("key3", EncryptionManager.OVERRIDING_KEY_ALIAS_PREFIX_NAME));
+        BatchReadResult result = mStore.getStrings(keys);
+
+        assertEquals(expected, result.getValues());
+        assertEquals(2, result.getErrors().size());
+        assertNotNull(result.getError("key3"));
+        assertNotNull(result.getError(EncryptionManager.OVERRIDING_KEY_ALIAS_PREFIX_NAME));
+    }
+}
@@ -0,0 +1,258 @@
+package devliving.online.securedpreferencestore;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Format of {@link EncryptedJournalBackend}: journals are closed and loaded again from the file after
+ * being damaged the way a crash or a tampering would
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class EncryptedJournalBackendTest {
+    private final static float COMPACTION_RATIO = 0.5f;
+
+    private SecretKey mMasterKey;
+    private File mFile;
+    private EncryptedJournalBackend mJournal;
+
+    @Before
+    public void setUp() throws Exception {
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        mMasterKey = new SecretKeySpec(key, "AES");
+
+        mFile = new File(RuntimeEnvironment.application.getFilesDir(), "journal-test/" + System.nanoTime() + ".journal");
+        mJournal = EncryptedJournalBackend.open(mFile, mMasterKey, COMPACTION_RATIO);
+    }
+
+    @After
+    public void tearDown() {
+        mJournal.close();
+        new File(mFile.getPath() + ".tmp").delete();
+        mFile.delete();
+    }
+
+    private EncryptedJournalBackend reopen() throws IOException {
+        mJournal.close();
+        mJournal = EncryptedJournalBackend.open(mFile, mMasterKey, COMPACTION_RATIO);
+        return mJournal;
+    }
+
+    @Test
+    public void valuesSurviveReopening() throws Exception {
+        Map<String, Object> expected = new HashMap<>();
+        expected.put("string", "value");
+        expected.put("set", new HashSet<>(Arrays.asList("a", "b")));
+        expected.put("int", 42);
+        expected.put("long", Long.MAX_VALUE);
+        expected.put("float", 1.5f);
+        expected.put("boolean", true);
+
+        StorageBackend.Transaction transaction = mJournal.beginTransaction();
+        for (Map.Entry<String, Object> entry : expected.entrySet()) {
+            transaction.put(entry.getKey(), entry.getValue());
+        }
+        transaction.put("removed", "value");
+        assertTrue(transaction.commit());
+        assertTrue(mJournal.beginTransaction().remove("removed").put("string", "new value").commit());
+        expected.put("string", "new value");
+
+        assertEquals(expected, reopen().getAll());
+        assertFalse(mJournal.contains("removed"));
+    }
+
+    @Test
+    public void clearSurvivesReopening() throws Exception {
+        assertTrue(mJournal.beginTransaction().put("old", "value").commit());
+        assertTrue(mJournal.beginTransaction().clear().put("new", "value").commit());
+
+        Map<String, Object> expected = new HashMap<>();
+        expected.put("new", "value");
+        assertEquals(expected, reopen().getAll());
+    }
+
+    @Test
+    public void tornTransactionIsDropped() throws Exception {
+        assertTrue(mJournal.beginTransaction().put("first", "value").commit());
+        long committed = mFile.length();
+        assertTrue(mJournal.beginTransaction().put("second", "value").put("third", "value").commit());
+
+        mJournal.close();
+        truncate(mFile, mFile.length() - 5);
+
+        reopen();
+        assertEquals("value", mJournal.get("first"));
+        assertNull(mJournal.get("second"));
+        assertNull(mJournal.get("third"));
+        assertEquals(committed, mFile.length());
+
+        //records are appended after the last commit again
+        assertTrue(mJournal.beginTransaction().put("fourth", "value").commit());
+        assertEquals("value", reopen().get("fourth"));
+        assertEquals("value", mJournal.get("first"));
+    }
+
+    @Test
+    public void flippedByteDropsTheTransaction() throws Exception {
+        assertTrue(mJournal.beginTransaction().put("first", "value").commit());
+        long committed = mFile.length();
+        assertTrue(mJournal.beginTransaction().put("second", "value").commit());
+
+        mJournal.close();
+        flip(mFile, (committed + mFile.length()) / 2);
+
+        reopen();
+        assertEquals("value", mJournal.get("first"));
+        assertNull(mJournal.get("second"));
+        assertEquals(committed, mFile.length());
+    }
+
+    @Test
+    public void replayedRecordsAreDropped() throws Exception {
+        assertTrue(mJournal.beginTransaction().put("key", "old").commit());
+        long first = mFile.length();
+        assertTrue(mJournal.beginTransaction().put("key", "new").commit());
+        long committed = mFile.length();
+        mJournal.close();
+
+        //the records of the first transaction appended again, sealed with sequence numbers already used,
+        //both transactions have records of the same size
+        byte[] records = new byte[(int) (committed - first)];
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.seek(first - records.length);
+            file.readFully(records);
+            file.seek(committed);
+            file.write(records);
+        } finally {
+            file.close();
+        }
+
+        reopen();
+        assertEquals("new", mJournal.get("key"));
+        assertEquals(committed, mFile.length());
+    }
+
+    @Test
+    public void journalOfAnotherKeyIsRejected() throws Exception {
+        assertTrue(mJournal.beginTransaction().put("key", "value").commit());
+        mJournal.close();
+
+        try {
+            EncryptedJournalBackend.open(mFile, new SecretKeySpec(new byte[32], "AES"), COMPACTION_RATIO);
+            fail("Opened a journal with the wrong key");
+        } catch (IOException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void compactionKeepsTheLiveValues() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            assertTrue(mJournal.beginTransaction().put("key" + (i % 10), "value" + i).commit());
+        }
+        long before = mFile.length();
+
+        assertTrue(mJournal.compactNow());
+        assertTrue(mFile.length() < before);
+        assertLastValues(mJournal, 100);
+
+        //appended after the copied records
+        assertTrue(mJournal.beginTransaction().put("key0", "after").commit());
+        reopen();
+        assertEquals("after", mJournal.get("key0"));
+        assertEquals("value99", mJournal.get("key9"));
+    }
+
+    @Test
+    public void writesDuringCompactionAreKept() throws Exception {
+        final int writes = 2000;
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final AtomicBoolean done = new AtomicBoolean(false);
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < writes; i++) {
+                        if (!mJournal.beginTransaction().put("key" + (i % 10), "value" + i).commit()) {
+                            throw new AssertionError("Write " + i + " failed");
+                        }
+                    }
+                } catch (Throwable e) {
+                    error.set(e);
+                } finally {
+                    done.set(true);
+                }
+            }
+        });
+        writer.start();
+
+        //the records written while copying are moved over as the tail of the journal
+        while (!done.get()) {
+            mJournal.compactNow();
+        }
+        writer.join();
+        if (error.get() != null) throw new AssertionError(error.get());
+
+        assertLastValues(mJournal, writes);
+        assertLastValues(reopen(), writes);
+
+        assertTrue(mJournal.compactNow());
+        assertLastValues(reopen(), writes);
+    }
+
+    private static void assertLastValues(StorageBackend backend, int writes) {
+        for (int key = 0; key < 10; key++) {
+            int last = writes - 10 + key;
+            assertEquals("value" + last, backend.get("key" + key));
+        }
+    }
+
+    static void truncate(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    static void flip(File file, long position) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(position);
+            int value = raf.read();
+            raf.seek(position);
+            raf.write(value ^ 0x01);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package devliving.online.securedpreferencestore;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.crypto.SecretKey;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * Keys of {@link FileKeyCache} are fetched once however many jobs ask for them at the same time
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class FileKeyCacheTest {
+    private final static String STORE_NAME = "file-keys";
+
+    private SegmentedFileCipher mCipher;
+    private FileKeyCache mKeys;
+
+    @Before
+    public void setUp() throws Exception {
+        EncryptionManager.setKeyStoreProvider(new InMemoryKeyStoreProvider());
+        mCipher = new SegmentedFileCipher(SecuredPreferenceStore.open(RuntimeEnvironment.application, STORE_NAME, "file-keys",
+                "file-keys.seed".getBytes(), new DefaultRecoveryHandler(), InMemoryBackend.FACTORY).getEncryptionManager());
+        mKeys = new FileKeyCache(0);
+    }
+
+    @After
+    public void tearDown() {
+        InMemoryBackend.FACTORY.delete(RuntimeEnvironment.application, STORE_NAME);
+        EncryptionManager.setKeyStoreProvider(null);
+    }
+
+    private static SegmentedFileCipher.Header header(byte[] wrappedKey) {
+        return new SegmentedFileCipher.Header(1024, new byte[7], wrappedKey);
+    }
+
+    @Test
+    public void dataKeyIsKeptUntilWiped() throws Exception {
+        SegmentedFileCipher.DataKey first = mKeys.dataKey(mCipher);
+        assertSame(first, mKeys.dataKey(mCipher));
+
+        mKeys.wipe();
+        assertNotSame(first, mKeys.dataKey(mCipher));
+    }
+
+    @Test
+    public void concurrentJobsShareTheUnwrappedKey() throws Exception {
+        final SegmentedFileCipher.DataKey dataKey = mCipher.newDataKey();
+        final CountDownLatch start = new CountDownLatch(1);
+        final SecretKey[] keys = new SecretKey[8];
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+
+        Thread[] jobs = new Thread[keys.length];
+        for (int j = 0; j < jobs.length; j++) {
+            final int job = j;
+            jobs[j] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        keys[job] = mKeys.unwrappedKey(mCipher, header(dataKey.wrappedKey));
+                    } catch (Throwable e) {
+                        error.set(e);
+                    }
+                }
+            });
+            jobs[j].start();
+        }
+        start.countDown();
+        for (Thread job : jobs) {
+            job.join();
+        }
+        if (error.get() != null) throw new AssertionError(error.get());
+
+        assertArrayEquals(dataKey.key.getEncoded(), keys[0].getEncoded());
+        for (SecretKey key : keys) {
+            assertSame(keys[0], key);
+        }
+    }
+
+    @Test
+    public void failedUnwrapIsNotCached() throws Exception {
+        SegmentedFileCipher.Header damaged = header("damaged".getBytes());
+        for (int attempt = 0; attempt < 2; attempt++) {
+            try {
+                mKeys.unwrappedKey(mCipher, damaged);
+                fail("Damaged key was unwrapped");
+            } catch (IOException e) {
+                //expected
+            }
+        }
+
+        SegmentedFileCipher.DataKey dataKey = mCipher.newDataKey();
+        assertArrayEquals(dataKey.key.getEncoded(), mKeys.unwrappedKey(mCipher, header(dataKey.wrappedKey)).getEncoded());
+    }
+}
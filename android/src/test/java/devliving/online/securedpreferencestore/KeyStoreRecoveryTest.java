@@ -0,0 +1,103 @@
+package devliving.online.securedpreferencestore;
+
+import android.content.SharedPreferences;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.security.KeyStore;
+import java.util.List;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Recovery handling of the store with the keys kept by {@link InMemoryKeyStoreProvider}, so broken and
+ * lost keystore entries can be simulated
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class KeyStoreRecoveryTest {
+    private final static String STORE_NAME = "recovery";
+    private final static String KEY_PREFIX = "recovery";
+
+    private InMemoryKeyStoreProvider mKeyStore;
+    private CountingRecoveryHandler mRecoveryHandler;
+
+    @Before
+    public void setUp() {
+        mKeyStore = new InMemoryKeyStoreProvider();
+        mRecoveryHandler = new CountingRecoveryHandler();
+        EncryptionManager.setKeyStoreProvider(mKeyStore);
+    }
+
+    @After
+    public void tearDown() {
+        InMemoryBackend.FACTORY.delete(RuntimeEnvironment.application, STORE_NAME);
+        EncryptionManager.setKeyStoreProvider(null);
+    }
+
+    private SecuredPreferenceStore openStore() throws Exception {
+        return SecuredPreferenceStore.open(RuntimeEnvironment.application, STORE_NAME, KEY_PREFIX,
+                "recovery.seed".getBytes(), mRecoveryHandler, InMemoryBackend.FACTORY);
+    }
+
+    @Test
+    public void reopenedStoreReadsValuesWithoutRecovery() throws Exception {
+        assertTrue(openStore().edit().putString("name", "value").commit());
+
+        assertEquals("value", openStore().getString("name", null));
+        assertEquals(0, mRecoveryHandler.mCalls);
+    }
+
+    @Test
+    public void brokenKeyIsRecoveredOnWrite() throws Exception {
+        SecuredPreferenceStore store = openStore();
+        assertTrue(store.edit().putString("name", "value").commit());
+
+        //an AES key of an invalid size can't initialize a cipher, like a key invalidated by the keystore
+        KeyStore keyStore = mKeyStore.getKeyStore();
+        keyStore.load(null);
+        keyStore.setKeyEntry(store.getEncryptionManager().AES_KEY_ALIAS, new SecretKeySpec(new byte[5], "AES"), null, null);
+
+        SecuredPreferenceStore reopened = openStore();
+        assertTrue(reopened.edit().putString("other", "new value").commit());
+
+        assertEquals(1, mRecoveryHandler.mCalls);
+        assertEquals("new value", reopened.getString("other", null));
+        //values encrypted with the lost key are cleared by the handler
+        assertNull(reopened.getString("name", null));
+    }
+
+    @Test
+    public void lostKeysAreRegeneratedOnOpen() throws Exception {
+        assertTrue(openStore().edit().putString("name", "value").commit());
+
+        mKeyStore.clear();
+
+        SecuredPreferenceStore reopened = openStore();
+        //the old value can't be decrypted with the new key
+        assertEquals("default", reopened.getString("name", "default"));
+
+        assertTrue(reopened.edit().putString("name", "new value").commit());
+        assertEquals("new value", openStore().getString("name", null));
+    }
+
+    private static class CountingRecoveryHandler extends DefaultRecoveryHandler {
+        int mCalls;
+
+        @Override
+        protected boolean recover(Exception e, KeyStore keyStore, List<String> keyAliases, SharedPreferences preferences) {
+            mCalls++;
+            return super.recover(e, keyStore, keyAliases, preferences);
+        }
+    }
+}
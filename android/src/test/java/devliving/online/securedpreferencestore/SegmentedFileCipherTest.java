@@ -0,0 +1,222 @@
+package devliving.online.securedpreferencestore;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Format of the segmented files of {@link EncryptionManager#encryptSegmented(java.io.InputStream, java.io.OutputStream, int)}:
+ * encrypted files are damaged the way a crash or a tampering would before being decrypted
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class SegmentedFileCipherTest {
+    private final static String STORE_NAME = "segmented";
+    private final static int CHUNK_SIZE = 1024;
+    private final static int SEALED_CHUNK_SIZE = CHUNK_SIZE + SegmentedFileCipher.TAG_LENGTH;
+
+    private EncryptionManager mManager;
+    private final Random mRandom = new Random(1);
+
+    @Before
+    public void setUp() throws Exception {
+        EncryptionManager.setKeyStoreProvider(new InMemoryKeyStoreProvider());
+        mManager = SecuredPreferenceStore.open(RuntimeEnvironment.application, STORE_NAME, "segmented",
+                "segmented.seed".getBytes(), new DefaultRecoveryHandler(), InMemoryBackend.FACTORY).getEncryptionManager();
+    }
+
+    @After
+    public void tearDown() {
+        InMemoryBackend.FACTORY.delete(RuntimeEnvironment.application, STORE_NAME);
+        EncryptionManager.setKeyStoreProvider(null);
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        mRandom.nextBytes(bytes);
+        return bytes;
+    }
+
+    private byte[] encrypt(byte[] plain) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        mManager.encryptSegmented(new ByteArrayInputStream(plain), out, CHUNK_SIZE);
+        return out.toByteArray();
+    }
+
+    private byte[] decrypt(byte[] encrypted, ByteArrayOutputStream out) throws Exception {
+        mManager.decryptSegmented(new ByteArrayInputStream(encrypted), out);
+        return out.toByteArray();
+    }
+
+    /**
+     * @return length of the header, the same for every file of the manager
+     */
+    private int headerLength() throws Exception {
+        return encrypt(new byte[0]).length - SegmentedFileCipher.TAG_LENGTH;
+    }
+
+    private void assertCorrupted(byte[] encrypted) throws Exception {
+        try {
+            decrypt(encrypted, new ByteArrayOutputStream());
+            fail("Damaged file was decrypted");
+        } catch (CorruptedFileException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void streamsRoundTrip() throws Exception {
+        int[] sizes = {0, 1, CHUNK_SIZE - 1, CHUNK_SIZE, CHUNK_SIZE + 1, 3 * CHUNK_SIZE + 7};
+        for (int size : sizes) {
+            byte[] plain = randomBytes(size);
+            byte[] encrypted = encrypt(plain);
+
+            int chunks = Math.max(1, (size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            assertEquals(headerLength() + size + chunks * SegmentedFileCipher.TAG_LENGTH, encrypted.length);
+            assertArrayEquals(plain, decrypt(encrypted, new ByteArrayOutputStream()));
+        }
+    }
+
+    @Test
+    public void channelsWriteTheStreamFormat() throws Exception {
+        File directory = new File(RuntimeEnvironment.application.getFilesDir(), "segmented-test");
+        directory.mkdirs();
+        File plainFile = new File(directory, "plain");
+        File encryptedFile = new File(directory, "encrypted");
+        File decryptedFile = new File(directory, "decrypted");
+
+        byte[] plain = randomBytes(5 * CHUNK_SIZE + 3);
+        FileOutputStream plainOut = new FileOutputStream(plainFile);
+        plainOut.write(plain);
+        plainOut.close();
+
+        try {
+            for (boolean mapInput : new boolean[]{false, true}) {
+                FileInputStream in = new FileInputStream(plainFile);
+                FileOutputStream out = new FileOutputStream(encryptedFile);
+                try {
+                    mManager.encryptSegmented(in.getChannel(), out.getChannel(), CHUNK_SIZE, mapInput);
+                } finally {
+                    in.close();
+                    out.close();
+                }
+
+                ByteArrayOutputStream streamOut = new ByteArrayOutputStream();
+                in = new FileInputStream(encryptedFile);
+                try {
+                    mManager.decryptSegmented(in, streamOut);
+                } finally {
+                    in.close();
+                }
+                assertArrayEquals(plain, streamOut.toByteArray());
+
+                in = new FileInputStream(encryptedFile);
+                out = new FileOutputStream(decryptedFile);
+                try {
+                    mManager.decryptSegmented(in.getChannel(), out.getChannel());
+                } finally {
+                    in.close();
+                    out.close();
+                }
+                assertArrayEquals(plain, readFile(decryptedFile));
+            }
+        } finally {
+            plainFile.delete();
+            encryptedFile.delete();
+            decryptedFile.delete();
+        }
+    }
+
+    @Test
+    public void fileTruncatedInAChunkIsRejected() throws Exception {
+        byte[] encrypted = encrypt(randomBytes(3 * CHUNK_SIZE + 7));
+
+        assertCorrupted(Arrays.copyOf(encrypted, encrypted.length - 5));
+    }
+
+    @Test
+    public void fileTruncatedAtAChunkBoundaryIsRejected() throws Exception {
+        byte[] encrypted = encrypt(randomBytes(3 * CHUNK_SIZE));
+
+        //the new last chunk wasn't sealed as the last one
+        assertCorrupted(Arrays.copyOf(encrypted, headerLength() + 2 * SEALED_CHUNK_SIZE));
+    }
+
+    @Test
+    public void flippedByteStopsAtTheDamagedChunk() throws Exception {
+        byte[] plain = randomBytes(3 * CHUNK_SIZE);
+        byte[] encrypted = encrypt(plain);
+        encrypted[headerLength() + SEALED_CHUNK_SIZE + 100] ^= 0x01;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            decrypt(encrypted, out);
+            fail("Damaged file was decrypted");
+        } catch (CorruptedFileException e) {
+            //only the chunks before the damaged one were written
+            assertArrayEquals(Arrays.copyOf(plain, CHUNK_SIZE), out.toByteArray());
+        }
+    }
+
+    @Test
+    public void reorderedChunksAreRejected() throws Exception {
+        byte[] encrypted = encrypt(randomBytes(3 * CHUNK_SIZE));
+        int first = headerLength();
+        int second = first + SEALED_CHUNK_SIZE;
+
+        byte[] chunk = Arrays.copyOfRange(encrypted, first, second);
+        System.arraycopy(encrypted, second, encrypted, first, SEALED_CHUNK_SIZE);
+        System.arraycopy(chunk, 0, encrypted, second, SEALED_CHUNK_SIZE);
+
+        assertCorrupted(encrypted);
+    }
+
+    @Test
+    public void damagedHeaderIsRejected() throws Exception {
+        //several chunks, a single chunk reads the same with a larger chunk size
+        byte[] plain = randomBytes(3 * CHUNK_SIZE + 7);
+        int headerLength = headerLength();
+
+        for (int position = 0; position < headerLength; position++) {
+            byte[] encrypted = encrypt(plain);
+            encrypted[position] ^= 0x01;
+
+            try {
+                decrypt(encrypted, new ByteArrayOutputStream());
+                fail("File with a damaged header byte at " + position + " was decrypted");
+            } catch (IOException | GeneralSecurityException e) {
+                //expected
+            }
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            return bytes;
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package ru.eftr.RNSecurity.SecurityV2;
+
+import android.util.Base64;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.security.KeyStore;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+import devliving.online.securedpreferencestore.EncryptionManager;
+import devliving.online.securedpreferencestore.InMemoryKeyStoreProvider;
+import ru.eftr.RNSecurity.sharedPreferences.DataHelper;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Biometric key flow of {@link CipherHelper} with the keys kept by {@link InMemoryKeyStoreProvider}.
+ * User authentication isn't enforced off-device, only the key generation and the stored IV are checked.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class CipherHelperTest {
+  private static final String KEY_NAME = "SecurityV2.touchId_key";
+
+  private InMemoryKeyStoreProvider keyStoreProvider;
+
+  @Before
+  public void setUp() {
+    keyStoreProvider = new InMemoryKeyStoreProvider();
+    EncryptionManager.setKeyStoreProvider(keyStoreProvider);
+  }
+
+  @After
+  public void tearDown() {
+    EncryptionManager.setKeyStoreProvider(null);
+  }
+
+  @Test
+  public void encryptModeCreatesKeyAndStoresIV() throws Exception {
+    // a new instance, the shared one keeps the keystore of the first provider
+    CipherHelper helper = new CipherHelper();
+    assertTrue(helper.initCipher(RuntimeEnvironment.application, Cipher.ENCRYPT_MODE));
+
+    KeyStore keyStore = keyStoreProvider.getKeyStore();
+    keyStore.load(null);
+    assertTrue(keyStore.containsAlias(KEY_NAME));
+
+    String storedIV = DataHelper.getCipherIV(RuntimeEnvironment.application);
+    assertNotNull(storedIV);
+    byte[] iv = Base64.decode(storedIV, Base64.NO_WRAP);
+    assertArrayEquals(helper.getCipher().getIV(), iv);
+
+    byte[] secret = "secret".getBytes("UTF-8");
+    byte[] encrypted = helper.getCipher().doFinal(secret);
+
+    // the stored key and IV decrypt what the cipher of the helper encrypted
+    Cipher decrypt = Cipher.getInstance("AES/GCM/NoPadding");
+    decrypt.init(Cipher.DECRYPT_MODE, (SecretKey) keyStore.getKey(KEY_NAME, null), new GCMParameterSpec(128, iv));
+    assertArrayEquals(secret, decrypt.doFinal(encrypted));
+  }
+
+  @Test
+  public void encryptModeReplacesKey() throws Exception {
+    CipherHelper helper = new CipherHelper();
+    assertTrue(helper.initCipher(RuntimeEnvironment.application, Cipher.ENCRYPT_MODE));
+    KeyStore keyStore = keyStoreProvider.getKeyStore();
+    keyStore.load(null);
+    SecretKey first = (SecretKey) keyStore.getKey(KEY_NAME, null);
+
+    assertTrue(helper.initCipher(RuntimeEnvironment.application, Cipher.ENCRYPT_MODE));
+    SecretKey second = (SecretKey) keyStore.getKey(KEY_NAME, null);
+
+    assertEquals(1, keyStore.size());
+    assertFalse(first.equals(second));
+  }
+}
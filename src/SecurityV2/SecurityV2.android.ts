@@ -1,5 +1,5 @@
 import { NativeModules } from 'react-native';
-import { ISecurityV2 } from './SecurityV2.types';
+import { ISecurityV2, ISecurityV2Metrics } from './SecurityV2.types';
 
 const SecurityV2Module = NativeModules.SecurityV2;
 const EMPTY_OBJ = {};
@@ -83,6 +83,14 @@ export class SecurityV2 implements ISecurityV2 {
     return SecurityV2Module.unlockByCode(code, options || EMPTY_OBJ).catch(correctErrorCatch);
   }
 
+  public setMetricsEnabled(enabled: boolean): Promise<void> {
+    return SecurityV2Module.setMetricsEnabled(enabled).catch(correctErrorCatch);
+  }
+
+  public getMetrics(options?: { reset?: boolean }): Promise<ISecurityV2Metrics | undefined> {
+    return SecurityV2Module.getMetrics(options || EMPTY_OBJ).catch(correctErrorCatch);
+  }
+
   public hasFingerPrintChanged(): Promise<boolean> {
     return new Promise((resolve, reject) => {
       return SecurityV2Module.hasFingerPrintChanged((error: INativeError) => {
@@ -1,6 +1,6 @@
 import { NativeModules } from 'react-native';
 import { RNSecurityErrorEnum } from '../types';
-import { ISecurityV2, ISecurityV2Error } from './SecurityV2.types';
+import { ISecurityV2, ISecurityV2Error, ISecurityV2Metrics } from './SecurityV2.types';
 
 const SecurityV2Module = NativeModules.SecurityV2;
 const EMPTY_OBJ = {};
@@ -131,6 +131,14 @@ export class SecurityV2 implements ISecurityV2 {
     return Promise.resolve();
   }
 
+  public setMetricsEnabled(enabled: boolean): Promise<void> {
+    return Promise.resolve();
+  }
+
+  public getMetrics(options?: { reset?: boolean }): Promise<ISecurityV2Metrics | undefined> {
+    return Promise.resolve(undefined);
+  }
+
   public hasFingerPrintChanged(): Promise<boolean> {
     return new Promise((resolve, reject) => {
       return SecurityV2Module.hasFingerPrintChanged((error: INativeError) => {
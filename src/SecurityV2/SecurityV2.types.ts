@@ -6,6 +6,39 @@ export interface ISecurityV2Error {
   readonly subCode?: string;
 }
 
+/**
+ * Метрики одной операции. Времена в микросекундах.
+ */
+export interface ISecurityV2OperationMetrics {
+  readonly count: number;
+  readonly errors: number;
+  readonly totalUs: number;
+  readonly meanUs: number;
+  readonly maxUs: number;
+  readonly p50Us: number;
+  readonly p90Us: number;
+  readonly p99Us: number;
+  /**
+   * buckets[i] - число операций быстрее 2^i мкс, последний - все остальные.
+   */
+  readonly buckets: number[];
+}
+
+export type SecurityV2Operation =
+  | 'keystoreLoad'
+  | 'keyFetch'
+  | 'encrypt'
+  | 'decrypt'
+  | 'hash'
+  | 'commit'
+  | 'recovery'
+  | 'biometricPrompt';
+
+export interface ISecurityV2Metrics {
+  readonly enabled: boolean;
+  readonly operations: Record<SecurityV2Operation, ISecurityV2OperationMetrics>;
+}
+
 /**
  * Защищённое хранилище.
  */
@@ -85,4 +118,17 @@ export interface ISecurityV2 {
    * @exception RNSecurityError
    */
   initialSetup(options?: {}): Promise<void>;
+
+  /**
+   * Включить сбор метрик операций шифрования и хранилища. По умолчанию выключен.
+   * @param enabled
+   */
+  setMetricsEnabled(enabled: boolean): Promise<void>;
+
+  /**
+   * Получить метрики, накопленные с момента включения или последнего сброса.
+   * Только Android, на iOS возвращает undefined.
+   * @param options reset - обнулить метрики после чтения
+   */
+  getMetrics(options?: { reset?: boolean }): Promise<ISecurityV2Metrics | undefined>;
 }